@@ -0,0 +1,62 @@
+package com.kitty.geotracker;
+
+/**
+ * Lowers the rate of uploaded fixes while the upload falls behind.
+ * <p>
+ * Fixes closer together than {@code baseInterval} times the current {@link UploadPressure} scale are
+ * dropped, and the error bound and heartbeat of the {@link TrajectorySimplifier} are stretched by the
+ * same scale. Once the backlog drains the scale returns to 1 and the full rate is restored. The first
+ * fix after the interval has passed is always accepted, so the latest position sent is never older
+ * than the current interval.
+ */
+public class AdaptiveSampler implements FixFilter {
+
+    private final UploadPressure pressure;
+    private final long baseInterval;
+    private final TrajectorySimplifier simplifier;
+    private final Clock clock;
+    private long lastTime;
+    private boolean hasLast = false;
+
+    /**
+     * Source of the current time used to evaluate the upload pressure
+     */
+    public interface Clock {
+        long now();
+    }
+
+    /**
+     * Create a new sampler
+     *
+     * @param pressure     Upload pressure
+     * @param baseInterval Interval between fixes in milliseconds at a scale of 1
+     * @param simplifier   Simplifier to scale, or null
+     * @param clock        Clock the upload pressure is measured with
+     */
+    public AdaptiveSampler(UploadPressure pressure, long baseInterval, TrajectorySimplifier simplifier, Clock clock) {
+        this.pressure = pressure;
+        this.baseInterval = baseInterval;
+        this.simplifier = simplifier;
+        this.clock = clock;
+    }
+
+    @Override
+    public boolean accept(Fix fix) {
+        double scale = pressure.getScale(clock.now());
+        if (simplifier != null) {
+            simplifier.setScale(scale);
+        }
+
+        if (hasLast && fix.time - lastTime >= 0 && fix.time - lastTime < baseInterval * scale) {
+            return false;
+        }
+        hasLast = true;
+        lastTime = fix.time;
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        hasLast = false;
+    }
+}
@@ -0,0 +1,64 @@
+package com.kitty.geotracker;
+
+import java.util.Arrays;
+
+/**
+ * Decodes standard Base64, the encoding of EJSON binary fields.
+ * <p>
+ * Unlike {@code android.util.Base64} this only depends on the JDK, so the stores that decode DDP
+ * messages can be exercised by plain JVM unit tests. Whitespace is skipped and padding is optional.
+ */
+final class Base64Decoder {
+
+    private static final int[] VALUES = new int[128];
+
+    static {
+        Arrays.fill(VALUES, -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            VALUES[alphabet.charAt(i)] = i;
+        }
+    }
+
+    private Base64Decoder() {
+    }
+
+    /**
+     * Decode a Base64 string
+     *
+     * @param data Base64 string
+     * @return Decoded bytes
+     * @throws IllegalArgumentException If the string is not valid Base64
+     */
+    static byte[] decode(String data) {
+        byte[] out = new byte[data.length() * 3 / 4];
+        int length = 0;
+        int buffer = 0;
+        int bits = 0;
+        boolean padding = false;
+        for (int i = 0; i < data.length(); i++) {
+            char c = data.charAt(i);
+            if (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+                continue;
+            }
+            if (c == '=') {
+                padding = true;
+                continue;
+            }
+            int value = c < VALUES.length ? VALUES[c] : -1;
+            if (value < 0 || padding) {
+                throw new IllegalArgumentException("Invalid Base64 character at " + i);
+            }
+            buffer = (buffer << 6) | value;
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                out[length++] = (byte) (buffer >> bits);
+            }
+        }
+        if (bits >= 6) {
+            throw new IllegalArgumentException("Truncated Base64 data");
+        }
+        return length == out.length ? out : Arrays.copyOf(out, length);
+    }
+}
@@ -0,0 +1,190 @@
+package com.kitty.geotracker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Level-of-detail pyramid of point weights aggregated into grid cells per zoom level.
+ * <p>
+ * Every tile of a zoom level is divided into {@link #CELLS} x {@link #CELLS} cells. Adding a point adds
+ * its weight to one cell per zoom level, so the cost is independent of the number of points already in
+ * the grid. Cells are only allocated for tiles that contain points, a tile's cells are released once
+ * its last point is removed again. The points of every cell are counted as well, so a cell whose last
+ * point was removed is exactly zero rather than holding the rounding errors of its removed weights.
+ * <p>
+ * The highest cell weight of every level is tracked as well. It only grows while points are added.
+ * Removing a point from the heaviest cell marks the level, and its maximum is recomputed from the cells
+ * the next time it is requested.
+ */
+public class DensityGrid {
+
+    public static final int CELLS = 64;
+
+    private final int maxZoom;
+    private final List<HashMap<Long, Tile>> levels = new ArrayList<>();
+    private final float[] maxCell;
+    private final boolean[] maxStale;
+
+    /**
+     * Cells of a single tile
+     */
+    private static class Tile {
+        final float[] weights = new float[CELLS * CELLS];
+        final int[] points = new int[CELLS * CELLS];
+        int total = 0; // number of points in the tile
+    }
+
+    /**
+     * Create a new grid
+     *
+     * @param maxZoom Highest zoom level to accumulate
+     */
+    public DensityGrid(int maxZoom) {
+        this.maxZoom = maxZoom;
+        this.maxCell = new float[maxZoom + 1];
+        this.maxStale = new boolean[maxZoom + 1];
+        for (int zoom = 0; zoom <= maxZoom; zoom++) {
+            levels.add(new HashMap<Long, Tile>());
+        }
+    }
+
+    /**
+     * Get the highest zoom level that is accumulated
+     *
+     * @return Zoom level
+     */
+    public int getMaxZoom() {
+        return maxZoom;
+    }
+
+    /**
+     * Add a weight to the cells containing a point on all zoom levels. Use a negative weight to remove
+     * a point again.
+     *
+     * @param x      Horizontal world coordinate between 0 and 1
+     * @param y      Vertical world coordinate between 0 and 1
+     * @param weight Weight
+     */
+    public void add(double x, double y, float weight) {
+        for (int zoom = 0; zoom <= maxZoom; zoom++) {
+            int tiles = 1 << zoom;
+            double tileX = clamp(x) * tiles, tileY = clamp(y) * tiles;
+            int tx = Math.min(tiles - 1, (int) tileX), ty = Math.min(tiles - 1, (int) tileY);
+            int cx = Math.min(CELLS - 1, (int) ((tileX - tx) * CELLS));
+            int cy = Math.min(CELLS - 1, (int) ((tileY - ty) * CELLS));
+
+            HashMap<Long, Tile> level = levels.get(zoom);
+            long key = key(tx, ty);
+            Tile tile = level.get(key);
+            if (tile == null) {
+                if (weight <= 0) {
+                    continue;
+                }
+                tile = new Tile();
+                level.put(key, tile);
+            }
+
+            int index = cy * CELLS + cx;
+            float previous = tile.weights[index];
+            if (weight > 0) {
+                tile.weights[index] += weight;
+                tile.points[index]++;
+                tile.total++;
+            } else if (tile.points[index] > 0) {
+                tile.weights[index] = --tile.points[index] > 0 ? tile.weights[index] + weight : 0;
+                tile.total--;
+            }
+            if (tile.weights[index] > maxCell[zoom]) {
+                maxCell[zoom] = tile.weights[index];
+            } else if (weight < 0 && previous >= maxCell[zoom]) {
+                maxStale[zoom] = true;
+            }
+            if (tile.total == 0) {
+                level.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Remove all points
+     */
+    public void clear() {
+        for (int zoom = 0; zoom <= maxZoom; zoom++) {
+            levels.get(zoom).clear();
+            maxCell[zoom] = 0;
+            maxStale[zoom] = false;
+        }
+    }
+
+    /**
+     * Get the highest weight of a single cell on a zoom level
+     *
+     * @param zoom Zoom level
+     * @return Weight
+     */
+    public float getMaxCell(int zoom) {
+        if (maxStale[zoom]) {
+            float max = 0;
+            for (Tile tile : levels.get(zoom).values()) {
+                for (float weight : tile.weights) {
+                    max = Math.max(max, weight);
+                }
+            }
+            maxCell[zoom] = max;
+            maxStale[zoom] = false;
+        }
+        return maxCell[zoom];
+    }
+
+    /**
+     * Copy the cells of a tile and a border of the surrounding tiles
+     *
+     * @param zoom    Zoom level
+     * @param x       Tile column
+     * @param y       Tile row
+     * @param padding Border width in cells, at most {@link #CELLS}
+     * @param out     Zeroed array receiving the cells indexed [column][row], {@code CELLS + 2 * padding}
+     *                wide
+     * @return False if there are no points in the copied area
+     */
+    public boolean copy(int zoom, int x, int y, int padding, double[][] out) {
+        int tiles = 1 << zoom;
+        HashMap<Long, Tile> level = levels.get(zoom);
+        boolean found = false;
+
+        for (int dx = -1; dx <= 1; dx++) {
+            for (int dy = -1; dy <= 1; dy++) {
+                int ty = y + dy;
+                if (ty < 0 || ty >= tiles) {
+                    continue;
+                }
+
+                // Tiles wrap around at the antimeridian
+                Tile tile = level.get(key(((x + dx) % tiles + tiles) % tiles, ty));
+                if (tile == null) {
+                    continue;
+                }
+                found = true;
+
+                int fromX = dx < 0 ? CELLS - padding : 0, toX = dx > 0 ? padding : CELLS;
+                int fromY = dy < 0 ? CELLS - padding : 0, toY = dy > 0 ? padding : CELLS;
+                for (int cx = fromX; cx < toX; cx++) {
+                    double[] column = out[cx + dx * CELLS + padding];
+                    for (int cy = fromY; cy < toY; cy++) {
+                        column[cy + dy * CELLS + padding] = tile.weights[cy * CELLS + cx];
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    private static double clamp(double value) {
+        return Math.max(0, Math.min(1, value));
+    }
+
+    private static long key(int x, int y) {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+}
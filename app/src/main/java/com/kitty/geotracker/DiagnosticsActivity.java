@@ -0,0 +1,110 @@
+package com.kitty.geotracker;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.support.v7.app.AppCompatActivity;
+import android.util.Log;
+import android.view.View;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Shows the {@link Metrics} of the app, refreshed every second, and writes them to a file on request
+ */
+public class DiagnosticsActivity extends AppCompatActivity {
+
+    private static final long REFRESH_INTERVAL = 1000; // in milliseconds
+
+    private TextView text;
+    private final Handler handler = new Handler();
+    private final String TAG = getClass().getSimpleName();
+
+    private final Runnable refreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+            handler.postDelayed(this, REFRESH_INTERVAL);
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_diagnostics);
+        text = (TextView) findViewById(R.id.diagnostics_text);
+
+        findViewById(R.id.diagnostics_dump).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                dump();
+            }
+        });
+        findViewById(R.id.diagnostics_reset).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                Metrics.reset();
+                refresh();
+            }
+        });
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        handler.post(refreshRunnable);
+    }
+
+    @Override
+    protected void onPause() {
+        handler.removeCallbacks(refreshRunnable);
+        super.onPause();
+    }
+
+    private void refresh() {
+        if (Metrics.isEnabled()) {
+            text.setText(Metrics.dump());
+        } else {
+            text.setText(getString(R.string.diagnostics_disabled) + "\n\n" + Metrics.dump());
+        }
+    }
+
+    /**
+     * Write the metrics to a file in the app's external files directory, or its internal one if there
+     * is no external storage
+     */
+    private void dump() {
+        File directory = getExternalFilesDir(null);
+        if (directory == null) {
+            directory = getFilesDir();
+        }
+        Date now = new Date();
+        File file = new File(directory, "metrics-"
+                + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(now) + ".txt");
+
+        try {
+            Writer writer = new FileWriter(file);
+            try {
+                writer.write("# " + now + (Metrics.isEnabled() ? "" : " (disabled)") + "\n");
+                Metrics.dump(writer);
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write metrics to \"" + file + "\"", e);
+            Toast.makeText(this, getString(R.string.diagnostics_dump_failed, e.getMessage()),
+                    Toast.LENGTH_LONG).show();
+            return;
+        }
+        Log.d(TAG, "Wrote metrics to \"" + file + "\"");
+        Toast.makeText(this, getString(R.string.diagnostics_dumped, file.getAbsolutePath()), Toast.LENGTH_LONG)
+                .show();
+    }
+}
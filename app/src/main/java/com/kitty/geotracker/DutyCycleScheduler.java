@@ -0,0 +1,191 @@
+package com.kitty.geotracker;
+
+import android.location.LocationManager;
+
+/**
+ * Adapts how often and from which provider locations are requested to whether the participant is
+ * moving.
+ * <ul>
+ * <li>{@link #MODE_MOVING}: GPS every second, as long as the participant moves.</li>
+ * <li>{@link #MODE_IDLE}: GPS with a longer interval and a minimum distance, once the participant has
+ * not moved for {@code idleDelay} milliseconds.</li>
+ * <li>{@link #MODE_STATIONARY}: network locations at a long interval plus passive locations requested
+ * by other apps, once the participant has not moved for {@code stationaryDelay} milliseconds.</li>
+ * </ul>
+ * A fix counts as movement if its speed is high, or if its speed is moderate and its bearing agrees
+ * with the previous fix (GPS noise at rest has random bearings). Network fixes carry no speed, so in
+ * stationary mode moving more than {@code resumeDistance} metres away from where the participant
+ * stopped counts as movement too. The accuracy of the fix is subtracted from that distance, otherwise
+ * the jitter of network fixes, often 100 metres or more, would keep switching GPS back on. Any
+ * movement switches straight back to {@link #MODE_MOVING}.
+ * <p>
+ * Slower modes deliver few or no fixes while the participant stands still, so the owner should call
+ * {@link #checkTimeouts(long)} periodically in addition to passing every fix to {@link #onFix}.
+ */
+public class DutyCycleScheduler {
+
+    public static final int MODE_MOVING = 0;
+    public static final int MODE_IDLE = 1;
+    public static final int MODE_STATIONARY = 2;
+
+    private static final long MOVING_INTERVAL = 1000; // in milliseconds
+    private static final long IDLE_INTERVAL = 10000; // in milliseconds
+    private static final float IDLE_DISTANCE = 10; // in metres
+    static final long STATIONARY_INTERVAL = 60000; // in milliseconds
+    private static final float STATIONARY_DISTANCE = 50; // in metres
+
+    private static final float MOVING_SPEED = 1.0f; // in metres per second
+    private static final float CREEPING_SPEED = 0.4f; // in metres per second
+    private static final float MAX_BEARING_CHANGE = 45; // in degrees
+    private static final double EARTH_RADIUS = 6371008.8; // in metres
+
+    private final LocationSource source;
+    private final long idleDelay, stationaryDelay;
+    private final double resumeDistance;
+
+    private int mode = -1;
+    private long lastMovement;
+    private boolean hasPrevious = false;
+    private float previousBearing;
+    private double anchorLatitude, anchorLongitude;
+
+    /**
+     * Create a new scheduler
+     *
+     * @param source          Location source to request updates from
+     * @param idleDelay       Time in milliseconds without movement before switching to idle mode
+     * @param stationaryDelay Time in milliseconds without movement before switching to stationary mode
+     * @param resumeDistance  Distance in metres from the stationary position that counts as movement
+     */
+    public DutyCycleScheduler(LocationSource source, long idleDelay, long stationaryDelay, double resumeDistance) {
+        this.source = source;
+        this.idleDelay = idleDelay;
+        this.stationaryDelay = stationaryDelay;
+        this.resumeDistance = resumeDistance;
+    }
+
+    /**
+     * Start requesting locations at full rate
+     *
+     * @param now Current time in milliseconds
+     */
+    public synchronized void start(long now) {
+        lastMovement = now;
+        hasPrevious = false;
+        setMode(MODE_MOVING);
+    }
+
+    /**
+     * Stop requesting locations
+     */
+    public synchronized void stop() {
+        source.removeUpdates();
+        mode = -1;
+    }
+
+    /**
+     * Update the mode based on a new fix
+     *
+     * @param fix Fix
+     * @param now Current time in milliseconds
+     */
+    public synchronized void onFix(Fix fix, long now) {
+        if (mode < 0) {
+            return;
+        }
+
+        boolean moving = isMoving(fix);
+        if (fix.speed >= CREEPING_SPEED) {
+            hasPrevious = true;
+            previousBearing = fix.bearing;
+        } else {
+            hasPrevious = false;
+        }
+
+        if (mode == MODE_STATIONARY && distance(fix.latitude, fix.longitude) - fix.accuracy > resumeDistance) {
+            moving = true;
+        }
+
+        if (moving) {
+            lastMovement = now;
+            setMode(MODE_MOVING);
+            return;
+        }
+
+        // Remember where the participant stopped
+        if (mode == MODE_MOVING) {
+            anchorLatitude = fix.latitude;
+            anchorLongitude = fix.longitude;
+        }
+        checkTimeouts(now);
+    }
+
+    /**
+     * Switch to a slower mode if the participant has not moved for long enough
+     *
+     * @param now Current time in milliseconds
+     */
+    public synchronized void checkTimeouts(long now) {
+        if (mode < 0) {
+            return;
+        }
+
+        long still = now - lastMovement;
+        if (still >= stationaryDelay && source.isProviderEnabled(LocationManager.NETWORK_PROVIDER)) {
+            setMode(MODE_STATIONARY);
+        } else if (still >= idleDelay && mode == MODE_MOVING) {
+            setMode(MODE_IDLE);
+        }
+    }
+
+    /**
+     * Get the current mode
+     *
+     * @return Mode, or -1 if stopped
+     */
+    public synchronized int getMode() {
+        return mode;
+    }
+
+    private boolean isMoving(Fix fix) {
+        if (fix.speed >= MOVING_SPEED) {
+            return true;
+        }
+        if (fix.speed < CREEPING_SPEED || !hasPrevious) {
+            return false;
+        }
+
+        float change = Math.abs(fix.bearing - previousBearing) % 360;
+        return (change > 180 ? 360 - change : change) <= MAX_BEARING_CHANGE;
+    }
+
+    private double distance(double latitude, double longitude) {
+        double north = Math.toRadians(latitude - anchorLatitude) * EARTH_RADIUS;
+        double east = Math.toRadians(longitude - anchorLongitude) * EARTH_RADIUS
+                * Math.cos(Math.toRadians(anchorLatitude));
+        return Math.hypot(north, east);
+    }
+
+    private void setMode(int mode) {
+        if (this.mode == mode) {
+            return;
+        }
+        this.mode = mode;
+
+        source.removeUpdates();
+        switch (mode) {
+            case MODE_MOVING:
+                source.requestUpdates(LocationManager.GPS_PROVIDER, MOVING_INTERVAL, 0);
+                break;
+
+            case MODE_IDLE:
+                source.requestUpdates(LocationManager.GPS_PROVIDER, IDLE_INTERVAL, IDLE_DISTANCE);
+                break;
+
+            case MODE_STATIONARY:
+                source.requestUpdates(LocationManager.NETWORK_PROVIDER, STATIONARY_INTERVAL, STATIONARY_DISTANCE);
+                source.requestUpdates(LocationManager.PASSIVE_PROVIDER, 0, 0);
+                break;
+        }
+    }
+}
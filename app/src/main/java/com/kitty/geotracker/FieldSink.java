@@ -0,0 +1,37 @@
+package com.kitty.geotracker;
+
+/**
+ * Receives the fields of a JSON object or the elements of a JSON array from a {@link JsonFieldDecoder}.
+ * Elements of arrays are passed with a null name.
+ */
+public interface FieldSink {
+
+    void onString(String name, String value);
+
+    void onNumber(String name, double value);
+
+    void onBoolean(String name, boolean value);
+
+    void onNull(String name);
+
+    /**
+     * Called when a nested object starts
+     *
+     * @param name Field name
+     * @return Sink for the fields of the object, or null to skip it
+     */
+    FieldSink onObject(String name);
+
+    /**
+     * Called when a nested array starts
+     *
+     * @param name Field name
+     * @return Sink for the elements of the array, or null to skip it
+     */
+    FieldSink onArray(String name);
+
+    /**
+     * Called on the sink of an object or array once all its fields or elements were passed
+     */
+    void onEnd();
+}
@@ -0,0 +1,107 @@
+package com.kitty.geotracker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import im.delight.android.ddp.Fields;
+
+/**
+ * Builds the generic field maps of documents from a {@link JsonFieldDecoder}. Nested objects become
+ * maps, arrays become lists, integral numbers become longs and all other numbers doubles.
+ */
+public class FieldsBuilder implements FieldSink {
+
+    private final Map<String, Object> map;
+    private final List<Object> list;
+
+    private FieldsBuilder(Map<String, Object> map, List<Object> list) {
+        this.map = map;
+        this.list = list;
+    }
+
+    /**
+     * Decode the fields of a document
+     *
+     * @param decoder Decoder
+     * @param json    JSON object, may be null
+     * @return Fields
+     * @throws IllegalArgumentException If the JSON is invalid
+     */
+    public static Fields decode(JsonFieldDecoder decoder, String json) {
+        Fields fields = new Fields();
+        if (json != null) {
+            decoder.decodeObject(json, new FieldsBuilder(fields, null));
+        }
+        return fields;
+    }
+
+    /**
+     * Decode a list of field names, e.g. the cleared fields of a changed document
+     *
+     * @param decoder Decoder
+     * @param json    JSON array of names, may be null
+     * @return Fields with the names as keys and null values
+     * @throws IllegalArgumentException If the JSON is invalid
+     */
+    public static Fields decodeNames(JsonFieldDecoder decoder, String json) {
+        final Fields fields = new Fields();
+        if (json != null) {
+            decoder.decodeArray(json, new FieldsBuilder(null, new ArrayList<Object>()) {
+                @Override
+                public void onString(String name, String value) {
+                    fields.put(value, null);
+                }
+            });
+        }
+        return fields;
+    }
+
+    private void put(String name, Object value) {
+        if (list != null) {
+            list.add(value);
+        } else {
+            map.put(name, value);
+        }
+    }
+
+    @Override
+    public void onString(String name, String value) {
+        put(name, value);
+    }
+
+    @Override
+    public void onNumber(String name, double value) {
+        long integral = (long) value;
+        put(name, integral == value ? (Object) integral : (Object) value);
+    }
+
+    @Override
+    public void onBoolean(String name, boolean value) {
+        put(name, value);
+    }
+
+    @Override
+    public void onNull(String name) {
+        put(name, null);
+    }
+
+    @Override
+    public FieldSink onObject(String name) {
+        HashMap<String, Object> object = new HashMap<>();
+        put(name, object);
+        return new FieldsBuilder(object, null);
+    }
+
+    @Override
+    public FieldSink onArray(String name) {
+        ArrayList<Object> array = new ArrayList<>();
+        put(name, array);
+        return new FieldsBuilder(null, array);
+    }
+
+    @Override
+    public void onEnd() {
+    }
+}
@@ -0,0 +1,63 @@
+package com.kitty.geotracker;
+
+/**
+ * Mutable GPS fix with primitive fields. Fix records are taken from a {@link FixPool} and reused, so
+ * the ingest path does not allocate anything per location update. Never keep a reference to a fix
+ * that was passed to a {@link FixSink} or released to its pool.
+ */
+public class Fix {
+
+    public String provider;
+    public long time; // in milliseconds since the epoch
+    public double latitude, longitude; // in degrees
+    public double altitude; // in metres
+    public float accuracy; // in metres, 0 if unknown
+    public float bearing; // in degrees, 0 if unknown
+    public float speed; // in metres per second, 0 if unknown
+    public boolean hasBearing, hasSpeed;
+
+    /**
+     * Set all fields of this fix. The speed and bearing are marked as known.
+     *
+     * @return This fix
+     */
+    public Fix set(String provider, long time, double latitude, double longitude, double altitude, float accuracy,
+                   float bearing, float speed) {
+        this.provider = provider;
+        this.time = time;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.altitude = altitude;
+        this.accuracy = accuracy;
+        this.bearing = bearing;
+        this.speed = speed;
+        this.hasBearing = true;
+        this.hasSpeed = true;
+        return this;
+    }
+
+    /**
+     * Mark whether the location provider reported a speed and a bearing. Network locations usually
+     * have neither.
+     *
+     * @param hasSpeed   True if the speed is known
+     * @param hasBearing True if the bearing is known
+     * @return This fix
+     */
+    public Fix setMotion(boolean hasSpeed, boolean hasBearing) {
+        this.hasSpeed = hasSpeed;
+        this.hasBearing = hasBearing;
+        return this;
+    }
+
+    /**
+     * Copy all fields of another fix
+     *
+     * @param other Fix to copy
+     * @return This fix
+     */
+    public Fix set(Fix other) {
+        return set(other.provider, other.time, other.latitude, other.longitude, other.altitude, other.accuracy,
+                other.bearing, other.speed).setMotion(other.hasSpeed, other.hasBearing);
+    }
+}
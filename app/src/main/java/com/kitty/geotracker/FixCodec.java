@@ -0,0 +1,248 @@
+package com.kitty.geotracker;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * Compact binary encoding for a batch of GPS fixes belonging to one user and session.
+ * <p>
+ * Layout (all integers are unsigned LEB128 varints, signed values are zigzag encoded first):
+ * <pre>
+ * version
+ * dictionary size, (string length, UTF-8 bytes)*
+ * session dictionary id, user dictionary id
+ * fix count
+ * per fix: provider dictionary id, time delta (ms), latitude delta (1e-7 deg), longitude delta (1e-7 deg),
+ *          altitude delta (dm), bearing (0.01 deg), speed (cm/s)
+ * </pre>
+ * Dictionary ids are offset by one so that 0 can represent a null string. Deltas are relative to the
+ * previous fix in the batch, starting at zero. A typical fix takes 12 to 16 bytes instead of the
+ * roughly 170 bytes of its JSON representation.
+ * <p>
+ * Encode a batch by calling {@link #begin}, passing every fix to {@link #onFix} and calling
+ * {@link #finish}. An encoder can be reused for any number of batches; once its buffers have grown to
+ * the batch size, encoding fixes does not allocate.
+ */
+public class FixCodec implements FixSink {
+
+    public static final int VERSION = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final double COORDINATE_SCALE = 1e7;
+    private static final double ALTITUDE_SCALE = 10;
+    private static final double BEARING_SCALE = 100;
+    private static final double SPEED_SCALE = 100;
+    private static final int MIN_FIX_BYTES = 7; // one varint per field
+
+    private final ArrayList<String> dictionary = new ArrayList<>();
+    private final Buffer fixes = new Buffer(256);
+    private int sessionId, userId, count;
+    private long lastTime, lastLatitude, lastLongitude, lastAltitude;
+
+    /**
+     * Start encoding a new batch
+     *
+     * @param session Session the fixes belong to
+     * @param user    User the fixes belong to
+     */
+    public void begin(String session, String user) {
+        dictionary.clear();
+        fixes.length = 0;
+        count = 0;
+        lastTime = lastLatitude = lastLongitude = lastAltitude = 0;
+        sessionId = intern(session);
+        userId = intern(user);
+    }
+
+    @Override
+    public void onFix(Fix fix) {
+        long lat = Math.round(fix.latitude * COORDINATE_SCALE);
+        long lng = Math.round(fix.longitude * COORDINATE_SCALE);
+        long alt = Math.round(fix.altitude * ALTITUDE_SCALE);
+
+        fixes.writeVarint(intern(fix.provider));
+        fixes.writeVarint(zigzag(fix.time - lastTime));
+        fixes.writeVarint(zigzag(lat - lastLatitude));
+        fixes.writeVarint(zigzag(lng - lastLongitude));
+        fixes.writeVarint(zigzag(alt - lastAltitude));
+        fixes.writeVarint(Math.round(normalizeBearing(fix.bearing) * BEARING_SCALE));
+        fixes.writeVarint(Math.round(Math.max(fix.speed, 0) * SPEED_SCALE));
+
+        lastTime = fix.time;
+        lastLatitude = lat;
+        lastLongitude = lng;
+        lastAltitude = alt;
+        count++;
+    }
+
+    /**
+     * Get the number of fixes in the current batch
+     *
+     * @return Number of fixes
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Finish the current batch
+     *
+     * @return Encoded batch
+     */
+    public byte[] finish() {
+        Buffer out = new Buffer(fixes.length + 64);
+        out.writeVarint(VERSION);
+        out.writeVarint(dictionary.size());
+        for (String entry : dictionary) {
+            byte[] bytes = entry.getBytes(UTF_8);
+            out.writeVarint(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+        out.writeVarint(sessionId);
+        out.writeVarint(userId);
+        out.writeVarint(count);
+        out.write(fixes.data, 0, fixes.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode a batch
+     *
+     * @param data Encoded batch
+     * @param sink Receives the decoded fixes in order
+     * @return Number of decoded fixes
+     * @throws IllegalArgumentException If the data is not a valid batch. Counts and lengths are checked
+     *                                  against the size of the data before anything is allocated.
+     */
+    public static int decode(byte[] data, FixSink sink) {
+        try {
+            int[] position = {0};
+            long version = readVarint(data, position);
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported version " + version);
+            }
+
+            String[] strings = new String[readCount(data, position, 1) + 1];
+            for (int i = 1; i < strings.length; i++) {
+                int length = readCount(data, position, 1);
+                strings[i] = new String(data, position[0], length, UTF_8);
+                position[0] += length;
+            }
+
+            // The session and user ids are only needed to interpret a batch on its own
+            readVarint(data, position);
+            readVarint(data, position);
+            int count = readCount(data, position, MIN_FIX_BYTES);
+
+            Fix fix = new Fix();
+            long time = 0, latitude = 0, longitude = 0, altitude = 0;
+            for (int i = 0; i < count; i++) {
+                String provider = strings[(int) readVarint(data, position)];
+                time += unzigzag(readVarint(data, position));
+                latitude += unzigzag(readVarint(data, position));
+                longitude += unzigzag(readVarint(data, position));
+                altitude += unzigzag(readVarint(data, position));
+                float bearing = (float) (readVarint(data, position) / BEARING_SCALE);
+                float speed = (float) (readVarint(data, position) / SPEED_SCALE);
+                sink.onFix(fix.set(provider, time, latitude / COORDINATE_SCALE, longitude / COORDINATE_SCALE,
+                        altitude / ALTITUDE_SCALE, 0, bearing, speed));
+            }
+            return count;
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated batch", e);
+        }
+    }
+
+    private int intern(String value) {
+        if (value == null) {
+            return 0;
+        }
+        int index = dictionary.indexOf(value);
+        if (index < 0) {
+            dictionary.add(value);
+            index = dictionary.size() - 1;
+        }
+        return index + 1;
+    }
+
+    private static float normalizeBearing(float bearing) {
+        float normalized = bearing % 360;
+        return normalized < 0 ? normalized + 360 : normalized;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Read the number of items that follow
+     *
+     * @param minBytes Minimum number of bytes an item takes
+     * @return Count
+     * @throws IllegalArgumentException If the remaining data cannot hold that many items
+     */
+    private static int readCount(byte[] data, int[] position, int minBytes) {
+        long count = readVarint(data, position);
+        if (count < 0 || count > (data.length - position[0]) / minBytes) {
+            throw new IllegalArgumentException("Count " + count + " exceeds the batch");
+        }
+        return (int) count;
+    }
+
+    private static long readVarint(byte[] data, int[] position) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = data[position[0]++];
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    /**
+     * Growable byte array
+     */
+    private static class Buffer {
+        byte[] data;
+        int length = 0;
+
+        Buffer(int capacity) {
+            data = new byte[capacity];
+        }
+
+        void writeVarint(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7fL) != 0) {
+                data[length++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            data[length++] = (byte) value;
+        }
+
+        void write(byte[] bytes, int offset, int count) {
+            ensureCapacity(count);
+            System.arraycopy(bytes, offset, data, length, count);
+            length += count;
+        }
+
+        byte[] toByteArray() {
+            byte[] result = new byte[length];
+            System.arraycopy(data, 0, result, 0, length);
+            return result;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (length + extra > data.length) {
+                byte[] grown = new byte[Math.max(data.length * 2, length + extra)];
+                System.arraycopy(data, 0, grown, 0, length);
+                data = grown;
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.kitty.geotracker;
+
+/**
+ * Stage between the location provider and the upload that may drop or modify GPS fixes
+ */
+public interface FixFilter {
+
+    /**
+     * Filter a fix. A filter may change the fix in place, e.g. to smooth its coordinates.
+     *
+     * @param fix Fix
+     * @return True if the fix should be passed on, false to drop it
+     */
+    boolean accept(Fix fix);
+
+    /**
+     * Forget all state, e.g. when a new session is joined
+     */
+    void reset();
+}
@@ -0,0 +1,51 @@
+package com.kitty.geotracker;
+
+import java.util.ArrayList;
+
+/**
+ * Runs a fix through a list of filters in order. A fix is only accepted if every filter accepts it;
+ * filters after the first rejecting one are not consulted.
+ */
+public class FixFilterChain implements FixFilter {
+
+    private final ArrayList<FixFilter> filters = new ArrayList<>();
+
+    /**
+     * Create a new chain
+     *
+     * @param filters Filters in the order they should be applied
+     */
+    public FixFilterChain(FixFilter... filters) {
+        for (FixFilter filter : filters) {
+            add(filter);
+        }
+    }
+
+    /**
+     * Append a filter to the chain
+     *
+     * @param filter Filter
+     * @return This chain
+     */
+    public FixFilterChain add(FixFilter filter) {
+        filters.add(filter);
+        return this;
+    }
+
+    @Override
+    public boolean accept(Fix fix) {
+        for (int i = 0; i < filters.size(); i++) {
+            if (!filters.get(i).accept(fix)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < filters.size(); i++) {
+            filters.get(i).reset();
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package com.kitty.geotracker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Append-only journal of GPS fixes that have not been acknowledged by Meteor yet.
+ * <p>
+ * Fixes are stored as fixed-size records in a ring of memory-mapped segment files, so every fix
+ * survives the process being killed as soon as {@link #append} returns. The read and write positions
+ * are kept in a small memory-mapped header file. Once the ring is full the oldest fixes are
+ * overwritten, which caps the disk space used by the journal at
+ * {@code segmentCount * recordsPerSegment * RECORD_SIZE} bytes.
+ * <p>
+ * Fixes are read back in order with {@link #peek} and only removed once they have been uploaded
+ * successfully, see {@link #commit}. Every fix has a sequence number that grows with each append, so an
+ * upload can be committed correctly even if the oldest fixes were overwritten or discarded meanwhile.
+ */
+public class FixJournal {
+
+    public static final int RECORD_SIZE = 48;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAGIC = 0x474a4e31; // "GJN1"
+    private static final int HEADER_SIZE = 512;
+    private static final int MAX_SESSION_BYTES = 256;
+
+    // Header layout
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_SEGMENT_COUNT = 4;
+    private static final int HEADER_RECORDS_PER_SEGMENT = 8;
+    private static final int HEADER_HEAD = 16;
+    private static final int HEADER_TAIL = 24;
+    private static final int HEADER_SESSION_LENGTH = 32;
+    private static final int HEADER_SESSION = 36;
+
+    // Record layout
+    private static final int RECORD_TIME = 0;
+    private static final int RECORD_LATITUDE = 8;
+    private static final int RECORD_LONGITUDE = 16;
+    private static final int RECORD_ALTITUDE = 24;
+    private static final int RECORD_BEARING = 32;
+    private static final int RECORD_SPEED = 36;
+    private static final int RECORD_PROVIDER = 40;
+    private static final int RECORD_ACCURACY = 44;
+
+    private static final String[] PROVIDERS = {null, "gps", "network", "passive", "fused"};
+
+    private final ByteBuffer header;
+    private final ByteBuffer[] segments;
+    private final int recordsPerSegment;
+    private final long capacity;
+    private final Fix scratch = new Fix();
+    private String session;
+    private long overwritten = 0;
+
+    private FixJournal(ByteBuffer header, ByteBuffer[] segments, int recordsPerSegment) {
+        this.header = header;
+        this.segments = segments;
+        this.recordsPerSegment = recordsPerSegment;
+        this.capacity = (long) segments.length * recordsPerSegment;
+
+        // Start over if the header does not describe this journal's geometry or is corrupt
+        long head = header.getLong(HEADER_HEAD), tail = header.getLong(HEADER_TAIL);
+        if (header.getInt(HEADER_MAGIC) != MAGIC
+                || header.getInt(HEADER_SEGMENT_COUNT) != segments.length
+                || header.getInt(HEADER_RECORDS_PER_SEGMENT) != recordsPerSegment
+                || tail < 0 || head < tail || head - tail > capacity) {
+            header.putInt(HEADER_MAGIC, MAGIC);
+            header.putInt(HEADER_SEGMENT_COUNT, segments.length);
+            header.putInt(HEADER_RECORDS_PER_SEGMENT, recordsPerSegment);
+            header.putLong(HEADER_HEAD, 0);
+            header.putLong(HEADER_TAIL, 0);
+            header.putInt(HEADER_SESSION_LENGTH, 0);
+        }
+        session = readSession();
+    }
+
+    /**
+     * Open (or create) a journal stored in the given directory
+     *
+     * @param directory         Directory holding the header and segment files
+     * @param segmentCount      Number of segment files in the ring
+     * @param recordsPerSegment Number of fixes per segment file
+     * @return Journal
+     * @throws IOException If the journal files could not be mapped
+     */
+    public static FixJournal open(File directory, int segmentCount, int recordsPerSegment) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create journal directory " + directory);
+        }
+
+        ByteBuffer header = map(new File(directory, "journal.hdr"), HEADER_SIZE);
+        ByteBuffer[] segments = new ByteBuffer[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = map(new File(directory, "journal-" + i + ".seg"), recordsPerSegment * RECORD_SIZE);
+        }
+        return new FixJournal(header, segments, recordsPerSegment);
+    }
+
+    /**
+     * Create a journal that only lives in memory. Used when the journal files are not available.
+     *
+     * @param segmentCount      Number of segments in the ring
+     * @param recordsPerSegment Number of fixes per segment
+     * @return Journal
+     */
+    public static FixJournal inMemory(int segmentCount, int recordsPerSegment) {
+        ByteBuffer[] segments = new ByteBuffer[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = ByteBuffer.allocate(recordsPerSegment * RECORD_SIZE);
+        }
+        return new FixJournal(ByteBuffer.allocate(HEADER_SIZE), segments, recordsPerSegment);
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // The mapping stays valid after the channel has been closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Get the session the journaled fixes belong to
+     *
+     * @return Session name or null
+     */
+    public synchronized String getSession() {
+        return session;
+    }
+
+    private String readSession() {
+        int length = header.getInt(HEADER_SESSION_LENGTH);
+        if (length <= 0 || length > MAX_SESSION_BYTES) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = header.get(HEADER_SESSION + i);
+        }
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Set the session that appended fixes belong to. Fixes still pending for a different session are
+     * discarded.
+     *
+     * @param session Session name
+     * @return Number of discarded fixes
+     */
+    public synchronized int setSession(String session) {
+        if (session == null ? this.session == null : session.equals(this.session)) {
+            return 0;
+        }
+
+        int discarded = size();
+        header.putLong(HEADER_TAIL, header.getLong(HEADER_HEAD));
+
+        byte[] bytes = session == null ? new byte[0] : session.getBytes(UTF_8);
+        if (bytes.length > MAX_SESSION_BYTES) {
+            throw new IllegalArgumentException("Session name is too long");
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            header.put(HEADER_SESSION + i, bytes[i]);
+        }
+        header.putInt(HEADER_SESSION_LENGTH, bytes.length);
+        this.session = session;
+        return discarded;
+    }
+
+    /**
+     * Append a fix to the journal, overwriting the oldest fix if the journal is full
+     *
+     * @param fix Fix
+     */
+    public synchronized void append(Fix fix) {
+        long head = header.getLong(HEADER_HEAD), tail = header.getLong(HEADER_TAIL);
+        if (head - tail >= capacity) {
+            header.putLong(HEADER_TAIL, tail + 1);
+            overwritten++;
+        }
+
+        ByteBuffer segment = segment(head);
+        int offset = offset(head);
+        segment.putLong(offset + RECORD_TIME, fix.time);
+        segment.putDouble(offset + RECORD_LATITUDE, fix.latitude);
+        segment.putDouble(offset + RECORD_LONGITUDE, fix.longitude);
+        segment.putDouble(offset + RECORD_ALTITUDE, fix.altitude);
+        segment.putFloat(offset + RECORD_BEARING, fix.bearing);
+        segment.putFloat(offset + RECORD_SPEED, fix.speed);
+        segment.put(offset + RECORD_PROVIDER, providerCode(fix.provider));
+        segment.putFloat(offset + RECORD_ACCURACY, fix.accuracy);
+
+        // Publish the record only after it has been written completely
+        header.putLong(HEADER_HEAD, head + 1);
+    }
+
+    /**
+     * Read the oldest fixes without removing them
+     *
+     * @param max  Maximum number of fixes to read
+     * @param sink Receives the fixes in order
+     * @return Number of fixes read
+     */
+    public synchronized int peek(int max, FixSink sink) {
+        long tail = header.getLong(HEADER_TAIL);
+        int count = (int) Math.min(max, header.getLong(HEADER_HEAD) - tail);
+        for (int i = 0; i < count; i++) {
+            ByteBuffer segment = segment(tail + i);
+            int offset = offset(tail + i);
+            sink.onFix(scratch.set(
+                    provider(segment.get(offset + RECORD_PROVIDER)),
+                    segment.getLong(offset + RECORD_TIME),
+                    segment.getDouble(offset + RECORD_LATITUDE),
+                    segment.getDouble(offset + RECORD_LONGITUDE),
+                    segment.getDouble(offset + RECORD_ALTITUDE),
+                    segment.getFloat(offset + RECORD_ACCURACY),
+                    segment.getFloat(offset + RECORD_BEARING),
+                    segment.getFloat(offset + RECORD_SPEED)
+            ));
+        }
+        return count;
+    }
+
+    /**
+     * Get the sequence number of the oldest pending fix, which is the first fix returned by the next
+     * {@link #peek}
+     *
+     * @return Sequence number
+     */
+    public synchronized long getTail() {
+        return header.getLong(HEADER_TAIL);
+    }
+
+    /**
+     * Remove fixes after they have been uploaded. Fixes that were overwritten or discarded since they
+     * were read are not counted twice, and fixes appended after the uploaded ones are never removed.
+     *
+     * @param tail  Sequence number of the first uploaded fix, as returned by {@link #getTail} before the
+     *              fixes were read
+     * @param count Number of uploaded fixes
+     */
+    public synchronized void commit(long tail, int count) {
+        long head = header.getLong(HEADER_HEAD);
+        header.putLong(HEADER_TAIL, Math.max(header.getLong(HEADER_TAIL), Math.min(head, tail + count)));
+    }
+
+    /**
+     * Get the number of pending fixes
+     *
+     * @return Number of fixes
+     */
+    public synchronized int size() {
+        return (int) (header.getLong(HEADER_HEAD) - header.getLong(HEADER_TAIL));
+    }
+
+    /**
+     * Check if there are no pending fixes
+     *
+     * @return Boolean
+     */
+    public synchronized boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Get the number of fixes that were overwritten because the journal was full
+     *
+     * @return Number of fixes
+     */
+    public synchronized long getOverwritten() {
+        return overwritten;
+    }
+
+    /**
+     * Write all changes through to storage
+     */
+    public synchronized void sync() {
+        force(header);
+        for (ByteBuffer segment : segments) {
+            force(segment);
+        }
+    }
+
+    private static void force(ByteBuffer buffer) {
+        if (buffer instanceof MappedByteBuffer) {
+            ((MappedByteBuffer) buffer).force();
+        }
+    }
+
+    private ByteBuffer segment(long sequence) {
+        return segments[(int) ((sequence / recordsPerSegment) % segments.length)];
+    }
+
+    private int offset(long sequence) {
+        return (int) (sequence % recordsPerSegment) * RECORD_SIZE;
+    }
+
+    private static byte providerCode(String provider) {
+        for (byte i = 1; i < PROVIDERS.length; i++) {
+            if (PROVIDERS[i].equals(provider)) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    private static String provider(byte code) {
+        return code > 0 && code < PROVIDERS.length ? PROVIDERS[code] : null;
+    }
+}
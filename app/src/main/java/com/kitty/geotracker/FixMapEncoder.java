@@ -0,0 +1,56 @@
+package com.kitty.geotracker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes a batch of GPS fixes as a list of field maps, the representation used when uploads are not
+ * compact.
+ * <p>
+ * Encode a batch by calling {@link #begin}, passing every fix to {@link #onFix} and calling
+ * {@link #finish}. The list and the maps are reused for every batch, so a batch must have been
+ * serialized before the next one is encoded. The DDP client serializes a method call before
+ * {@code Meteor.insert} returns. Numbers are still boxed, since the DDP client only takes objects.
+ */
+public class FixMapEncoder implements FixSink {
+
+    private final ArrayList<HashMap<String, Object>> maps = new ArrayList<>();
+    private final ArrayList<Map<String, Object>> fixes = new ArrayList<>();
+
+    /**
+     * Start encoding a new batch
+     */
+    public void begin() {
+        fixes.clear();
+    }
+
+    @Override
+    public void onFix(Fix fix) {
+        HashMap<String, Object> data;
+        if (fixes.size() < maps.size()) {
+            data = maps.get(fixes.size());
+        } else {
+            data = new HashMap<>();
+            maps.add(data);
+        }
+        data.put(MeteorController.COLLECTION_GPS_DATA_COLUMN_PROVIDER, fix.provider);
+        data.put(MeteorController.COLLECTION_GPS_DATA_COLUMN_TIME, fix.time);
+        data.put(MeteorController.COLLECTION_GPS_DATA_COLUMN_ALTITUDE, fix.altitude);
+        data.put(MeteorController.COLLECTION_GPS_DATA_COLUMN_BEARING, fix.bearing);
+        data.put(MeteorController.COLLECTION_GPS_DATA_COLUMN_LATITUDE, fix.latitude);
+        data.put(MeteorController.COLLECTION_GPS_DATA_COLUMN_LONGITUDE, fix.longitude);
+        data.put(MeteorController.COLLECTION_GPS_DATA_COLUMN_SPEED, fix.speed);
+        fixes.add(data);
+    }
+
+    /**
+     * Finish the batch
+     *
+     * @return Field maps of the fixes in order, valid until the next batch is started
+     */
+    public List<Map<String, Object>> finish() {
+        return fixes;
+    }
+}
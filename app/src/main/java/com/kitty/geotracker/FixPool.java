@@ -0,0 +1,45 @@
+package com.kitty.geotracker;
+
+/**
+ * Fixed-size pool of {@link Fix} records. Once the pool has been warmed up, acquiring and releasing
+ * fixes does not allocate.
+ */
+public class FixPool {
+
+    private final Fix[] fixes;
+    private int available = 0;
+
+    /**
+     * Create a new pool
+     *
+     * @param capacity Maximum number of idle fixes kept by the pool
+     */
+    public FixPool(int capacity) {
+        fixes = new Fix[capacity];
+    }
+
+    /**
+     * Take a fix from the pool, creating a new one if the pool is empty
+     *
+     * @return Fix with undefined contents
+     */
+    public synchronized Fix acquire() {
+        if (available == 0) {
+            return new Fix();
+        }
+        Fix fix = fixes[--available];
+        fixes[available] = null;
+        return fix;
+    }
+
+    /**
+     * Return a fix to the pool. The fix must not be used afterwards.
+     *
+     * @param fix Fix
+     */
+    public synchronized void release(Fix fix) {
+        if (available < fixes.length) {
+            fixes[available++] = fix;
+        }
+    }
+}
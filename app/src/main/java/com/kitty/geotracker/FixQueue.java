@@ -0,0 +1,123 @@
+package com.kitty.geotracker;
+
+/**
+ * Bounded hand-off queue between the thread receiving location updates and the thread filtering and
+ * uploading them.
+ * <p>
+ * Fixes are copied into preallocated slots, so neither side allocates. If the consumer falls behind
+ * and the queue is full, the oldest fix is dropped to keep the latest position fresh. The queue keeps
+ * track of how long fixes wait before they are taken out.
+ */
+public class FixQueue {
+
+    private final Fix[] slots;
+    private final long[] enqueuedAt;
+    private int head = 0, size = 0;
+
+    // Statistics
+    private long dropped = 0;
+    private long waitCount = 0;
+    private long waitTotal = 0;
+    private long waitMax = 0;
+
+    /**
+     * Create a new queue
+     *
+     * @param capacity Maximum number of waiting fixes
+     */
+    public FixQueue(int capacity) {
+        slots = new Fix[capacity];
+        enqueuedAt = new long[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Fix();
+        }
+    }
+
+    /**
+     * Copy a fix into the queue, dropping the oldest fix if the queue is full
+     *
+     * @param fix Fix
+     * @return True if the queue was empty before, i.e. the consumer needs to be woken up
+     */
+    public synchronized boolean offer(Fix fix) {
+        boolean wasEmpty = size == 0;
+        if (size == slots.length) {
+            head = (head + 1) % slots.length;
+            size--;
+            dropped++;
+        }
+
+        int index = (head + size) % slots.length;
+        slots[index].set(fix);
+        enqueuedAt[index] = System.nanoTime();
+        size++;
+        return wasEmpty;
+    }
+
+    /**
+     * Copy the oldest fix out of the queue
+     *
+     * @param out Fix the oldest fix is copied to
+     * @return False if the queue was empty
+     */
+    public synchronized boolean poll(Fix out) {
+        if (size == 0) {
+            return false;
+        }
+
+        out.set(slots[head]);
+        long wait = System.nanoTime() - enqueuedAt[head];
+        waitCount++;
+        waitTotal += wait;
+        waitMax = Math.max(waitMax, wait);
+
+        head = (head + 1) % slots.length;
+        size--;
+        return true;
+    }
+
+    /**
+     * Get the number of waiting fixes
+     *
+     * @return Number of fixes
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Get the number of fixes dropped because the queue was full
+     *
+     * @return Number of fixes
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Get the number of fixes taken out of the queue
+     *
+     * @return Number of fixes
+     */
+    public synchronized long getWaitCount() {
+        return waitCount;
+    }
+
+    /**
+     * Get the average time fixes spent in the queue
+     *
+     * @return Time in nanoseconds
+     */
+    public synchronized long getAverageWait() {
+        return waitCount == 0 ? 0 : waitTotal / waitCount;
+    }
+
+    /**
+     * Get the longest time a fix spent in the queue
+     *
+     * @return Time in nanoseconds
+     */
+    public synchronized long getMaxWait() {
+        return waitMax;
+    }
+}
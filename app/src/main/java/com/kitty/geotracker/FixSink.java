@@ -0,0 +1,9 @@
+package com.kitty.geotracker;
+
+/**
+ * Receives GPS fixes, e.g. when reading them back from the {@link FixJournal} or when decoding them
+ * with {@link FixCodec}. The fix is only valid for the duration of the call.
+ */
+public interface FixSink {
+    void onFix(Fix fix);
+}
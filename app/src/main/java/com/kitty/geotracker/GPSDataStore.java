@@ -0,0 +1,737 @@
+package com.kitty.geotracker;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import im.delight.android.ddp.Fields;
+import im.delight.android.ddp.db.DataStore;
+
+/**
+ * Columnar store for the documents of the GPS data collection.
+ * <p>
+ * Every fix is a row in parallel primitive columns. The user, session and provider strings are
+ * dictionary-encoded, so a row takes about 50 bytes instead of a generic document with a map of boxed
+ * values. Single fixes, {@link MeteorController#COLLECTION_GPS_DATA_COLUMN_FIXES} arrays and
+ * {@link FixCodec} batches are all expanded into rows when a document is added. A document maps to the
+ * range of rows its fixes were appended to.
+ * <p>
+ * Documents are either added from the parsed fields of the DDP client's data store interface or
+ * decoded straight from the JSON of a DDP message by {@link #add}, which writes the fields into the
+ * columns without building any intermediate objects.
+ * <p>
+ * Optional retention limits cap the number of documents, their age and the number of fixes kept per
+ * user. Documents beyond the limits are evicted oldest first, a batch at a time, by {@link #evict}.
+ * <p>
+ * Removed documents leave gaps that are compacted once they make up half of the rows. Documents are
+ * added on the DDP client's thread and read on the main thread, so all methods are synchronized.
+ */
+public class GPSDataStore implements DataStore {
+
+    private static final int INITIAL_CAPACITY = 256;
+    private final String TAG = getClass().getSimpleName();
+
+    // Columns
+    private double[] latitudes = new double[INITIAL_CAPACITY];
+    private double[] longitudes = new double[INITIAL_CAPACITY];
+    private double[] altitudes = new double[INITIAL_CAPACITY];
+    private long[] times = new long[INITIAL_CAPACITY];
+    private float[] bearings = new float[INITIAL_CAPACITY];
+    private float[] speeds = new float[INITIAL_CAPACITY];
+    private int[] users = new int[INITIAL_CAPACITY];
+    private int[] sessions = new int[INITIAL_CAPACITY];
+    private int[] providers = new int[INITIAL_CAPACITY];
+    private boolean[] removed = new boolean[INITIAL_CAPACITY];
+    private int rows = 0;
+    private int removedRows = 0;
+
+    // Dictionary of the string columns, code 0 is null
+    private final HashMap<String, Integer> codes = new HashMap<>();
+    private final List<String> strings = new ArrayList<>();
+
+    // First row, number of rows, session code and user code of every document in the order they were added
+    private final LinkedHashMap<String, int[]> documents = new LinkedHashMap<>();
+
+    // Documents of every user code, oldest first, and their number of fixes
+    private final HashMap<Integer, UserDocuments> userDocuments = new HashMap<>();
+
+    // Retention limits, 0 if unlimited
+    private int maxDocuments = 0;
+    private long maxAge = 0;
+    private int keepPerUser = 0;
+
+    private final Fix fix = new Fix();
+
+    // Streaming decoding
+    private final JsonFieldDecoder decoder = new JsonFieldDecoder(1024);
+    private final DocumentSink documentSink = new DocumentSink();
+
+    /**
+     * Receives the fixes of a document
+     */
+    public interface Visitor {
+        /**
+         * Called for every fix. The fix is reused, never keep a reference to it.
+         *
+         * @param userId User the fix belongs to
+         * @param fix    Fix
+         */
+        void onFix(String userId, Fix fix);
+    }
+
+    /**
+     * Receives the fixes of evicted documents
+     */
+    public interface EvictionListener extends Visitor {
+        /**
+         * Called for every evicted document after its fixes were passed to {@link #onFix}
+         *
+         * @param documentID Document id
+         */
+        void onEvicted(String documentID);
+    }
+
+    /**
+     * Documents of a single user
+     */
+    private static class UserDocuments {
+        final ArrayDeque<String> ids = new ArrayDeque<>();
+        int fixes = 0;
+    }
+
+    public GPSDataStore() {
+        strings.add(null);
+    }
+
+    /**
+     * Set the retention limits. Documents beyond the limits are removed by {@link #evict}.
+     *
+     * @param maxDocuments Maximum number of documents, 0 for no limit
+     * @param maxAge       Maximum age of the newest fix of a document in milliseconds, 0 for no limit
+     * @param keepPerUser  Number of newest fixes to keep per user, 0 for no limit. Whole documents are
+     *                     removed, so a few more fixes may be kept.
+     */
+    public synchronized void setRetention(int maxDocuments, long maxAge, int keepPerUser) {
+        this.maxDocuments = maxDocuments;
+        this.maxAge = maxAge;
+        this.keepPerUser = keepPerUser;
+    }
+
+    /**
+     * Remove documents beyond the retention limits, oldest first. Documents are checked in the order
+     * they were added, so a document that arrived late with old fixes is only removed by age once the
+     * documents added before it are gone.
+     *
+     * @param now          Current time in milliseconds since the epoch
+     * @param maxEvictions Maximum number of documents to remove in this call
+     * @param listener     Receives the fixes and ids of the removed documents
+     * @return Number of removed documents
+     */
+    public synchronized int evict(long now, int maxEvictions, EvictionListener listener) {
+        int evicted = 0;
+
+        // Oldest documents beyond the maximum number or age
+        Iterator<Map.Entry<String, int[]>> iterator = documents.entrySet().iterator();
+        while (evicted < maxEvictions && iterator.hasNext()) {
+            Map.Entry<String, int[]> document = iterator.next();
+            boolean tooMany = maxDocuments > 0 && documents.size() > maxDocuments;
+            boolean tooOld = maxAge > 0 && getNewestTime(document.getValue()) < now - maxAge;
+            if (!tooMany && !tooOld) {
+                break;
+            }
+            iterator.remove();
+            evict(document.getKey(), document.getValue(), listener);
+            evicted++;
+        }
+
+        // Oldest documents of users with more fixes than needed. A user keeps at least one document, so
+        // none are removed from the map while iterating it.
+        if (keepPerUser > 0) {
+            for (UserDocuments user : userDocuments.values()) {
+                while (evicted < maxEvictions && !user.ids.isEmpty()) {
+                    String documentID = user.ids.peekFirst();
+                    int[] range = documents.get(documentID);
+                    if (user.fixes - range[1] < keepPerUser) {
+                        break;
+                    }
+                    documents.remove(documentID);
+                    evict(documentID, range, listener);
+                    evicted++;
+                }
+            }
+        }
+        return evicted;
+    }
+
+    private void evict(String documentID, int[] range, EvictionListener listener) {
+        for (int row = range[0]; row < range[0] + range[1]; row++) {
+            listener.onFix(strings.get(users[row]), get(row));
+        }
+        removeDocument(documentID, range);
+        listener.onEvicted(documentID);
+    }
+
+    private long getNewestTime(int[] range) {
+        long newest = Long.MIN_VALUE;
+        for (int row = range[0]; row < range[0] + range[1]; row++) {
+            newest = Math.max(newest, times[row]);
+        }
+        return newest;
+    }
+
+    /**
+     * Register the rows of a document that were just appended
+     */
+    private void addDocument(String documentID, int first, int session, int user) {
+        documents.put(documentID, new int[]{first, rows - first, session, user});
+        UserDocuments userDocument = userDocuments.get(user);
+        if (userDocument == null) {
+            userDocument = new UserDocuments();
+            userDocuments.put(user, userDocument);
+        }
+        userDocument.ids.addLast(documentID);
+        userDocument.fixes += rows - first;
+    }
+
+    /**
+     * Remove the rows of a document that was taken out of the documents map
+     */
+    private void removeDocument(String documentID, int[] range) {
+        UserDocuments userDocument = userDocuments.get(range[3]);
+        userDocument.ids.removeFirstOccurrence(documentID);
+        userDocument.fixes -= range[1];
+        if (userDocument.ids.isEmpty()) {
+            userDocuments.remove(range[3]);
+        }
+        removeRows(range);
+    }
+
+    @Override
+    public synchronized void onDataAdded(String collectionName, String documentID, Fields newValues) {
+        if (documents.containsKey(documentID)) {
+            removeDocument(documentID, documents.remove(documentID));
+        }
+
+        int first = rows;
+        int user = encode(newValues.get(MeteorController.COLLECTION_GPS_DATA_COLUMN_USER_ID));
+        int session = encode(newValues.get(MeteorController.COLLECTION_GPS_DATA_COLUMN_SESSION_ID));
+        try {
+            Object packed = newValues.get(MeteorController.COLLECTION_GPS_DATA_COLUMN_PACKED);
+            Object fixes = newValues.get(MeteorController.COLLECTION_GPS_DATA_COLUMN_FIXES);
+            if (packed instanceof Map) {
+                appendPacked((Map<?, ?>) packed, user, session);
+            } else if (fixes instanceof List) {
+                for (Object fix : (List<?>) fixes) {
+                    if (!(fix instanceof Map)) {
+                        throw new IllegalArgumentException("Fix is not an object");
+                    }
+                    append((Map<?, ?>) fix, user, session);
+                }
+            } else {
+                append(newValues, user, session);
+            }
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Invalid GPS data in document \"" + documentID + "\": " + e.getMessage());
+            rows = first;
+            return;
+        }
+        addDocument(documentID, first, session, user);
+    }
+
+    /**
+     * Decode a document from the JSON fields of a DDP added message and append its fixes
+     *
+     * @param documentID Document id
+     * @param json       JSON object with the fields of the document
+     * @return Number of fixes added, -1 if the document is invalid
+     */
+    public synchronized int add(String documentID, String json) {
+        if (documents.containsKey(documentID)) {
+            removeDocument(documentID, documents.remove(documentID));
+        }
+
+        int first = rows;
+        try {
+            documentSink.reset();
+            decoder.decodeObject(json, documentSink);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Invalid GPS data in document \"" + documentID + "\": " + e.getMessage());
+            rows = first;
+            return -1;
+        }
+
+        // The ids may follow the fixes in the document
+        for (int row = first; row < rows; row++) {
+            users[row] = documentSink.user;
+            sessions[row] = documentSink.session;
+        }
+        addDocument(documentID, first, documentSink.session, documentSink.user);
+        return rows - first;
+    }
+
+    @Override
+    public synchronized void onDataChanged(String collectionName, String documentID, Fields updatedValues,
+                                           Fields removedValues) {
+        // Locations are never changed after they were inserted
+        Log.w(TAG, "Ignoring change of GPS data document \"" + documentID + "\"");
+    }
+
+    @Override
+    public synchronized void onDataRemoved(String collectionName, String documentID) {
+        int[] range = documents.remove(documentID);
+        if (range != null) {
+            removeDocument(documentID, range);
+        }
+    }
+
+    /**
+     * Check whether a document has been added
+     *
+     * @param documentID Document id
+     * @return True if the document is in the store
+     */
+    public synchronized boolean contains(String documentID) {
+        return documents.containsKey(documentID);
+    }
+
+    /**
+     * Get the session a document belongs to
+     *
+     * @param documentID Document id
+     * @return Session or null if the document is unknown or has no session
+     */
+    public synchronized String getSession(String documentID) {
+        int[] range = documents.get(documentID);
+        return range != null ? strings.get(range[2]) : null;
+    }
+
+    /**
+     * Pass the fixes of a document to a visitor
+     *
+     * @param documentID Document id
+     * @param visitor    Receives the fixes
+     * @return Number of fixes, -1 if the document is unknown
+     */
+    public synchronized int visit(String documentID, Visitor visitor) {
+        int[] range = documents.get(documentID);
+        if (range == null) {
+            return -1;
+        }
+        for (int row = range[0]; row < range[0] + range[1]; row++) {
+            visitor.onFix(strings.get(users[row]), get(row));
+        }
+        return range[1];
+    }
+
+    /**
+     * Pass all fixes of a session to a visitor in the order they were added
+     *
+     * @param sessionId Session
+     * @param visitor   Receives the fixes
+     * @return Number of fixes
+     */
+    public synchronized int visitSession(String sessionId, Visitor visitor) {
+        Integer session = codes.get(sessionId);
+        if (session == null) {
+            return 0;
+        }
+        int count = 0;
+        for (int row = 0; row < rows; row++) {
+            if (!removed[row] && sessions[row] == session) {
+                visitor.onFix(strings.get(users[row]), get(row));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get the time of the newest fix of a session
+     *
+     * @param sessionId Session
+     * @return Time in milliseconds since the epoch, Long.MIN_VALUE if the session has no fixes
+     */
+    public synchronized long getNewestTime(String sessionId) {
+        Integer session = codes.get(sessionId);
+        long newest = Long.MIN_VALUE;
+        if (session == null) {
+            return newest;
+        }
+        for (int row = 0; row < rows; row++) {
+            if (!removed[row] && sessions[row] == session) {
+                newest = Math.max(newest, times[row]);
+            }
+        }
+        return newest;
+    }
+
+    /**
+     * Get the number of fixes in the store
+     *
+     * @return Number of fixes
+     */
+    public synchronized int size() {
+        return rows - removedRows;
+    }
+
+    /**
+     * Get the number of documents in the store
+     *
+     * @return Number of documents
+     */
+    public synchronized int getDocumentCount() {
+        return documents.size();
+    }
+
+    /**
+     * Remove all fixes
+     */
+    public synchronized void clear() {
+        documents.clear();
+        userDocuments.clear();
+        rows = 0;
+        removedRows = 0;
+    }
+
+    private Fix get(int row) {
+        return fix.set(strings.get(providers[row]), times[row], latitudes[row], longitudes[row], altitudes[row], 0,
+                bearings[row], speeds[row]);
+    }
+
+    /**
+     * Append a fix from a document or an entry of its fixes array
+     */
+    private void append(Map<?, ?> values, int user, int session) {
+        Object latitude = values.get(MeteorController.COLLECTION_GPS_DATA_COLUMN_LATITUDE);
+        Object longitude = values.get(MeteorController.COLLECTION_GPS_DATA_COLUMN_LONGITUDE);
+        if (!(latitude instanceof Number) || !(longitude instanceof Number)) {
+            throw new IllegalArgumentException("Missing coordinates");
+        }
+        Object time = values.get(MeteorController.COLLECTION_GPS_DATA_COLUMN_TIME);
+        append(user, session, encode(values.get(MeteorController.COLLECTION_GPS_DATA_COLUMN_PROVIDER)),
+                time instanceof Number ? ((Number) time).longValue() : System.currentTimeMillis(),
+                ((Number) latitude).doubleValue(), ((Number) longitude).doubleValue(),
+                number(values.get(MeteorController.COLLECTION_GPS_DATA_COLUMN_ALTITUDE)),
+                (float) number(values.get(MeteorController.COLLECTION_GPS_DATA_COLUMN_BEARING)),
+                (float) number(values.get(MeteorController.COLLECTION_GPS_DATA_COLUMN_SPEED)));
+    }
+
+    /**
+     * Append the fixes of a {@link FixCodec} batch stored in an EJSON binary field
+     */
+    private void appendPacked(Map<?, ?> packed, int user, int session) {
+        Object data = packed.get(MeteorController.EJSON_BINARY);
+        if (!(data instanceof String)) {
+            throw new IllegalArgumentException("Packed fixes are not binary");
+        }
+        appendPacked((String) data, user, session);
+    }
+
+    private void appendPacked(String data, final int user, final int session) {
+        FixCodec.decode(Base64Decoder.decode(data), new FixSink() {
+            @Override
+            public void onFix(Fix fix) {
+                append(user, session, encode(fix.provider), fix.time, fix.latitude, fix.longitude, fix.altitude,
+                        fix.bearing, fix.speed);
+            }
+        });
+    }
+
+    private void append(int user, int session, int provider, long time, double latitude, double longitude,
+                        double altitude, float bearing, float speed) {
+        if (rows == times.length) {
+            grow(rows * 2);
+        }
+        users[rows] = user;
+        sessions[rows] = session;
+        providers[rows] = provider;
+        times[rows] = time;
+        latitudes[rows] = latitude;
+        longitudes[rows] = longitude;
+        altitudes[rows] = altitude;
+        bearings[rows] = bearing;
+        speeds[rows] = speed;
+        removed[rows] = false;
+        rows++;
+    }
+
+    private void removeRows(int[] range) {
+        for (int row = range[0]; row < range[0] + range[1]; row++) {
+            removed[row] = true;
+        }
+        removedRows += range[1];
+        if (removedRows > rows / 2) {
+            compact();
+        }
+    }
+
+    /**
+     * Move the rows of all documents to the front, closing the gaps left by removed documents
+     */
+    private void compact() {
+        int to = 0;
+        int[] newIndex = new int[rows];
+        for (int from = 0; from < rows; from++) {
+            newIndex[from] = to;
+            if (removed[from]) {
+                continue;
+            }
+            users[to] = users[from];
+            sessions[to] = sessions[from];
+            providers[to] = providers[from];
+            times[to] = times[from];
+            latitudes[to] = latitudes[from];
+            longitudes[to] = longitudes[from];
+            altitudes[to] = altitudes[from];
+            bearings[to] = bearings[from];
+            speeds[to] = speeds[from];
+            removed[to] = false;
+            to++;
+        }
+        for (int[] range : documents.values()) {
+            range[0] = range[1] > 0 ? newIndex[range[0]] : to;
+        }
+        rows = to;
+        removedRows = 0;
+    }
+
+    private void grow(int capacity) {
+        latitudes = copy(latitudes, capacity);
+        longitudes = copy(longitudes, capacity);
+        altitudes = copy(altitudes, capacity);
+        times = copy(times, capacity);
+        bearings = copy(bearings, capacity);
+        speeds = copy(speeds, capacity);
+        users = copy(users, capacity);
+        sessions = copy(sessions, capacity);
+        providers = copy(providers, capacity);
+        boolean[] grown = new boolean[capacity];
+        System.arraycopy(removed, 0, grown, 0, rows);
+        removed = grown;
+    }
+
+    /**
+     * Collects the fields of a single fix
+     */
+    private class FixFieldSink implements FieldSink {
+        int provider;
+        long time;
+        double latitude, longitude, altitude;
+        float bearing, speed;
+        boolean hasTime, hasLatitude, hasLongitude;
+
+        void reset() {
+            provider = 0;
+            altitude = 0;
+            bearing = 0;
+            speed = 0;
+            hasTime = false;
+            hasLatitude = false;
+            hasLongitude = false;
+        }
+
+        /**
+         * Append the collected fix
+         */
+        void append() {
+            if (!hasLatitude || !hasLongitude) {
+                throw new IllegalArgumentException("Missing coordinates");
+            }
+            GPSDataStore.this.append(0, 0, provider, hasTime ? time : System.currentTimeMillis(), latitude,
+                    longitude, altitude, bearing, speed);
+        }
+
+        @Override
+        public void onString(String name, String value) {
+            if (MeteorController.COLLECTION_GPS_DATA_COLUMN_PROVIDER.equals(name)) {
+                provider = encode(value);
+            }
+        }
+
+        @Override
+        public void onNumber(String name, double value) {
+            if (name == null) {
+                return;
+            }
+            switch (name) {
+                case MeteorController.COLLECTION_GPS_DATA_COLUMN_LATITUDE:
+                    latitude = value;
+                    hasLatitude = true;
+                    break;
+                case MeteorController.COLLECTION_GPS_DATA_COLUMN_LONGITUDE:
+                    longitude = value;
+                    hasLongitude = true;
+                    break;
+                case MeteorController.COLLECTION_GPS_DATA_COLUMN_TIME:
+                    time = (long) value;
+                    hasTime = true;
+                    break;
+                case MeteorController.COLLECTION_GPS_DATA_COLUMN_ALTITUDE:
+                    altitude = value;
+                    break;
+                case MeteorController.COLLECTION_GPS_DATA_COLUMN_BEARING:
+                    bearing = (float) value;
+                    break;
+                case MeteorController.COLLECTION_GPS_DATA_COLUMN_SPEED:
+                    speed = (float) value;
+                    break;
+            }
+        }
+
+        @Override
+        public void onBoolean(String name, boolean value) {
+        }
+
+        @Override
+        public void onNull(String name) {
+        }
+
+        @Override
+        public FieldSink onObject(String name) {
+            return null;
+        }
+
+        @Override
+        public FieldSink onArray(String name) {
+            return null;
+        }
+
+        @Override
+        public void onEnd() {
+            append();
+        }
+    }
+
+    /**
+     * Receives the fields of a GPS data document. Batches are appended as they are read, a single fix
+     * once the document ends.
+     */
+    private class DocumentSink extends FixFieldSink {
+        int user, session;
+        boolean batch;
+        final FixFieldSink fixSink = new FixFieldSink();
+
+        /**
+         * Passes every fix of the fixes array to the fix sink
+         */
+        final FieldSink fixesSink = new FixFieldSink() {
+            @Override
+            public FieldSink onObject(String name) {
+                fixSink.reset();
+                return fixSink;
+            }
+
+            @Override
+            public void onEnd() {
+            }
+        };
+
+        /**
+         * Decodes the EJSON binary field of a {@link FixCodec} batch
+         */
+        final FieldSink packedSink = new FixFieldSink() {
+            @Override
+            public void onString(String name, String value) {
+                if (MeteorController.EJSON_BINARY.equals(name)) {
+                    appendPacked(value, 0, 0);
+                }
+            }
+
+            @Override
+            public void onEnd() {
+            }
+        };
+
+        @Override
+        void reset() {
+            super.reset();
+            user = 0;
+            session = 0;
+            batch = false;
+        }
+
+        @Override
+        public void onString(String name, String value) {
+            if (MeteorController.COLLECTION_GPS_DATA_COLUMN_USER_ID.equals(name)) {
+                user = encode(value);
+            } else if (MeteorController.COLLECTION_GPS_DATA_COLUMN_SESSION_ID.equals(name)) {
+                session = encode(value);
+            } else {
+                super.onString(name, value);
+            }
+        }
+
+        @Override
+        public FieldSink onObject(String name) {
+            if (MeteorController.COLLECTION_GPS_DATA_COLUMN_PACKED.equals(name)) {
+                batch = true;
+                return packedSink;
+            }
+            return null;
+        }
+
+        @Override
+        public FieldSink onArray(String name) {
+            if (MeteorController.COLLECTION_GPS_DATA_COLUMN_FIXES.equals(name)) {
+                batch = true;
+                return fixesSink;
+            }
+            return null;
+        }
+
+        @Override
+        public void onEnd() {
+            if (!batch) {
+                append();
+            }
+        }
+    }
+
+    private int encode(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        String string = value.toString();
+        Integer code = codes.get(string);
+        if (code == null) {
+            code = strings.size();
+            codes.put(string, code);
+            strings.add(string);
+        }
+        return code;
+    }
+
+    private static double number(Object value) {
+        return value instanceof Number ? ((Number) value).doubleValue() : 0;
+    }
+
+    private double[] copy(double[] array, int capacity) {
+        double[] grown = new double[capacity];
+        System.arraycopy(array, 0, grown, 0, rows);
+        return grown;
+    }
+
+    private long[] copy(long[] array, int capacity) {
+        long[] grown = new long[capacity];
+        System.arraycopy(array, 0, grown, 0, rows);
+        return grown;
+    }
+
+    private float[] copy(float[] array, int capacity) {
+        float[] grown = new float[capacity];
+        System.arraycopy(array, 0, grown, 0, rows);
+        return grown;
+    }
+
+    private int[] copy(int[] array, int capacity) {
+        int[] grown = new int[capacity];
+        System.arraycopy(array, 0, grown, 0, rows);
+        return grown;
+    }
+}
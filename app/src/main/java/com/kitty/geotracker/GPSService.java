@@ -4,19 +4,69 @@ package com.kitty.geotracker;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Process;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
-public class GPSService extends Service implements LocationListener {
+import java.io.File;
+import java.io.IOException;
+
+public class GPSService extends Service implements LocationListener, LocationSource {
 
     private MeteorController meteorController;
     private LocationManager locationManager;
-    private static final long MIN_UPDATE_INTERVAL = 1000; // in milliseconds
+    private FixJournal journal;
+    private FixFilter filter;
+    private final FixPool fixPool = new FixPool(FIX_POOL_SIZE);
+    private final FixQueue fixQueue = new FixQueue(FIX_QUEUE_CAPACITY);
+    private final Fix pipelineFix = new Fix();
+    private HandlerThread locationThread;
+    private Handler locationHandler, pipelineHandler;
+    private DutyCycleScheduler scheduler;
+    private static final int JOURNAL_SEGMENTS = 4;
+    private static final int JOURNAL_RECORDS_PER_SEGMENT = 2048;
+    private static final int FIX_POOL_SIZE = 4;
+    private static final int FIX_QUEUE_CAPACITY = 64;
+    private static final int QUEUE_STATS_INTERVAL = 60; // in fixes
+
+    // Duty cycling
+    private static final long IDLE_DELAY = 60000; // in milliseconds
+    private static final long STATIONARY_DELAY = 300000; // in milliseconds
+    private static final double RESUME_DISTANCE = 50; // in metres
+    private static final long DUTY_CYCLE_CHECK_INTERVAL = 15000; // in milliseconds
+
+    // Trajectory simplification
+    public static final String PREF_SIMPLIFY_ERROR_BOUND = "simplify_error_bound";
+    public static final String PREF_SIMPLIFY_HEARTBEAT = "simplify_heartbeat";
+    private static final long DEFAULT_SIMPLIFY_ERROR_BOUND = 10; // in metres
+    private static final long DEFAULT_SIMPLIFY_HEARTBEAT = 30000; // in milliseconds
+    private static final float SIMPLIFY_MAX_SPEED_DELTA = 2; // in metres per second
+    private static final float SIMPLIFY_MAX_BEARING_DELTA = 30; // in degrees
+
+    // Kalman filter
+    private static final double KALMAN_PROCESS_NOISE = 3; // in m^2/s^3
+    private static final double KALMAN_SPEED_NOISE = 1; // in metres per second
+    private static final double KALMAN_GATE = 13.8; // chi-squared, 2 degrees of freedom, p = 0.001
+    private static final int KALMAN_MAX_REJECTIONS = 3;
+
+    // Adaptive sampling
+    private static final long SAMPLING_BASE_INTERVAL = 1000; // in milliseconds
+
+    // Metrics
+    private static final Metrics.Counter FIXES_CAPTURED = Metrics.counter("fixes.captured");
+    private static final Metrics.Counter FIXES_FILTERED = Metrics.counter("fixes.filtered");
+    private static final Metrics.Histogram FIX_PIPELINE_TIME = Metrics.histogram("fixes.pipeline");
+
     private final String TAG = getClass().getSimpleName();
 
     @Override
@@ -29,13 +79,73 @@ public class GPSService extends Service implements LocationListener {
             MeteorController.createInstance(this);
         }
         meteorController = MeteorController.getInstance();
+
+        // Open the journal that keeps locations until they have been uploaded
+        try {
+            journal = FixJournal.open(new File(getFilesDir(), "journal"), JOURNAL_SEGMENTS,
+                    JOURNAL_RECORDS_PER_SEGMENT);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open location journal, locations will only be kept in memory", e);
+            journal = FixJournal.inMemory(JOURNAL_SEGMENTS, JOURNAL_RECORDS_PER_SEGMENT);
+        }
+        meteorController.setJournal(journal);
+
+        // Smooth locations and reject outliers first, then thin them out while the upload falls behind
+        // and drop locations that add no information
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        filter = createFilter(meteorController.getUploadPressure(),
+                MeteorController.getLongPreference(prefs, PREF_SIMPLIFY_ERROR_BOUND, DEFAULT_SIMPLIFY_ERROR_BOUND),
+                MeteorController.getLongPreference(prefs, PREF_SIMPLIFY_HEARTBEAT, DEFAULT_SIMPLIFY_HEARTBEAT),
+                new AdaptiveSampler.Clock() {
+                    @Override
+                    public long now() {
+                        return SystemClock.elapsedRealtime();
+                    }
+                });
+
+        // Location updates are received on their own thread and handed off to the upload thread, which
+        // does the filtering and uploading. Neither runs on the main thread.
+        locationThread = new HandlerThread("GPSService-location", Process.THREAD_PRIORITY_BACKGROUND);
+        locationThread.start();
+        locationHandler = new Handler(locationThread.getLooper());
+        pipelineHandler = new Handler(meteorController.getUploadLooper());
+
+        // Request locations less often while the participant is not moving
         locationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
+        scheduler = new DutyCycleScheduler(this, IDLE_DELAY, STATIONARY_DELAY, RESUME_DISTANCE);
+    }
+
+    /**
+     * Create the filters locations pass before they are uploaded
+     *
+     * @param pressure   Upload pressure the sampling adapts to
+     * @param errorBound Trajectory error bound in metres
+     * @param heartbeat  Maximum time between kept locations in milliseconds
+     * @param clock      Clock of the sampler
+     * @return Filter
+     */
+    static FixFilter createFilter(UploadPressure pressure, long errorBound, long heartbeat,
+                                  AdaptiveSampler.Clock clock) {
+        TrajectorySimplifier simplifier = new TrajectorySimplifier(errorBound, heartbeat, SIMPLIFY_MAX_SPEED_DELTA,
+                SIMPLIFY_MAX_BEARING_DELTA);
+        return new FixFilterChain(
+                new KalmanFixFilter(KALMAN_PROCESS_NOISE, KALMAN_SPEED_NOISE, KALMAN_GATE, KALMAN_MAX_REJECTIONS),
+                new AdaptiveSampler(pressure, SAMPLING_BASE_INTERVAL, simplifier, clock),
+                simplifier
+        );
     }
 
     @Override
     public void onDestroy() {
-        locationManager.removeUpdates(this);
+        locationHandler.removeCallbacks(checkDutyCycle);
+        scheduler.stop();
+        locationThread.quitSafely();
         Log.d(TAG, "Stopped location updates");
+        logQueueStats();
+
+        // Drop the fixes still queued instead of journaling them after the journal was synced
+        pipelineHandler.removeCallbacks(drainQueue);
+        journal.sync();
         super.onDestroy();
     }
 
@@ -43,7 +153,9 @@ public class GPSService extends Service implements LocationListener {
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.d(TAG, "Service started");
         try {
-            locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, MIN_UPDATE_INTERVAL, 0, this);
+            scheduler.start(SystemClock.elapsedRealtime());
+            locationHandler.removeCallbacks(checkDutyCycle);
+            locationHandler.postDelayed(checkDutyCycle, DUTY_CYCLE_CHECK_INTERVAL);
             Log.d(TAG, "Started location updates");
         } catch (SecurityException e) {
             Log.e(TAG, "Could not start service due to missing permissions. Stopping...");
@@ -59,10 +171,101 @@ public class GPSService extends Service implements LocationListener {
         return null;
     }
 
+    @Override
+    public boolean isProviderEnabled(String provider) {
+        return locationManager.isProviderEnabled(provider);
+    }
+
+    @Override
+    public void requestUpdates(String provider, long interval, float minDistance) {
+        Log.d(TAG, "Requesting \"" + provider + "\" locations every " + interval + " ms / " + minDistance + " m");
+        locationManager.requestLocationUpdates(provider, interval, minDistance, this, locationThread.getLooper());
+    }
+
+    @Override
+    public void removeUpdates() {
+        locationManager.removeUpdates(this);
+    }
+
+    /**
+     * Lets the duty cycle scheduler switch to a slower mode while no locations arrive
+     */
+    private final Runnable checkDutyCycle = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                scheduler.checkTimeouts(SystemClock.elapsedRealtime());
+            } catch (SecurityException e) {
+                Log.e(TAG, "Could not change location updates due to missing permissions");
+            }
+            locationHandler.postDelayed(this, DUTY_CYCLE_CHECK_INTERVAL);
+        }
+    };
+
+    /**
+     * Receives location updates on the location thread and hands them off to the upload thread
+     *
+     * @param location Location
+     */
     @Override
     public void onLocationChanged(Location location) {
-        Log.d(TAG, "Posting location: " + location.toString());
-        meteorController.postLocation(location);
+        FIXES_CAPTURED.increment();
+        Fix fix = fixPool.acquire().set(location.getProvider(), location.getTime(), location.getLatitude(),
+                location.getLongitude(), location.getAltitude(), location.getAccuracy(), location.getBearing(),
+                location.getSpeed()).setMotion(location.hasSpeed(), location.hasBearing());
+        try {
+            try {
+                scheduler.onFix(fix, SystemClock.elapsedRealtime());
+            } catch (SecurityException e) {
+                Log.e(TAG, "Could not change location updates due to missing permissions");
+            }
+
+            if (fixQueue.offer(fix)) {
+                pipelineHandler.post(drainQueue);
+            }
+        } finally {
+            fixPool.release(fix);
+        }
+    }
+
+    /**
+     * Filters and posts all queued locations. Runs on the upload thread.
+     */
+    private final Runnable drainQueue = new Runnable() {
+        @Override
+        public void run() {
+            while (fixQueue.poll(pipelineFix)) {
+                // Skip outliers and locations that do not add any information to the trajectory
+                long start = Metrics.startTime();
+                if (filter.accept(pipelineFix)) {
+                    meteorController.postLocation(pipelineFix);
+                } else {
+                    FIXES_FILTERED.increment();
+                }
+                FIX_PIPELINE_TIME.recordSince(start);
+
+                if (fixQueue.getWaitCount() % QUEUE_STATS_INTERVAL == 0) {
+                    logQueueStats();
+                }
+            }
+        }
+    };
+
+    /**
+     * Log how long locations waited to be processed
+     */
+    private void logQueueStats() {
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            UploadPressure pressure = meteorController.getUploadPressure();
+            long now = SystemClock.elapsedRealtime();
+            Log.d(TAG, "Location queue: " + fixQueue.getWaitCount() + " processed, "
+                    + fixQueue.getDropped() + " dropped, "
+                    + fixQueue.getAverageWait() / 1000 + " us average wait, "
+                    + fixQueue.getMaxWait() / 1000 + " us max wait; upload queue: "
+                    + pressure.getQueueDepth() + " pending, "
+                    + pressure.getRoundTripTime(now) + " ms round trip, sampling scale "
+                    + pressure.getScale(now));
+        }
     }
 
     @Override
@@ -0,0 +1,151 @@
+package com.kitty.geotracker;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.heatmaps.WeightedLatLng;
+
+/**
+ * Limits a heatmap to the points of the last few minutes.
+ * <p>
+ * Points are kept in a fixed-capacity ring buffer of primitive arrays in the order they arrive. Points
+ * older than the window are removed from the heatmap a few at a time by {@link #expire}, so memory
+ * and tile rendering cost depend on the window instead of the length of the session. If the buffer is
+ * full, the oldest point is removed early.
+ */
+public class HeatmapWindow {
+
+    private final IncrementalHeatmapTileProvider provider;
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private final long[] times;
+    private final WeightedLatLng[] points;
+    private long window;
+    private int head = 0, size = 0;
+
+    /**
+     * Create a new window
+     *
+     * @param provider Heatmap the points are shown on
+     * @param capacity Maximum number of points in the window
+     * @param window   Length of the window in milliseconds
+     */
+    public HeatmapWindow(IncrementalHeatmapTileProvider provider, int capacity, long window) {
+        this.provider = provider;
+        this.latitudes = new double[capacity];
+        this.longitudes = new double[capacity];
+        this.times = new long[capacity];
+        this.points = new WeightedLatLng[capacity];
+        this.window = window;
+    }
+
+    /**
+     * Set the length of the window. Takes effect with the next call to {@link #expire}.
+     *
+     * @param window Length of the window in milliseconds
+     */
+    public void setWindow(long window) {
+        this.window = window;
+    }
+
+    /**
+     * Get the length of the window
+     *
+     * @return Length in milliseconds
+     */
+    public long getWindow() {
+        return window;
+    }
+
+    /**
+     * Add a point to the heatmap
+     *
+     * @param latitude  Latitude
+     * @param longitude Longitude
+     * @param time      Time of the point in milliseconds since the epoch
+     */
+    public void add(double latitude, double longitude, long time) {
+        if (size == points.length) {
+            removeOldest();
+        }
+
+        int index = (head + size) % points.length;
+        latitudes[index] = latitude;
+        longitudes[index] = longitude;
+        times[index] = time;
+        points[index] = provider.add(new LatLng(latitude, longitude));
+        size++;
+    }
+
+    /**
+     * Remove points that are older than the window from the heatmap
+     *
+     * @param now       Current time in milliseconds since the epoch
+     * @param maxPoints Maximum number of points to remove in this call
+     * @return Number of removed points
+     */
+    public int expire(long now, int maxPoints) {
+        long cutoff = now - window;
+        int removed = 0;
+        while (size > 0 && removed < maxPoints && times[head] < cutoff) {
+            removeOldest();
+            removed++;
+        }
+        return removed;
+    }
+
+    /**
+     * Forget all points without touching the heatmap, e.g. after it was cleared
+     */
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            points[(head + i) % points.length] = null;
+        }
+        head = 0;
+        size = 0;
+    }
+
+    /**
+     * Get the number of points in the window
+     *
+     * @return Number of points
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the latitude of a point
+     *
+     * @param i Index between 0 (oldest) and {@link #size()} - 1 (newest)
+     * @return Latitude
+     */
+    public double getLatitude(int i) {
+        return latitudes[(head + i) % points.length];
+    }
+
+    /**
+     * Get the longitude of a point
+     *
+     * @param i Index between 0 (oldest) and {@link #size()} - 1 (newest)
+     * @return Longitude
+     */
+    public double getLongitude(int i) {
+        return longitudes[(head + i) % points.length];
+    }
+
+    /**
+     * Get the time of a point
+     *
+     * @param i Index between 0 (oldest) and {@link #size()} - 1 (newest)
+     * @return Time in milliseconds since the epoch
+     */
+    public long getTime(int i) {
+        return times[(head + i) % points.length];
+    }
+
+    private void removeOldest() {
+        provider.remove(points[head]);
+        points[head] = null;
+        head = (head + 1) % points.length;
+        size--;
+    }
+}
@@ -0,0 +1,642 @@
+package com.kitty.geotracker;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.Tile;
+import com.google.android.gms.maps.model.TileProvider;
+import com.google.maps.android.geometry.Bounds;
+import com.google.maps.android.geometry.Point;
+import com.google.maps.android.heatmaps.WeightedLatLng;
+import com.google.maps.android.quadtree.PointQuadTree;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Heatmap tile provider that points can be added to and removed from one at a time.
+ * <p>
+ * {@link com.google.maps.android.heatmaps.HeatmapTileProvider} rebuilds its whole index whenever the
+ * data changes. This provider keeps the points in a {@link PointQuadTree} and a {@link DensityGrid}
+ * instead, so adding a point costs O(log n). Both are updated on a background thread, callers only
+ * queue the change. Rendered tiles are kept in a cache and adding or removing a point only removes the
+ * cached tiles whose bounds (plus the heatmap radius) contain it. The tile overlay's own cache can only
+ * be cleared completely, which the invalidation listener should do. All unaffected tiles are then
+ * served from this cache without being rendered again. The provider remembers which tiles it served
+ * since the listener was last called, and only calls it once one of them changed at a zoom level
+ * close to the one set with {@link #setVisibleZoom}. Changes at other zoom levels are kept until the
+ * map is zoomed there.
+ * <p>
+ * Up to {@link #GRID_MAX_ZOOM}, tiles are rendered from the density grid: its cells are blurred with a
+ * separable kernel and scaled up to the tile size, so rendering cost depends on the tile resolution
+ * only. Beyond that zoom level tiles hold few points and are rendered from the points in the quadtree.
+ * <p>
+ * Intensities are normalized per zoom level. Up to {@link #GRID_MAX_ZOOM} the grid's heaviest cell
+ * is used, so every tile of a level uses the same scale no matter which tile is rendered first. Beyond
+ * that the highest intensity rendered so far is used. Once the scale of a level changed by more than
+ * {@link #MAX_INTENSITY_GROWTH}, all cached tiles of the zoom level are rendered again.
+ */
+public class IncrementalHeatmapTileProvider implements TileProvider, SessionReplay.Heatmap {
+
+    private static final int TILE_DIM = 512;
+    private static final int MAX_ZOOM = 22;
+    private static final int COLOR_MAP_SIZE = 1000;
+    private static final double MAX_INTENSITY_GROWTH = 1.5;
+    private static final int GRID_MAX_ZOOM = 16;
+    private static final int CELL_DIM = TILE_DIM / DensityGrid.CELLS; // in pixels
+    private static final Metrics.Histogram TILE_RENDER_TIME = Metrics.histogram("heatmap.tile");
+
+    // Same gradient as the default one of HeatmapTileProvider
+    private static final int GRADIENT_START_COLOR = Color.rgb(102, 225, 0);
+    private static final int GRADIENT_END_COLOR = Color.rgb(255, 0, 0);
+    private static final double GRADIENT_START_POINT = 0.2;
+
+    private final PointQuadTree<WeightedLatLng> tree = new PointQuadTree<>(0, 1, 0, 1);
+    private final DensityGrid grid = new DensityGrid(GRID_MAX_ZOOM);
+    private final int radius;
+    private final double[] kernel;
+    private final int cellRadius;
+    private final double[] cellKernel;
+    private final int[] colorMap = new int[COLOR_MAP_SIZE];
+    private final LinkedHashMap<Long, Tile> cache;
+    private final int[] cachedTiles = new int[MAX_ZOOM + 1];
+    private final double[] maxIntensity = new double[MAX_ZOOM + 1];
+    private final double[] cachedMaxIntensity = new double[MAX_ZOOM + 1];
+    private long generation = 0;
+    private int size = 0;
+
+    // Tiles the overlay may have cached, and the zoom levels where one of them is out of date
+    private final HashSet<Long> served = new HashSet<>();
+    private final int[] servedTiles = new int[MAX_ZOOM + 1];
+    private final boolean[] stale = new boolean[MAX_ZOOM + 1];
+    private float visibleZoom = -1;
+
+    // Changes waiting to be applied on the engine thread
+    private final Object pendingLock = new Object();
+    private ArrayList<WeightedLatLng> pendingPoints = new ArrayList<>();
+    private ArrayList<Boolean> pendingAdds = new ArrayList<>();
+    private long epoch = 0;
+    private final HandlerThread engineThread;
+    private final Handler engineHandler;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private Runnable invalidationListener = null;
+
+    /**
+     * Create a new provider
+     *
+     * @param radius   Radius of the blur applied to every point in pixels
+     * @param opacity  Opacity of the heatmap between 0 and 1
+     * @param maxTiles Maximum number of rendered tiles to keep
+     */
+    public IncrementalHeatmapTileProvider(int radius, double opacity, final int maxTiles) {
+        this.radius = radius;
+        this.kernel = kernel(radius, radius / 3.0);
+        this.cellRadius = (radius + CELL_DIM - 1) / CELL_DIM;
+        this.cellKernel = kernel(cellRadius, radius / 3.0 / CELL_DIM);
+        buildColorMap(opacity);
+        cache = new LinkedHashMap<Long, Tile>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Tile> eldest) {
+                if (size() <= maxTiles) {
+                    return false;
+                }
+                cachedTiles[zoom(eldest.getKey())]--;
+                return true;
+            }
+        };
+
+        engineThread = new HandlerThread("HeatmapEngine", Process.THREAD_PRIORITY_BACKGROUND);
+        engineThread.start();
+        engineHandler = new Handler(engineThread.getLooper());
+    }
+
+    /**
+     * Set the listener called on the main thread after tiles that were served at a visible zoom level
+     * were invalidated. It should clear the tile overlay's cache.
+     *
+     * @param listener Listener or null
+     */
+    public void setInvalidationListener(Runnable listener) {
+        invalidationListener = listener;
+    }
+
+    /**
+     * Set the zoom level of the map. Changed tiles at the zoom levels next to it are reported to the
+     * invalidation listener right away, changes at other levels once the map is zoomed there.
+     *
+     * @param zoom Camera zoom level, negative to report changes at all levels
+     */
+    public void setVisibleZoom(float zoom) {
+        boolean notify;
+        synchronized (this) {
+            visibleZoom = zoom;
+            notify = takeVisibleChanges();
+        }
+        if (notify) {
+            mainHandler.post(notifyInvalidated);
+        }
+    }
+
+    /**
+     * Stop the engine thread. The provider must not be used afterwards.
+     */
+    public void quit() {
+        engineThread.quitSafely();
+    }
+
+    /**
+     * Add a point to the heatmap and invalidate the cached tiles it touches
+     *
+     * @param location Location
+     * @return Point as stored in the index
+     */
+    @Override
+    public WeightedLatLng add(LatLng location) {
+        WeightedLatLng point = new WeightedLatLng(location);
+        enqueue(point, true);
+        return point;
+    }
+
+    /**
+     * Remove a point from the heatmap and invalidate the cached tiles it touched
+     *
+     * @param point Point as returned by {@link #add}
+     */
+    @Override
+    public void remove(WeightedLatLng point) {
+        enqueue(point, false);
+    }
+
+    private void enqueue(WeightedLatLng point, boolean add) {
+        synchronized (pendingLock) {
+            pendingPoints.add(point);
+            pendingAdds.add(add);
+            if (pendingPoints.size() == 1) {
+                engineHandler.post(applyPending);
+            }
+        }
+    }
+
+    /**
+     * Applies the queued changes on the engine thread
+     */
+    private final Runnable applyPending = new Runnable() {
+        @Override
+        public void run() {
+            ArrayList<WeightedLatLng> points;
+            ArrayList<Boolean> adds;
+            long changesEpoch;
+            synchronized (pendingLock) {
+                points = pendingPoints;
+                adds = pendingAdds;
+                changesEpoch = epoch;
+                pendingPoints = new ArrayList<>();
+                pendingAdds = new ArrayList<>();
+            }
+
+            boolean notify;
+            synchronized (IncrementalHeatmapTileProvider.this) {
+                // The heatmap was cleared after these changes were queued
+                if (changesEpoch != epoch) {
+                    return;
+                }
+
+                for (int i = 0; i < points.size(); i++) {
+                    WeightedLatLng point = points.get(i);
+                    Point p = point.getPoint();
+                    if (adds.get(i)) {
+                        tree.add(point);
+                        size++;
+                    } else if (tree.remove(point)) {
+                        size--;
+                    } else {
+                        continue;
+                    }
+                    grid.add(p.x, p.y, (float) (adds.get(i) ? point.getIntensity() : -point.getIntensity()));
+                    invalidate(p);
+                }
+
+                // Render all tiles of a level again if its scale changed noticeably
+                for (int zoom = 0; zoom <= GRID_MAX_ZOOM; zoom++) {
+                    double max = grid.getMaxCell(zoom);
+                    if (max > cachedMaxIntensity[zoom] * MAX_INTENSITY_GROWTH
+                            || max < cachedMaxIntensity[zoom] / MAX_INTENSITY_GROWTH) {
+                        invalidateZoom(zoom);
+                        cachedMaxIntensity[zoom] = max;
+                    }
+                }
+                notify = takeVisibleChanges();
+            }
+
+            if (notify) {
+                mainHandler.post(notifyInvalidated);
+            }
+        }
+    };
+
+    private final Runnable notifyInvalidated = new Runnable() {
+        @Override
+        public void run() {
+            if (invalidationListener != null) {
+                invalidationListener.run();
+            }
+        }
+    };
+
+    /**
+     * Remove all points and cached tiles
+     */
+    public void clear() {
+        synchronized (pendingLock) {
+            pendingPoints.clear();
+            pendingAdds.clear();
+            epoch++;
+        }
+        if (clearIndex()) {
+            mainHandler.post(notifyInvalidated);
+        }
+    }
+
+    /**
+     * @return True if the invalidation listener should be called
+     */
+    private synchronized boolean clearIndex() {
+        tree.clear();
+        grid.clear();
+        size = 0;
+        cache.clear();
+        for (int zoom = 0; zoom <= MAX_ZOOM; zoom++) {
+            cachedTiles[zoom] = 0;
+            maxIntensity[zoom] = cachedMaxIntensity[zoom] = 0;
+            stale[zoom] |= servedTiles[zoom] > 0;
+        }
+        generation++;
+        return takeVisibleChanges();
+    }
+
+    /**
+     * Check whether a served tile changed at a visible zoom level. If so, the overlay's cache is about
+     * to be cleared, so no tile counts as served any more.
+     *
+     * @return True if the invalidation listener should be called
+     */
+    private boolean takeVisibleChanges() {
+        boolean visible = false;
+        for (int zoom = 0; zoom <= MAX_ZOOM && !visible; zoom++) {
+            visible = stale[zoom] && (visibleZoom < 0 || Math.abs(zoom - visibleZoom) < 1);
+        }
+        if (!visible) {
+            return false;
+        }
+
+        served.clear();
+        for (int zoom = 0; zoom <= MAX_ZOOM; zoom++) {
+            servedTiles[zoom] = 0;
+            stale[zoom] = false;
+        }
+        return true;
+    }
+
+    private void markServed(long key) {
+        if (served.add(key)) {
+            servedTiles[zoom(key)]++;
+        }
+    }
+
+    /**
+     * Get the number of points in the heatmap
+     *
+     * @return Number of points
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Remove the cached tiles of all zoom levels that a point is drawn on
+     *
+     * @param point Point in world coordinates between 0 and 1
+     */
+    private void invalidate(Point point) {
+        generation++;
+        for (int zoom = 0; zoom <= MAX_ZOOM; zoom++) {
+            if (cachedTiles[zoom] == 0 && servedTiles[zoom] == 0) {
+                continue;
+            }
+
+            int tiles = 1 << zoom;
+            double padding = (double) radius / TILE_DIM / tiles;
+            int minX = (int) Math.floor((point.x - padding) * tiles);
+            int maxX = (int) Math.floor((point.x + padding) * tiles);
+            int minY = Math.max(0, (int) Math.floor((point.y - padding) * tiles));
+            int maxY = Math.min(tiles - 1, (int) Math.floor((point.y + padding) * tiles));
+            for (int x = minX; x <= maxX; x++) {
+                for (int y = minY; y <= maxY; y++) {
+                    // Tiles wrap around at the antimeridian
+                    long key = key(zoom, ((x % tiles) + tiles) % tiles, y);
+                    if (cache.remove(key) != null) {
+                        cachedTiles[zoom]--;
+                    }
+                    stale[zoom] |= served.contains(key);
+                }
+            }
+        }
+    }
+
+    @Override
+    public Tile getTile(int x, int y, int zoom) {
+        if (zoom > MAX_ZOOM) {
+            return render(x, y, zoom);
+        }
+
+        long key = key(zoom, x, y);
+        synchronized (this) {
+            Tile tile = cache.get(key);
+            if (tile != null) {
+                markServed(key);
+                return tile;
+            }
+        }
+        return render(x, y, zoom);
+    }
+
+    private Tile render(int x, int y, int zoom) {
+        long start = Metrics.startTime();
+        try {
+            return zoom <= GRID_MAX_ZOOM ? renderGrid(x, y, zoom) : renderPoints(x, y, zoom);
+        } finally {
+            TILE_RENDER_TIME.recordSince(start);
+        }
+    }
+
+    private Tile renderPoints(int x, int y, int zoom) {
+
+        int tiles = 1 << zoom;
+        double tileWidth = 1.0 / tiles;
+        double padding = radius * tileWidth / TILE_DIM;
+        double minX = x * tileWidth - padding, maxX = (x + 1) * tileWidth + padding;
+        double minY = y * tileWidth - padding, maxY = (y + 1) * tileWidth + padding;
+
+        // Collect the points, including those on the other side of the antimeridian
+        List<WeightedLatLng> points = new ArrayList<>();
+        List<WeightedLatLng> wrapped = new ArrayList<>();
+        double wrapOffset = 0;
+        long renderGeneration;
+        synchronized (this) {
+            renderGeneration = generation;
+            points.addAll(tree.search(new Bounds(minX, maxX, minY, maxY)));
+            if (minX < 0) {
+                wrapped.addAll(tree.search(new Bounds(minX + 1, 1, minY, maxY)));
+                wrapOffset = -1;
+            } else if (maxX > 1) {
+                wrapped.addAll(tree.search(new Bounds(0, maxX - 1, minY, maxY)));
+                wrapOffset = 1;
+            }
+        }
+
+        if (points.isEmpty() && wrapped.isEmpty()) {
+            return store(zoom, x, y, NO_TILE, renderGeneration);
+        }
+
+        // Bucket the points into pixels, with a border of the blur radius
+        int dim = TILE_DIM + radius * 2;
+        double[][] intensity = new double[dim][dim];
+        double bucketWidth = tileWidth / TILE_DIM;
+        accumulate(intensity, points, minX, minY, bucketWidth, 0);
+        accumulate(intensity, wrapped, minX, minY, bucketWidth, wrapOffset);
+
+        double[][] blurred = convolve(intensity, kernel, radius);
+        return store(zoom, x, y, toTile(blurred, normalization(zoom, blurred)), renderGeneration);
+    }
+
+    /**
+     * Render a tile from the density grid. The cells are blurred with one cell of border left, which
+     * lets every pixel be interpolated between its four surrounding cells.
+     */
+    private Tile renderGrid(int x, int y, int zoom) {
+        int padding = cellRadius + 1;
+        double[][] cells = new double[DensityGrid.CELLS + padding * 2][DensityGrid.CELLS + padding * 2];
+        long renderGeneration;
+        boolean found;
+        synchronized (this) {
+            renderGeneration = generation;
+            found = grid.copy(zoom, x, y, padding, cells);
+        }
+        if (!found) {
+            return store(zoom, x, y, NO_TILE, renderGeneration);
+        }
+
+        double[][] blurred = convolve(cells, cellKernel, cellRadius);
+        double[][] pixels = new double[TILE_DIM][TILE_DIM];
+        for (int i = 0; i < TILE_DIM; i++) {
+            double gx = (i + 0.5) / CELL_DIM + 0.5;
+            int x0 = (int) gx;
+            double fx = gx - x0;
+            for (int j = 0; j < TILE_DIM; j++) {
+                double gy = (j + 0.5) / CELL_DIM + 0.5;
+                int y0 = (int) gy;
+                double fy = gy - y0;
+                pixels[i][j] = (blurred[x0][y0] * (1 - fx) + blurred[x0 + 1][y0] * fx) * (1 - fy)
+                        + (blurred[x0][y0 + 1] * (1 - fx) + blurred[x0 + 1][y0 + 1] * fx) * fy;
+            }
+        }
+
+        return store(zoom, x, y, toTile(pixels, normalization(zoom, blurred)), renderGeneration);
+    }
+
+    /**
+     * Get the intensity mapped to the hottest color, updating the running maximum of the zoom level
+     *
+     * @param zoom    Zoom level
+     * @param blurred Blurred intensities of the tile
+     * @return Maximum intensity
+     */
+    private double normalization(int zoom, double[][] blurred) {
+        if (zoom <= GRID_MAX_ZOOM) {
+            synchronized (this) {
+                return Math.max(grid.getMaxCell(zoom), Double.MIN_VALUE);
+            }
+        }
+
+        double tileMax = 0;
+        for (double[] column : blurred) {
+            for (double value : column) {
+                tileMax = Math.max(tileMax, value);
+            }
+        }
+
+        double max;
+        synchronized (this) {
+            if (zoom <= MAX_ZOOM && tileMax > maxIntensity[zoom]) {
+                maxIntensity[zoom] = tileMax;
+                if (tileMax > cachedMaxIntensity[zoom] * MAX_INTENSITY_GROWTH) {
+                    // Tiles rendered so far would look too hot next to this one
+                    invalidateZoom(zoom);
+                    cachedMaxIntensity[zoom] = tileMax;
+                }
+            }
+            max = zoom <= MAX_ZOOM ? maxIntensity[zoom] : tileMax;
+        }
+        return max;
+    }
+
+    private static void accumulate(double[][] intensity, Collection<WeightedLatLng> points, double minX, double minY,
+                                   double bucketWidth, double offset) {
+        int dim = intensity.length;
+        for (WeightedLatLng point : points) {
+            Point p = point.getPoint();
+            int bucketX = (int) ((p.x + offset - minX) / bucketWidth);
+            int bucketY = (int) ((p.y - minY) / bucketWidth);
+            if (bucketX >= 0 && bucketX < dim && bucketY >= 0 && bucketY < dim) {
+                intensity[bucketX][bucketY] += point.getIntensity();
+            }
+        }
+    }
+
+    private synchronized Tile store(int zoom, int x, int y, Tile tile, long renderGeneration) {
+        if (zoom > MAX_ZOOM) {
+            return tile;
+        }
+
+        // Points added while rendering may be missing from this tile, do not cache it
+        long key = key(zoom, x, y);
+        if (renderGeneration != generation) {
+            stale[zoom] = true;
+        } else if (cache.put(key, tile) == null) {
+            cachedTiles[zoom]++;
+        }
+        markServed(key);
+        return tile;
+    }
+
+    private void invalidateZoom(int zoom) {
+        Iterator<Long> keys = cache.keySet().iterator();
+        while (keys.hasNext()) {
+            if (zoom(keys.next()) == zoom) {
+                keys.remove();
+            }
+        }
+        cachedTiles[zoom] = 0;
+        stale[zoom] |= servedTiles[zoom] > 0;
+        generation++;
+    }
+
+    private Tile toTile(double[][] blurred, double max) {
+        int[] pixels = new int[TILE_DIM * TILE_DIM];
+        double scale = (COLOR_MAP_SIZE - 1) / max;
+        for (int i = 0; i < TILE_DIM; i++) {
+            for (int j = 0; j < TILE_DIM; j++) {
+                double value = blurred[i][j];
+                if (value > 0) {
+                    int index = (int) (value * scale);
+                    pixels[j * TILE_DIM + i] = colorMap[Math.min(index, COLOR_MAP_SIZE - 1)];
+                }
+            }
+        }
+
+        Bitmap bitmap = Bitmap.createBitmap(TILE_DIM, TILE_DIM, Bitmap.Config.ARGB_8888);
+        bitmap.setPixels(pixels, 0, TILE_DIM, 0, 0, TILE_DIM, TILE_DIM);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream);
+        bitmap.recycle();
+        return new Tile(TILE_DIM, TILE_DIM, stream.toByteArray());
+    }
+
+    /**
+     * Blur the intensity grid with a separable kernel and cut off the border
+     *
+     * @param grid   Intensity grid including a border of the kernel radius
+     * @param kernel One-dimensional kernel
+     * @param radius Kernel radius
+     * @return Blurred grid without the border
+     */
+    private static double[][] convolve(double[][] grid, double[] kernel, int radius) {
+        int dim = grid.length;
+        int inner = dim - radius * 2;
+
+        // Horizontal pass, only where there is data
+        double[][] horizontal = new double[dim][inner];
+        for (int x = 0; x < dim; x++) {
+            for (int y = 0; y < dim; y++) {
+                double value = grid[x][y];
+                if (value == 0) {
+                    continue;
+                }
+                int from = Math.max(0, y - radius * 2), to = Math.min(inner - 1, y);
+                for (int target = from; target <= to; target++) {
+                    horizontal[x][target] += value * kernel[y - target];
+                }
+            }
+        }
+
+        // Vertical pass
+        double[][] result = new double[inner][inner];
+        for (int x = 0; x < dim; x++) {
+            int from = Math.max(0, x - radius * 2), to = Math.min(inner - 1, x);
+            for (int y = 0; y < inner; y++) {
+                double value = horizontal[x][y];
+                if (value == 0) {
+                    continue;
+                }
+                for (int target = from; target <= to; target++) {
+                    result[target][y] += value * kernel[x - target];
+                }
+            }
+        }
+        return result;
+    }
+
+    private static double[] kernel(int radius, double sigma) {
+        double[] kernel = new double[radius * 2 + 1];
+        for (int i = -radius; i <= radius; i++) {
+            kernel[i + radius] = Math.exp(-i * i / (2 * sigma * sigma));
+        }
+        return kernel;
+    }
+
+    private void buildColorMap(double opacity) {
+        for (int i = 0; i < COLOR_MAP_SIZE; i++) {
+            double value = (double) i / COLOR_MAP_SIZE;
+            int color;
+            double alpha;
+            if (value < GRADIENT_START_POINT) {
+                // Fade in below the first gradient color
+                color = GRADIENT_START_COLOR;
+                alpha = value / GRADIENT_START_POINT;
+            } else {
+                double fraction = (value - GRADIENT_START_POINT) / (1 - GRADIENT_START_POINT);
+                color = interpolate(GRADIENT_START_COLOR, GRADIENT_END_COLOR, fraction);
+                alpha = 1;
+            }
+            colorMap[i] = Color.argb((int) (alpha * opacity * 255), Color.red(color), Color.green(color),
+                    Color.blue(color));
+        }
+    }
+
+    private static int interpolate(int from, int to, double fraction) {
+        return Color.rgb(
+                (int) (Color.red(from) + (Color.red(to) - Color.red(from)) * fraction),
+                (int) (Color.green(from) + (Color.green(to) - Color.green(from)) * fraction),
+                (int) (Color.blue(from) + (Color.blue(to) - Color.blue(from)) * fraction)
+        );
+    }
+
+    private static long key(int zoom, int x, int y) {
+        return ((long) zoom << 56) | ((long) x << 28) | y;
+    }
+
+    private static int zoom(long key) {
+        return (int) (key >>> 56);
+    }
+}
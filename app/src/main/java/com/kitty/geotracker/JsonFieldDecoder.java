@@ -0,0 +1,404 @@
+package com.kitty.geotracker;
+
+/**
+ * Streaming decoder for the JSON fields of DDP messages.
+ * <p>
+ * Fields are passed to a {@link FieldSink} as they are read, without building a tree of JSON objects.
+ * Field names and short string values are interned in a fixed-size table, so the keys and the
+ * repeated user, session and provider ids of high-rate messages do not allocate new strings. Numbers
+ * are parsed in place. Only numbers with more than 15 significant digits or large exponents fall back
+ * to {@link Double#parseDouble}.
+ * <p>
+ * A decoder keeps state while decoding and must only be used by one thread at a time.
+ */
+public class JsonFieldDecoder {
+
+    private static final int MAX_INTERNED_LENGTH = 64;
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final String[] table;
+    private final int mask;
+    private final int maxInterned;
+    private int interned = 0;
+
+    private final StringBuilder escaped = new StringBuilder();
+    private String json;
+    private int position;
+
+    /**
+     * Create a new decoder
+     *
+     * @param maxInterned Maximum number of distinct strings to intern
+     */
+    public JsonFieldDecoder(int maxInterned) {
+        this.maxInterned = maxInterned;
+        int capacity = Integer.highestOneBit(Math.max(1, maxInterned) * 2) * 2;
+        this.table = new String[capacity];
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Decode a JSON object
+     *
+     * @param json JSON object
+     * @param sink Receives the fields of the object
+     * @throws IllegalArgumentException If the JSON is invalid
+     */
+    public void decodeObject(String json, FieldSink sink) {
+        begin(json);
+        expect('{');
+        readObject(sink);
+        end();
+    }
+
+    /**
+     * Decode a JSON array
+     *
+     * @param json JSON array
+     * @param sink Receives the elements of the array
+     * @throws IllegalArgumentException If the JSON is invalid
+     */
+    public void decodeArray(String json, FieldSink sink) {
+        begin(json);
+        expect('[');
+        readArray(sink);
+        end();
+    }
+
+    private void begin(String json) {
+        if (json == null) {
+            throw new IllegalArgumentException("No JSON");
+        }
+        this.json = json;
+        this.position = 0;
+        skipWhitespace();
+    }
+
+    private void end() {
+        skipWhitespace();
+        if (position != json.length()) {
+            throw error("Unexpected content");
+        }
+        json = null;
+    }
+
+    /**
+     * Read the fields of an object after its opening brace
+     */
+    private void readObject(FieldSink sink) {
+        skipWhitespace();
+        if (peek() == '}') {
+            position++;
+        } else {
+            while (true) {
+                skipWhitespace();
+                expect('"');
+                String name = readString(sink != null);
+                skipWhitespace();
+                expect(':');
+                readValue(name, sink);
+                skipWhitespace();
+                char c = next();
+                if (c == '}') {
+                    break;
+                } else if (c != ',') {
+                    throw error("Expected ',' or '}'");
+                }
+            }
+        }
+        if (sink != null) {
+            sink.onEnd();
+        }
+    }
+
+    /**
+     * Read the elements of an array after its opening bracket
+     */
+    private void readArray(FieldSink sink) {
+        skipWhitespace();
+        if (peek() == ']') {
+            position++;
+        } else {
+            while (true) {
+                readValue(null, sink);
+                skipWhitespace();
+                char c = next();
+                if (c == ']') {
+                    break;
+                } else if (c != ',') {
+                    throw error("Expected ',' or ']'");
+                }
+            }
+        }
+        if (sink != null) {
+            sink.onEnd();
+        }
+    }
+
+    private void readValue(String name, FieldSink sink) {
+        skipWhitespace();
+        switch (peek()) {
+            case '"':
+                position++;
+                String value = readString(sink != null);
+                if (sink != null) {
+                    sink.onString(name, value);
+                }
+                break;
+
+            case '{':
+                position++;
+                readObject(sink != null ? sink.onObject(name) : null);
+                break;
+
+            case '[':
+                position++;
+                readArray(sink != null ? sink.onArray(name) : null);
+                break;
+
+            case 't':
+                literal("true");
+                if (sink != null) {
+                    sink.onBoolean(name, true);
+                }
+                break;
+
+            case 'f':
+                literal("false");
+                if (sink != null) {
+                    sink.onBoolean(name, false);
+                }
+                break;
+
+            case 'n':
+                literal("null");
+                if (sink != null) {
+                    sink.onNull(name);
+                }
+                break;
+
+            default:
+                double number = readNumber();
+                if (sink != null) {
+                    sink.onNumber(name, number);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Read a string after its opening quote
+     *
+     * @param keep False to skip the string without creating it
+     * @return String or null if it was skipped
+     */
+    private String readString(boolean keep) {
+        int start = position;
+        int length = json.length();
+        while (position < length) {
+            char c = json.charAt(position);
+            if (c == '"') {
+                position++;
+                return keep ? intern(start, position - 1) : null;
+            } else if (c == '\\') {
+                return readEscapedString(start, keep);
+            }
+            position++;
+        }
+        throw error("Unterminated string");
+    }
+
+    private String readEscapedString(int start, boolean keep) {
+        escaped.setLength(0);
+        escaped.append(json, start, position);
+        while (true) {
+            char c = next();
+            if (c == '"') {
+                return keep ? escaped.toString() : null;
+            } else if (c != '\\') {
+                escaped.append(c);
+                continue;
+            }
+
+            c = next();
+            switch (c) {
+                case 'b':
+                    escaped.append('\b');
+                    break;
+                case 'f':
+                    escaped.append('\f');
+                    break;
+                case 'n':
+                    escaped.append('\n');
+                    break;
+                case 'r':
+                    escaped.append('\r');
+                    break;
+                case 't':
+                    escaped.append('\t');
+                    break;
+                case 'u':
+                    if (position + 4 > json.length()) {
+                        throw error("Truncated escape");
+                    }
+                    try {
+                        escaped.append((char) Integer.parseInt(json.substring(position, position + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw error("Invalid escape");
+                    }
+                    position += 4;
+                    break;
+                default:
+                    escaped.append(c);
+                    break;
+            }
+        }
+    }
+
+    private double readNumber() {
+        int start = position;
+        int length = json.length();
+        boolean negative = false;
+        if (position < length && json.charAt(position) == '-') {
+            negative = true;
+            position++;
+        }
+
+        long mantissa = 0;
+        int exponent = 0, digits = 0;
+        boolean exact = true;
+        while (position < length && isDigit(json.charAt(position))) {
+            if (mantissa < MAX_EXACT_MANTISSA / 10) {
+                mantissa = mantissa * 10 + (json.charAt(position) - '0');
+            } else {
+                exact = false;
+            }
+            position++;
+            digits++;
+        }
+        if (position < length && json.charAt(position) == '.') {
+            position++;
+            while (position < length && isDigit(json.charAt(position))) {
+                if (mantissa < MAX_EXACT_MANTISSA / 10) {
+                    mantissa = mantissa * 10 + (json.charAt(position) - '0');
+                    exponent--;
+                } else {
+                    exact = false;
+                }
+                position++;
+                digits++;
+            }
+        }
+        if (digits == 0) {
+            throw error("Invalid value");
+        }
+        if (position < length && (json.charAt(position) == 'e' || json.charAt(position) == 'E')) {
+            position++;
+            int sign = 1;
+            if (position < length && (json.charAt(position) == '+' || json.charAt(position) == '-')) {
+                sign = json.charAt(position) == '-' ? -1 : 1;
+                position++;
+            }
+            int value = 0, exponentDigits = 0;
+            while (position < length && isDigit(json.charAt(position))) {
+                value = Math.min(value * 10 + (json.charAt(position) - '0'), 10000);
+                position++;
+                exponentDigits++;
+            }
+            if (exponentDigits == 0) {
+                throw error("Invalid exponent");
+            }
+            exponent += sign * value;
+        }
+
+        // Both the mantissa and the power of ten are exact, so a single operation rounds correctly
+        if (exact && exponent >= -22 && exponent <= 22) {
+            double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+            return negative ? -value : value;
+        }
+        try {
+            return Double.parseDouble(json.substring(start, position));
+        } catch (NumberFormatException e) {
+            throw error("Invalid number");
+        }
+    }
+
+    private void literal(String literal) {
+        if (!json.startsWith(literal, position)) {
+            throw error("Invalid value");
+        }
+        position += literal.length();
+    }
+
+    /**
+     * Get a string from the table or add it
+     */
+    private String intern(int start, int end) {
+        int length = end - start;
+        if (length > MAX_INTERNED_LENGTH) {
+            return json.substring(start, end);
+        }
+
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + json.charAt(i);
+        }
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        String entry;
+        while ((entry = table[slot]) != null) {
+            if (entry.hashCode() == hash && entry.length() == length && json.regionMatches(start, entry, 0, length)) {
+                return entry;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        String string = json.substring(start, end);
+        if (interned < maxInterned) {
+            table[slot] = string;
+            interned++;
+        }
+        return string;
+    }
+
+    private void skipWhitespace() {
+        int length = json.length();
+        while (position < length) {
+            char c = json.charAt(position);
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return;
+            }
+            position++;
+        }
+    }
+
+    private char peek() {
+        if (position >= json.length()) {
+            throw error("Unexpected end");
+        }
+        return json.charAt(position);
+    }
+
+    private char next() {
+        char c = peek();
+        position++;
+        return c;
+    }
+
+    private void expect(char expected) {
+        if (next() != expected) {
+            throw error("Expected '" + expected + "'");
+        }
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at position " + position);
+    }
+}
@@ -0,0 +1,197 @@
+package com.kitty.geotracker;
+
+/**
+ * Constant-velocity Kalman filter that smooths GPS fixes and rejects outliers such as multipath
+ * jumps.
+ * <p>
+ * Positions are tracked in metres on a local tangent plane around the first fix. East and north are
+ * filtered independently, each with a position/velocity state. Every fix provides a position
+ * measurement weighted by its accuracy. Fixes that report both a speed and a bearing also provide a
+ * velocity measurement; for other fixes, such as most network locations, the velocity is only
+ * inferred from the positions.
+ * <p>
+ * Before a fix is applied, the Mahalanobis distance between its position and the predicted position
+ * is compared against a chi-squared gate. Fixes outside the gate are rejected. If several fixes in a
+ * row are rejected the participant most likely really moved (e.g. after losing the signal), so the
+ * filter restarts at the latest fix. Accepted fixes carry the smoothed coordinates.
+ */
+public class KalmanFixFilter implements FixFilter {
+
+    private static final double EARTH_RADIUS = 6371008.8; // in metres
+    private static final double DEFAULT_ACCURACY = 20; // in metres, used if a fix has no accuracy
+    // The filter restarts after longer gaps, which must be well above the slowest location interval
+    private static final long MAX_GAP = 5 * DutyCycleScheduler.STATIONARY_INTERVAL; // in milliseconds
+    private static final double UNKNOWN_SPEED = 10; // in metres per second, deviation of an unknown velocity
+    private static final double MAX_DISTANCE = 50000; // in metres from the origin before the filter restarts
+
+    private static final int EAST = 0, NORTH = 1;
+
+    private final double processNoise;
+    private final double speedNoise;
+    private final double gate;
+    private final int maxRejections;
+
+    private boolean initialized = false;
+    private double originLatitude, originLongitude, metresPerDegreeLongitude;
+    private long lastTime;
+    private int rejections = 0;
+
+    // Per axis state and covariance
+    private final double[] position = new double[2];
+    private final double[] velocity = new double[2];
+    private final double[] varPosition = new double[2];
+    private final double[] covariance = new double[2];
+    private final double[] varVelocity = new double[2];
+
+    /**
+     * Create a new filter
+     *
+     * @param processNoise  Acceleration noise spectral density in m²/s³
+     * @param speedNoise    Standard deviation of the reported speed in m/s
+     * @param gate          Squared Mahalanobis distance above which a fix is rejected
+     * @param maxRejections Number of consecutive rejections after which the filter restarts
+     */
+    public KalmanFixFilter(double processNoise, double speedNoise, double gate, int maxRejections) {
+        this.processNoise = processNoise;
+        this.speedNoise = speedNoise;
+        this.gate = gate;
+        this.maxRejections = maxRejections;
+    }
+
+    @Override
+    public boolean accept(Fix fix) {
+        long elapsed = fix.time - lastTime;
+        if (!initialized || elapsed > MAX_GAP || elapsed < 0) {
+            initialize(fix);
+            return true;
+        }
+
+        double east = (fix.longitude - originLongitude) * metresPerDegreeLongitude;
+        double north = Math.toRadians(fix.latitude - originLatitude) * EARTH_RADIUS;
+        if (Math.hypot(east, north) > MAX_DISTANCE) {
+            initialize(fix);
+            return true;
+        }
+
+        double accuracy = fix.accuracy > 0 ? fix.accuracy : DEFAULT_ACCURACY;
+        double positionNoise = accuracy * accuracy;
+
+        // Predict both axes to the time of the fix
+        double dt = elapsed / 1000.0;
+        predict(EAST, dt);
+        predict(NORTH, dt);
+        lastTime = fix.time;
+
+        // Gate on the position innovation
+        double eastInnovation = east - position[EAST];
+        double northInnovation = north - position[NORTH];
+        double distance = eastInnovation * eastInnovation / (varPosition[EAST] + positionNoise)
+                + northInnovation * northInnovation / (varPosition[NORTH] + positionNoise);
+        if (distance > gate) {
+            if (++rejections < maxRejections) {
+                return false;
+            }
+            initialize(fix);
+            return true;
+        }
+        rejections = 0;
+
+        if (fix.hasSpeed && fix.hasBearing) {
+            double velocityNoise = speedNoise * speedNoise;
+            double heading = Math.toRadians(fix.bearing);
+            update(EAST, east, fix.speed * Math.sin(heading), positionNoise, velocityNoise);
+            update(NORTH, north, fix.speed * Math.cos(heading), positionNoise, velocityNoise);
+        } else {
+            updatePosition(EAST, east, positionNoise);
+            updatePosition(NORTH, north, positionNoise);
+        }
+
+        fix.latitude = originLatitude + Math.toDegrees(position[NORTH] / EARTH_RADIUS);
+        fix.longitude = originLongitude + position[EAST] / metresPerDegreeLongitude;
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        initialized = false;
+        rejections = 0;
+    }
+
+    private void initialize(Fix fix) {
+        double accuracy = fix.accuracy > 0 ? fix.accuracy : DEFAULT_ACCURACY;
+        boolean motion = fix.hasSpeed && fix.hasBearing;
+        double heading = Math.toRadians(fix.bearing);
+        double velocityDeviation = motion ? speedNoise : UNKNOWN_SPEED;
+
+        originLatitude = fix.latitude;
+        originLongitude = fix.longitude;
+        metresPerDegreeLongitude = Math.toRadians(1) * EARTH_RADIUS * Math.cos(Math.toRadians(originLatitude));
+        lastTime = fix.time;
+        rejections = 0;
+        initialized = true;
+
+        position[EAST] = position[NORTH] = 0;
+        velocity[EAST] = motion ? fix.speed * Math.sin(heading) : 0;
+        velocity[NORTH] = motion ? fix.speed * Math.cos(heading) : 0;
+        for (int axis = EAST; axis <= NORTH; axis++) {
+            varPosition[axis] = accuracy * accuracy;
+            covariance[axis] = 0;
+            varVelocity[axis] = velocityDeviation * velocityDeviation;
+        }
+    }
+
+    private void predict(int axis, double dt) {
+        double pp = varPosition[axis], pv = covariance[axis], vv = varVelocity[axis];
+        double q = processNoise;
+
+        position[axis] += velocity[axis] * dt;
+        varPosition[axis] = pp + 2 * dt * pv + dt * dt * vv + q * dt * dt * dt / 3;
+        covariance[axis] = pv + dt * vv + q * dt * dt / 2;
+        varVelocity[axis] = vv + q * dt;
+    }
+
+    private void update(int axis, double measuredPosition, double measuredVelocity, double positionNoise,
+                        double velocityNoise) {
+        double pp = varPosition[axis], pv = covariance[axis], vv = varVelocity[axis];
+
+        // Innovation covariance S = P + R and its determinant
+        double s00 = pp + positionNoise, s11 = vv + velocityNoise;
+        double det = s00 * s11 - pv * pv;
+        if (det <= 0) {
+            return;
+        }
+
+        // Kalman gain K = P * S^-1
+        double k00 = (pp * s11 - pv * pv) / det;
+        double k01 = (pv * s00 - pp * pv) / det;
+        double k10 = (pv * s11 - vv * pv) / det;
+        double k11 = (vv * s00 - pv * pv) / det;
+
+        double positionInnovation = measuredPosition - position[axis];
+        double velocityInnovation = measuredVelocity - velocity[axis];
+        position[axis] += k00 * positionInnovation + k01 * velocityInnovation;
+        velocity[axis] += k10 * positionInnovation + k11 * velocityInnovation;
+
+        // P = (I - K) * P
+        varPosition[axis] = (1 - k00) * pp - k01 * pv;
+        covariance[axis] = (1 - k00) * pv - k01 * vv;
+        varVelocity[axis] = (1 - k11) * vv - k10 * pv;
+    }
+
+    private void updatePosition(int axis, double measuredPosition, double positionNoise) {
+        double pp = varPosition[axis], pv = covariance[axis], vv = varVelocity[axis];
+
+        // Kalman gain K = P * H^T / (H * P * H^T + R) for a position-only measurement
+        double s = pp + positionNoise;
+        double k0 = pp / s;
+        double k1 = pv / s;
+
+        double innovation = measuredPosition - position[axis];
+        position[axis] += k0 * innovation;
+        velocity[axis] += k1 * innovation;
+
+        varPosition[axis] = (1 - k0) * pp;
+        covariance[axis] = (1 - k0) * pv;
+        varVelocity[axis] = vv - k1 * pv;
+    }
+}
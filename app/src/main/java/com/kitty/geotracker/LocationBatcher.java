@@ -0,0 +1,89 @@
+package com.kitty.geotracker;
+
+/**
+ * Decides when buffered GPS fixes should be sent to Meteor as a single batch instead of one insert
+ * per fix. The fixes themselves are buffered in the {@link FixJournal}.
+ * <p>
+ * A batch is due once it holds {@code maxSize} fixes or once its oldest fix is {@code maxAge}
+ * milliseconds old, whichever comes first. The batcher does not schedule anything itself; the owner
+ * is expected to check {@link #isDue(long)} whenever a fix is added and when its flush timer fires.
+ */
+public class LocationBatcher {
+
+    private final int maxSize;
+    private final long maxAge;
+    private int size = 0;
+    private long oldestTime = 0;
+
+    /**
+     * Create a new batcher
+     *
+     * @param maxSize Maximum number of fixes per batch
+     * @param maxAge  Maximum time in milliseconds a fix may wait before its batch is flushed
+     */
+    public LocationBatcher(int maxSize, long maxAge) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be at least 1");
+        }
+        this.maxSize = maxSize;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Count a fix towards the current batch
+     *
+     * @param now Current time in milliseconds
+     * @return True if the batch should now be flushed
+     */
+    public synchronized boolean add(long now) {
+        if (size == 0) {
+            oldestTime = now;
+        }
+        size++;
+        return isDue(now);
+    }
+
+    /**
+     * Check if the current batch should be flushed
+     *
+     * @param now Current time in milliseconds
+     * @return True if the batch is full or its oldest fix has expired
+     */
+    public synchronized boolean isDue(long now) {
+        return size > 0 && (size >= maxSize || now - oldestTime >= maxAge);
+    }
+
+    /**
+     * Start a new batch
+     */
+    public synchronized void reset() {
+        size = 0;
+    }
+
+    /**
+     * Get the number of fixes in the current batch
+     *
+     * @return Number of fixes
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Get the maximum number of fixes per batch
+     *
+     * @return Maximum batch size
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Get the maximum time a fix may wait before being flushed
+     *
+     * @return Maximum age in milliseconds
+     */
+    public long getMaxAge() {
+        return maxAge;
+    }
+}
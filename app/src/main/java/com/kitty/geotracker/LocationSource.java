@@ -0,0 +1,30 @@
+package com.kitty.geotracker;
+
+/**
+ * Where location updates come from. Wraps the {@link android.location.LocationManager} so the
+ * {@link DutyCycleScheduler} can be driven by a fake in tests.
+ */
+public interface LocationSource {
+
+    /**
+     * Check if a provider can be used
+     *
+     * @param provider Provider name
+     * @return Boolean
+     */
+    boolean isProviderEnabled(String provider);
+
+    /**
+     * Start receiving updates from a provider, in addition to any providers already requested
+     *
+     * @param provider    Provider name
+     * @param interval    Minimum time between updates in milliseconds
+     * @param minDistance Minimum distance between updates in metres
+     */
+    void requestUpdates(String provider, long interval, float minDistance);
+
+    /**
+     * Stop receiving updates from all providers
+     */
+    void removeUpdates();
+}
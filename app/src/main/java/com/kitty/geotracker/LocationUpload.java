@@ -0,0 +1,113 @@
+package com.kitty.geotracker;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-fix steps of the location upload of {@link MeteorController}: journaling a fix, updating the
+ * upload pressure and batch, and encoding the oldest journaled fixes for an upload. None of these
+ * allocate once the journal and encoders are warmed up. Sending the encoded fixes is left to the caller.
+ * <p>
+ * Must be used on a single thread.
+ */
+final class LocationUpload {
+
+    private final UploadPressure pressure;
+    private final LocationBatcher batcher;
+    private final FixCodec codec = new FixCodec();
+    private final FixMapEncoder mapEncoder = new FixMapEncoder();
+
+    /**
+     * Create the upload steps
+     *
+     * @param pressure Pressure updated with the journal size
+     * @param batcher  Batcher deciding when fixes are uploaded
+     */
+    LocationUpload(UploadPressure pressure, LocationBatcher batcher) {
+        this.pressure = pressure;
+        this.batcher = batcher;
+    }
+
+    /**
+     * Get the batcher deciding when fixes are uploaded
+     *
+     * @return Batcher
+     */
+    LocationBatcher getBatcher() {
+        return batcher;
+    }
+
+    /**
+     * Write a fix to the journal and add it to the current batch
+     *
+     * @param journal Journal of the current session
+     * @param fix     Fix
+     * @param now     Current time in milliseconds, on the clock the batcher uses
+     * @return True if the batch is due and should be uploaded
+     */
+    boolean append(FixJournal journal, Fix fix, long now) {
+        journal.append(fix);
+        pressure.setQueueDepth(journal.size());
+        return batcher.add(now);
+    }
+
+    /**
+     * Encode the oldest journaled fixes as a {@link FixCodec} batch, see {@link #finishPacked()}
+     *
+     * @param journal Journal
+     * @param session Session of the journal
+     * @param userId  Participant
+     * @param max     Maximum number of fixes
+     * @return Number of fixes encoded
+     */
+    int encodePacked(FixJournal journal, String session, String userId, int max) {
+        codec.begin(session, userId);
+        return journal.peek(max, codec);
+    }
+
+    /**
+     * Finish the batch started by {@link #encodePacked}
+     *
+     * @return Encoded fixes
+     */
+    byte[] finishPacked() {
+        return codec.finish();
+    }
+
+    /**
+     * Encode the oldest journaled fixes as maps, see {@link #finishFixes()}
+     *
+     * @param journal Journal
+     * @param max     Maximum number of fixes
+     * @return Number of fixes encoded
+     */
+    int encodeFixes(FixJournal journal, int max) {
+        mapEncoder.begin();
+        return journal.peek(max, mapEncoder);
+    }
+
+    /**
+     * Finish the fixes started by {@link #encodeFixes}. The maps are reused by the next upload.
+     *
+     * @return Fixes as maps
+     */
+    List<Map<String, Object>> finishFixes() {
+        return mapEncoder.finish();
+    }
+
+    /**
+     * Remove uploaded fixes from the journal and update the pressure. Fixes of a session that was left
+     * meanwhile have been discarded already and are not removed again.
+     *
+     * @param journal Journal the fixes were read from
+     * @param session Session the fixes belong to
+     * @param tail    Tail of the journal before the fixes were encoded
+     * @param count   Number of fixes uploaded
+     */
+    void onUploaded(FixJournal journal, String session, long tail, int count) {
+        if (session.equals(journal.getSession())) {
+            journal.commit(tail, count);
+        }
+        pressure.setQueueDepth(journal.size());
+    }
+}
@@ -0,0 +1,261 @@
+package com.kitty.geotracker;
+
+import android.util.Log;
+import android.view.Choreographer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects incoming location updates and applies them to the map once per display frame.
+ * <p>
+ * Fixes for the heatmap and trails are buffered in arrays and added together. Fixes that were evicted
+ * from the local GPS data are buffered the same way and removed after the fixes of the frame were
+ * added, so a fix is never removed before it was shown. Marker moves are
+ * coalesced per participant, so only the latest position of a participant is applied in a frame. The
+ * queue counts how many updates were merged into each frame.
+ */
+public class MapUpdateQueue implements Choreographer.FrameCallback {
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final Metrics.Histogram FRAME_TIME = Metrics.histogram("map.frame");
+    private static final Metrics.Counter FRAME_UPDATES = Metrics.counter("map.updates");
+
+    private final Target target;
+    private final Choreographer choreographer;
+    private final String TAG = getClass().getSimpleName();
+
+    private final FixBuffer added = new FixBuffer();
+    private final FixBuffer removed = new FixBuffer();
+    private final LinkedHashMap<String, double[]> markers = new LinkedHashMap<>();
+    private int receivedInFrame = 0;
+    private boolean scheduled = false;
+
+    // Statistics
+    private long frames = 0;
+    private long received = 0;
+    private long applied = 0;
+    private int maxMerged = 0;
+
+    /**
+     * Receives the updates of a frame
+     */
+    public interface Target {
+        /**
+         * Add fixes to the heatmap and trails
+         *
+         * @param userIds    Participants the fixes belong to
+         * @param latitudes  Latitudes
+         * @param longitudes Longitudes
+         * @param times      Times in milliseconds since the epoch
+         * @param count      Number of points
+         */
+        void addFixes(String[] userIds, double[] latitudes, double[] longitudes, long[] times, int count);
+
+        /**
+         * Remove fixes from the heatmap and trails
+         *
+         * @param userIds    Participants the fixes belong to
+         * @param latitudes  Latitudes
+         * @param longitudes Longitudes
+         * @param times      Times in milliseconds since the epoch
+         * @param count      Number of points
+         */
+        void removeFixes(String[] userIds, double[] latitudes, double[] longitudes, long[] times, int count);
+
+        /**
+         * Move a participant's marker
+         *
+         * @param userId    Participant
+         * @param latitude  Latitude
+         * @param longitude Longitude
+         */
+        void moveMarker(String userId, double latitude, double longitude);
+    }
+
+    /**
+     * Fixes queued in a frame
+     */
+    private static class FixBuffer {
+        String[] userIds = new String[INITIAL_CAPACITY];
+        double[] latitudes = new double[INITIAL_CAPACITY];
+        double[] longitudes = new double[INITIAL_CAPACITY];
+        long[] times = new long[INITIAL_CAPACITY];
+        int count = 0;
+
+        void add(String userId, double latitude, double longitude, long time) {
+            if (count == latitudes.length) {
+                String[] grownUserIds = new String[count * 2];
+                System.arraycopy(userIds, 0, grownUserIds, 0, count);
+                userIds = grownUserIds;
+                double[] grownLatitudes = new double[count * 2];
+                double[] grownLongitudes = new double[count * 2];
+                long[] grownTimes = new long[count * 2];
+                System.arraycopy(latitudes, 0, grownLatitudes, 0, count);
+                System.arraycopy(longitudes, 0, grownLongitudes, 0, count);
+                System.arraycopy(times, 0, grownTimes, 0, count);
+                latitudes = grownLatitudes;
+                longitudes = grownLongitudes;
+                times = grownTimes;
+            }
+            userIds[count] = userId;
+            latitudes[count] = latitude;
+            longitudes[count] = longitude;
+            times[count] = time;
+            count++;
+        }
+    }
+
+    /**
+     * Create a new queue. Must be called on the main thread.
+     *
+     * @param target Receives the updates of a frame
+     */
+    public MapUpdateQueue(Target target) {
+        this.target = target;
+        this.choreographer = Choreographer.getInstance();
+    }
+
+    /**
+     * Queue a fix for the heatmap and trails
+     *
+     * @param userId    Participant
+     * @param latitude  Latitude
+     * @param longitude Longitude
+     * @param time      Time in milliseconds since the epoch
+     */
+    public void addFix(String userId, double latitude, double longitude, long time) {
+        added.add(userId, latitude, longitude, time);
+        received();
+    }
+
+    /**
+     * Queue the removal of a fix from the heatmap and trails
+     *
+     * @param userId    Participant
+     * @param latitude  Latitude
+     * @param longitude Longitude
+     * @param time      Time in milliseconds since the epoch
+     */
+    public void removeFix(String userId, double latitude, double longitude, long time) {
+        removed.add(userId, latitude, longitude, time);
+        received();
+    }
+
+    /**
+     * Queue a marker move. Replaces an earlier move of the same participant in this frame.
+     *
+     * @param userId    Participant
+     * @param latitude  Latitude
+     * @param longitude Longitude
+     */
+    public void moveMarker(String userId, double latitude, double longitude) {
+        double[] position = markers.get(userId);
+        if (position == null) {
+            markers.put(userId, new double[]{latitude, longitude});
+        } else {
+            position[0] = latitude;
+            position[1] = longitude;
+        }
+        received();
+    }
+
+    /**
+     * Drop all queued updates
+     */
+    public void clear() {
+        added.count = 0;
+        removed.count = 0;
+        markers.clear();
+        receivedInFrame = 0;
+        if (scheduled) {
+            choreographer.removeFrameCallback(this);
+            scheduled = false;
+        }
+    }
+
+    private void received() {
+        receivedInFrame++;
+        received++;
+        if (!scheduled) {
+            scheduled = true;
+            choreographer.postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        scheduled = false;
+        long start = Metrics.startTime();
+
+        int updates = added.count + removed.count + markers.size();
+        if (added.count > 0) {
+            target.addFixes(added.userIds, added.latitudes, added.longitudes, added.times, added.count);
+            added.count = 0;
+        }
+        if (removed.count > 0) {
+            target.removeFixes(removed.userIds, removed.latitudes, removed.longitudes, removed.times, removed.count);
+            removed.count = 0;
+        }
+        for (Map.Entry<String, double[]> marker : markers.entrySet()) {
+            target.moveMarker(marker.getKey(), marker.getValue()[0], marker.getValue()[1]);
+        }
+        markers.clear();
+        FRAME_TIME.recordSince(start);
+        FRAME_UPDATES.add(updates);
+
+        frames++;
+        applied += updates;
+        maxMerged = Math.max(maxMerged, receivedInFrame);
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Frame merged " + receivedInFrame + " updates into " + updates + " map changes, "
+                    + getAverageMerged() + " updates per frame on average");
+        }
+        receivedInFrame = 0;
+    }
+
+    /**
+     * Get the number of frames updates were applied in
+     *
+     * @return Number of frames
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * Get the number of updates queued
+     *
+     * @return Number of updates
+     */
+    public long getReceived() {
+        return received;
+    }
+
+    /**
+     * Get the number of updates applied after coalescing marker moves
+     *
+     * @return Number of updates
+     */
+    public long getApplied() {
+        return applied;
+    }
+
+    /**
+     * Get the average number of updates merged into a frame
+     *
+     * @return Updates per frame
+     */
+    public double getAverageMerged() {
+        return frames == 0 ? 0 : (double) received / frames;
+    }
+
+    /**
+     * Get the highest number of updates merged into a single frame
+     *
+     * @return Number of updates
+     */
+    public int getMaxMerged() {
+        return maxMerged;
+    }
+}
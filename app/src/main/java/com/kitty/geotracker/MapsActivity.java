@@ -9,10 +9,16 @@ import android.support.annotation.NonNull;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.app.FragmentActivity;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.support.v7.app.AlertDialog;
 import android.util.Log;
 import android.view.View;
 import android.view.WindowManager;
+import android.widget.Button;
+import android.widget.SeekBar;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import com.getbase.floatingactionbutton.FloatingActionButton;
@@ -23,19 +29,19 @@ import com.google.android.gms.maps.OnMapReadyCallback;
 import com.google.android.gms.maps.SupportMapFragment;
 import com.google.android.gms.maps.UiSettings;
 import com.google.android.gms.maps.model.LatLng;
-import com.google.android.gms.maps.model.Marker;
-import com.google.android.gms.maps.model.MarkerOptions;
 import com.google.android.gms.maps.model.TileOverlay;
 import com.google.android.gms.maps.model.TileOverlayOptions;
-import com.google.maps.android.heatmaps.HeatmapTileProvider;
+import com.google.maps.android.heatmaps.WeightedLatLng;
 import com.kitty.geotracker.dialogs.JoinSession;
 import com.kitty.geotracker.dialogs.StartSession;
 
+import java.text.DateFormat;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 
 import im.delight.android.ddp.ResultListener;
-import im.delight.android.ddp.db.Document;
 
 import static android.content.pm.PackageManager.PERMISSION_GRANTED;
 
@@ -44,21 +50,62 @@ public class MapsActivity extends FragmentActivity implements
         View.OnClickListener,
         StartSession.StartSessionListener,
         JoinSession.JoinSessionListener,
-        MeteorController.MeteorControllerListener {
+        MeteorController.MeteorControllerListener,
+        SeekBar.OnSeekBarChangeListener {
 
     private GoogleMap mMap;
     private FloatingActionsMenu floatingMenu;
-    private FloatingActionButton btnJoinSession, btnStartSession, btnLeaveSession, btnEndSession;
+    private FloatingActionButton btnJoinSession, btnStartSession, btnLeaveSession, btnEndSession, btnReplay;
     private MeteorController meteorController;
-    private HashMap<String, Marker> mapMarkers = new HashMap<>();
+    private ParticipantMarkers participantMarkers;
+    private TrailLayer trailLayer;
     private Intent serviceIntent;
 
     // Permission request codes
     private static final int REQUEST_CODE_JOIN_SESSION = 0, REQUEST_CODE_CAMERA_OVERHEAD = 1;
 
-    ArrayList<LatLng> mapData = new ArrayList<>();
-    HeatmapTileProvider mProvider;
+    // Heatmap
+    private static final int HEATMAP_RADIUS = 20; // in pixels
+    private static final double HEATMAP_OPACITY = 0.4;
+    private static final int HEATMAP_MAX_TILES = 256;
+    IncrementalHeatmapTileProvider mProvider = new IncrementalHeatmapTileProvider(HEATMAP_RADIUS, HEATMAP_OPACITY,
+            HEATMAP_MAX_TILES);
     TileOverlay mOverlay;
+    private MapUpdateQueue updateQueue;
+
+    // Live heatmap points of every participant in the order of its track in the timeline, null for
+    // points that are in the heatmap window instead, so evicted fixes can be removed again
+    private final HashMap<String, ArrayList<WeightedLatLng>> livePoints = new HashMap<>();
+
+    // Participant markers
+    private static final float MARKER_CLUSTER_ZOOM = 12;
+    private static final double MARKER_CLUSTER_CELL = 64; // in pixels
+    private static final double MARKER_MIN_MOVE = 2; // in pixels
+
+    // Trails
+    private static final double TRAIL_TOLERANCE = 1.5; // in pixels
+
+    // Sliding heatmap window
+    public static final String PREF_HEATMAP_WINDOW = "heatmap_window";
+    private static final int HEATMAP_WINDOW_CAPACITY = 50000; // in points
+    private static final long HEATMAP_EXPIRY_INTERVAL = 1000; // in milliseconds
+    private static final int HEATMAP_EXPIRY_BATCH = 500; // in points
+    private HeatmapWindow heatmapWindow;
+    private final Handler handler = new Handler();
+
+    // Replay
+    private static final int[] REPLAY_SPEEDS = {1, 10, 60, 600};
+    private static final long REPLAY_FRAME_INTERVAL = 50; // in milliseconds
+    private static final long REPLAY_SEEK_STEP = 1000; // in milliseconds per seek bar step
+    private final SessionTimeline timeline = new SessionTimeline();
+    private SessionReplay replay;
+    private View replayBar;
+    private Button replayPlay, replaySpeed;
+    private SeekBar replaySeek;
+    private TextView replayTime;
+    private int replaySpeedIndex = 0;
+    private boolean replayPlaying = false;
+    private long replayFrameTime;
 
     static boolean canUpdateHeatMap = false;
 
@@ -74,11 +121,25 @@ public class MapsActivity extends FragmentActivity implements
         btnStartSession = (FloatingActionButton) findViewById(R.id.btn_start_session);
         btnLeaveSession = (FloatingActionButton) findViewById(R.id.btn_leave_session);
         btnEndSession = (FloatingActionButton) findViewById(R.id.btn_end_session);
+        btnReplay = (FloatingActionButton) findViewById(R.id.btn_replay);
         btnSettings.setOnClickListener(this);
         btnJoinSession.setOnClickListener(this);
         btnStartSession.setOnClickListener(this);
         btnLeaveSession.setOnClickListener(this);
         btnEndSession.setOnClickListener(this);
+        btnReplay.setOnClickListener(this);
+
+        // Replay controls
+        replayBar = findViewById(R.id.replay_bar);
+        replayPlay = (Button) findViewById(R.id.replay_play);
+        replaySpeed = (Button) findViewById(R.id.replay_speed);
+        replaySeek = (SeekBar) findViewById(R.id.replay_seek);
+        replayTime = (TextView) findViewById(R.id.replay_time);
+        replayPlay.setOnClickListener(this);
+        replaySpeed.setOnClickListener(this);
+        findViewById(R.id.replay_close).setOnClickListener(this);
+        replaySeek.setOnSeekBarChangeListener(this);
+        replaySpeed.setText(getString(R.string.replay_speed, REPLAY_SPEEDS[replaySpeedIndex]));
 
         // Get map fragment and register callback
         SupportMapFragment mapFragment = (SupportMapFragment) getSupportFragmentManager()
@@ -90,6 +151,38 @@ public class MapsActivity extends FragmentActivity implements
             MeteorController.createInstance(this);
         }
         meteorController = MeteorController.getInstance();
+
+        // The heatmap is updated in the background. The overlay's cache is only cleared once a tile it
+        // was given changed at the zoom level shown. Only the tiles around changed points are rendered
+        // again, the others come from the provider's cache.
+        mProvider.setInvalidationListener(new Runnable() {
+            @Override
+            public void run() {
+                if (mOverlay != null) {
+                    mOverlay.clearTileCache();
+                }
+            }
+        });
+
+        // Apply incoming locations once per frame
+        updateQueue = new MapUpdateQueue(new MapUpdateQueue.Target() {
+            @Override
+            public void addFixes(String[] userIds, double[] latitudes, double[] longitudes, long[] times,
+                                 int count) {
+                MapsActivity.this.addFixes(userIds, latitudes, longitudes, times, count);
+            }
+
+            @Override
+            public void removeFixes(String[] userIds, double[] latitudes, double[] longitudes, long[] times,
+                                    int count) {
+                MapsActivity.this.removeFixes(userIds, latitudes, longitudes, times, count);
+            }
+
+            @Override
+            public void moveMarker(String userId, double latitude, double longitude) {
+                MapsActivity.this.moveMarker(userId, latitude, longitude);
+            }
+        });
     }
 
     public void onClick(View v) {
@@ -131,6 +224,23 @@ public class MapsActivity extends FragmentActivity implements
             case R.id.btn_end_session:
                 endSession();
                 break;
+
+            case R.id.btn_replay:
+                startReplay();
+                break;
+
+            case R.id.replay_play:
+                setReplayPlaying(!replayPlaying);
+                break;
+
+            case R.id.replay_speed:
+                replaySpeedIndex = (replaySpeedIndex + 1) % REPLAY_SPEEDS.length;
+                replaySpeed.setText(getString(R.string.replay_speed, REPLAY_SPEEDS[replaySpeedIndex]));
+                break;
+
+            case R.id.replay_close:
+                stopReplay();
+                break;
         }
     }
 
@@ -138,6 +248,7 @@ public class MapsActivity extends FragmentActivity implements
     public void onDestroy() {
         stopLocationUpdates();
         meteorController.disconnect();
+        mProvider.quit();
         super.onDestroy();
     }
 
@@ -145,10 +256,11 @@ public class MapsActivity extends FragmentActivity implements
     protected void onPause() {
         Log.d(getClass().getSimpleName(), "onPause()");
         super.onPause();
+        handler.removeCallbacks(expireHeatmap);
+        setReplayPlaying(false);
 
-        if (meteorController.getState() == MeteorController.STATE_CREATED_SESSION) {
-            meteorController.disconnect();
-        }
+        // Managers stay connected, so the session does not have to be synced again when they come back
+        meteorController.flushCache();
     }
 
     @Override
@@ -160,8 +272,37 @@ public class MapsActivity extends FragmentActivity implements
             Log.d(getClass().getSimpleName(), "Reconnecting...");
             meteorController.getMeteor().reconnect();
         }
+
+        // Only show the last few minutes on the heatmap if configured. Points received before the window
+        // was enabled stay on the heatmap.
+        long window = MeteorController.getLongPreference(PreferenceManager.getDefaultSharedPreferences(this),
+                PREF_HEATMAP_WINDOW, 0) * 60000;
+        if (window > 0) {
+            if (heatmapWindow == null) {
+                heatmapWindow = new HeatmapWindow(mProvider, HEATMAP_WINDOW_CAPACITY, window);
+            }
+            heatmapWindow.setWindow(window);
+            handler.removeCallbacks(expireHeatmap);
+            handler.post(expireHeatmap);
+        } else {
+            heatmapWindow = null;
+        }
     }
 
+    /**
+     * Removes points that left the heatmap window, a batch at a time
+     */
+    private final Runnable expireHeatmap = new Runnable() {
+        @Override
+        public void run() {
+            if (heatmapWindow == null) {
+                return;
+            }
+            heatmapWindow.expire(System.currentTimeMillis(), HEATMAP_EXPIRY_BATCH);
+            handler.postDelayed(this, HEATMAP_EXPIRY_INTERVAL);
+        }
+    };
+
     /**
      * Callback for the result from requesting permissions.
      *
@@ -213,6 +354,27 @@ public class MapsActivity extends FragmentActivity implements
         mUiSettings.setZoomControlsEnabled(true);
         mUiSettings.setCompassEnabled(true);
 
+        // Only show markers of participants in view and cluster them when zoomed out
+        participantMarkers = new ParticipantMarkers(mMap, new ParticipantMarkers.TitleSource() {
+            @Override
+            public String getTitle(String userId) {
+                return markerTitle(userId, meteorController.getDisplayName(userId));
+            }
+        }, MARKER_CLUSTER_ZOOM, MARKER_CLUSTER_CELL, MARKER_MIN_MOVE);
+
+        // Show participant trails simplified for the current zoom level
+        trailLayer = new TrailLayer(mMap, TRAIL_TOLERANCE, (int) mMap.getCameraPosition().zoom);
+
+        mMap.setOnCameraIdleListener(new GoogleMap.OnCameraIdleListener() {
+            @Override
+            public void onCameraIdle() {
+                participantMarkers.onCameraIdle();
+                trailLayer.setZoom((int) mMap.getCameraPosition().zoom);
+                mProvider.setVisibleZoom(mMap.getCameraPosition().zoom);
+            }
+        });
+        mProvider.setVisibleZoom(mMap.getCameraPosition().zoom);
+
         // Check permissions
         if (ActivityCompat.checkSelfPermission(this, android.Manifest.permission.ACCESS_FINE_LOCATION) !=
                 PERMISSION_GRANTED) {
@@ -284,6 +446,7 @@ public class MapsActivity extends FragmentActivity implements
         btnJoinSession.setVisibility(View.GONE);
         btnLeaveSession.setVisibility(View.GONE);
         btnEndSession.setVisibility(View.VISIBLE);
+        btnReplay.setVisibility(View.VISIBLE);
 
         // Keep the screen on
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
@@ -368,8 +531,20 @@ public class MapsActivity extends FragmentActivity implements
         meteorController.leaveSession();
 
         // Clear data
+        setReplayPlaying(false);
+        replay = null;
+        replayBar.setVisibility(View.GONE);
+        timeline.clear();
+        livePoints.clear();
         mMap.clear();
-        mapMarkers.clear();
+        participantMarkers.reset();
+        trailLayer.reset();
+        mProvider.clear();
+        mOverlay = null;
+        updateQueue.clear();
+        if (heatmapWindow != null) {
+            heatmapWindow.clear();
+        }
     }
 
     /**
@@ -414,6 +589,7 @@ public class MapsActivity extends FragmentActivity implements
                     btnStartSession.setVisibility(View.VISIBLE);
                     btnJoinSession.setVisibility(View.VISIBLE);
                     btnEndSession.setVisibility(View.GONE);
+                    btnReplay.setVisibility(View.GONE);
 
                     // Show confirmation
                     new AlertDialog.Builder(MapsActivity.this)
@@ -463,78 +639,350 @@ public class MapsActivity extends FragmentActivity implements
     }
 
     /**
-     * Triggered when GPS data is received from Meteor
+     * Triggered when GPS data is received from Meteor. The fix is added to the heatmap and the user's
+     * trail with the next frame.
      *
-     * @param documentID GPS document that was received
+     * @param userId    User the fix belongs to
+     * @param latitude  Latitude of the fix
+     * @param longitude Longitude of the fix
+     * @param time      Time of the fix in milliseconds since the epoch
      */
     @Override
-    public void onReceivedGPSData(String documentID) {
-        // Get the document
-        Document document = meteorController.getMeteor()
-                .getDatabase()
-                .getCollection(MeteorController.COLLECTION_GPS_DATA)
-                .getDocument(documentID);
+    public void onReceivedGPSData(String userId, double latitude, double longitude, long time) {
+        updateQueue.addFix(userId, latitude, longitude, time);
+    }
 
-        try {
-            // Retrieve latitude
-            double latitude = Double.parseDouble(
-                    document.getField(MeteorController.COLLECTION_GPS_DATA_COLUMN_LATITUDE).toString()
-            );
+    /**
+     * Triggered when GPS data was evicted from the local store or removed by the server. The fix is
+     * removed from the heatmap, timeline and the user's trail with the next frame.
+     *
+     * @param userId    User the fix belongs to
+     * @param latitude  Latitude of the fix
+     * @param longitude Longitude of the fix
+     * @param time      Time of the fix in milliseconds since the epoch
+     */
+    @Override
+    public void onRemovedGPSData(String userId, double latitude, double longitude, long time) {
+        updateQueue.removeFix(userId, latitude, longitude, time);
+    }
 
-            // Retrieve longitude
-            double longitude = Double.parseDouble(
-                    document.getField(MeteorController.COLLECTION_GPS_DATA_COLUMN_LONGITUDE).toString()
-            );
+    /**
+     * Triggered when the live position of a participant changed. The participant's marker is moved with
+     * the next frame.
+     *
+     * @param userId    Participant
+     * @param latitude  Latest latitude
+     * @param longitude Latest longitude
+     */
+    @Override
+    public void onReceivedLivePosition(String userId, double latitude, double longitude) {
+        updateQueue.moveMarker(userId, latitude, longitude);
+    }
+
+    /**
+     * Triggered when a user's display name changed. Updates the title of the user's marker.
+     *
+     * @param userId      User
+     * @param displayName New display name or null
+     */
+    @Override
+    public void onDisplayNameChanged(String userId, String displayName) {
+        if (participantMarkers != null) {
+            participantMarkers.updateTitle(userId);
+        }
+    }
+
+    private static String markerTitle(String userId, String displayName) {
+        return displayName != null ? displayName : userId;
+    }
+
+    /**
+     * Add the fixes received during a frame to the heatmap and trails
+     *
+     * @param userIds    Participants the fixes belong to
+     * @param latitudes  Latitudes
+     * @param longitudes Longitudes
+     * @param times      Times in milliseconds since the epoch
+     * @param count      Number of points
+     */
+    private void addFixes(String[] userIds, double[] latitudes, double[] longitudes, long[] times, int count) {
+        for (int i = 0; i < count; i++) {
+            int index = timeline.add(userIds[i], latitudes[i], longitudes[i], times[i]);
+            if (trailLayer != null) {
+                trailLayer.add(userIds[i], latitudes[i], longitudes[i]);
+            }
+            if (replay != null) {
+                // The heatmap shows the replayed instant
+                replay.onAdded(userIds[i], index);
+            } else {
+                addLivePoint(userIds[i], index, latitudes[i], longitudes[i], times[i]);
+            }
+        }
+
+        if (mOverlay == null) {
+            mOverlay = mMap.addTileOverlay(new TileOverlayOptions().tileProvider(mProvider));
+        }
+        if (trailLayer != null) {
+            trailLayer.flush();
+        }
+        if (replay != null) {
+            updateReplayControls();
+        }
+    }
+
+    /**
+     * Remove fixes that were evicted or removed from the local GPS data from the heatmap, timeline and
+     * trails. Points in the heatmap window leave the heatmap with the window.
+     * <p>
+     * The fixes of a document arrive together and are usually next to each other in the participant's
+     * track, so they are removed as a run with a single range removal from every structure.
+     *
+     * @param userIds    Participants the fixes belong to
+     * @param latitudes  Latitudes
+     * @param longitudes Longitudes
+     * @param times      Times in milliseconds since the epoch
+     * @param count      Number of points
+     */
+    private void removeFixes(String[] userIds, double[] latitudes, double[] longitudes, long[] times, int count) {
+        String runUser = null;
+        int runIndex = 0, runCount = 0;
+        for (int i = 0; i < count; i++) {
+            int index = timeline.indexOf(userIds[i], latitudes[i], longitudes[i], times[i]);
+            if (runCount > 0 && userIds[i].equals(runUser) && index >= runIndex && index < runIndex + runCount) {
+                // A duplicate of a fix in the run, look for it again once the run is gone
+                removeRun(runUser, runIndex, runCount);
+                runCount = 0;
+                index = timeline.indexOf(userIds[i], latitudes[i], longitudes[i], times[i]);
+            }
+            if (index < 0) {
+                continue;
+            }
 
-            LatLng location = new LatLng(latitude, longitude);
-            mapData.add(location);
+            if (runCount > 0 && userIds[i].equals(runUser) && index == runIndex + runCount) {
+                runCount++;
+            } else {
+                if (runCount > 0) {
+                    removeRun(runUser, runIndex, runCount);
+                    if (userIds[i].equals(runUser)) {
+                        // Fixes after the run moved
+                        index = timeline.indexOf(userIds[i], latitudes[i], longitudes[i], times[i]);
+                    }
+                }
+                runUser = userIds[i];
+                runIndex = index;
+                runCount = 1;
+            }
+        }
+        if (runCount > 0) {
+            removeRun(runUser, runIndex, runCount);
+        }
 
-            if (mProvider == null) {
-                mProvider = new HeatmapTileProvider.Builder()
-                        .data(mapData)
-                        .build();
+        if (trailLayer != null) {
+            trailLayer.flush();
+        }
+        if (replay != null) {
+            updateReplayControls();
+        }
+    }
 
-                mProvider.setOpacity(.4);
+    /**
+     * Remove consecutive fixes of a participant from the heatmap, timeline and trail
+     *
+     * @param userId Participant
+     * @param index  Index of the first fix in the participant's track
+     * @param count  Number of fixes
+     */
+    private void removeRun(String userId, int index, int count) {
+        timeline.remove(userId, index, count);
+        if (trailLayer != null) {
+            trailLayer.removeOldest(userId, count);
+        }
+        if (replay != null) {
+            replay.onRemoved(userId, index, count);
+            return;
+        }
 
-                mOverlay = mMap.addTileOverlay(new TileOverlayOptions().tileProvider(mProvider));
+        ArrayList<WeightedLatLng> points = livePoints.get(userId);
+        if (points != null && index < points.size()) {
+            List<WeightedLatLng> removed = points.subList(index, Math.min(index + count, points.size()));
+            for (WeightedLatLng point : removed) {
+                if (point != null) {
+                    mProvider.remove(point);
+                }
             }
+            removed.clear();
+            if (points.isEmpty()) {
+                livePoints.remove(userId);
+            }
+        }
+    }
 
+    /**
+     * Add a fix to the live heatmap, or to the heatmap window if there is one and the fix is within it
+     *
+     * @param userId    Participant
+     * @param index     Index of the fix in the participant's track
+     * @param latitude  Latitude
+     * @param longitude Longitude
+     * @param time      Time in milliseconds since the epoch
+     */
+    private void addLivePoint(String userId, int index, double latitude, double longitude, long time) {
+        ArrayList<WeightedLatLng> points = livePoints.get(userId);
+        if (points == null) {
+            points = new ArrayList<>();
+            livePoints.put(userId, points);
+        }
+        if (heatmapWindow != null) {
+            // Points that are already outside the window, e.g. when a long session is restored, are skipped
+            if (time >= System.currentTimeMillis() - heatmapWindow.getWindow()) {
+                heatmapWindow.add(latitude, longitude, time);
+            }
+            points.add(index, null);
+        } else {
+            points.add(index, mProvider.add(new LatLng(latitude, longitude)));
+        }
+    }
 
-            mProvider.setData(mapData);
-            mOverlay.clearTileCache();
+    /**
+     * Move a participant's marker, creating it if necessary. Markers of participants out of view are
+     * removed and markers of participants close together are clustered when zoomed out.
+     *
+     * @param userId    Participant
+     * @param latitude  Latest latitude
+     * @param longitude Latest longitude
+     */
+    private void moveMarker(String userId, double latitude, double longitude) {
+        if (participantMarkers != null && replay == null) {
+            participantMarkers.update(userId, latitude, longitude);
+        }
+    }
 
+    /**
+     * Replace the live heatmap and markers with a replay of the session, starting at its end
+     */
+    private void startReplay() {
+        if (replay != null || participantMarkers == null) {
+            return;
+        }
+        if (timeline.isEmpty()) {
+            Toast.makeText(this, R.string.replay_empty, Toast.LENGTH_SHORT).show();
+            return;
+        }
 
-            // Get the user's id
-            String userId = document.getField(MeteorController.COLLECTION_GPS_DATA_COLUMN_USER_ID).toString();
+        // The replay shows its own points and markers
+        mProvider.clear();
+        livePoints.clear();
+        if (heatmapWindow != null) {
+            heatmapWindow.clear();
+        }
+        participantMarkers.clear();
 
-            Document userDocument = meteorController
-                    .getMeteor()
-                    .getDatabase()
-                    .getCollection(MeteorController.COLLECTION_USERS)
-                    .whereEqual(MeteorController.COLLECTION_USERS_COLUMN_USER, userId)
-                    .findOne();
+        replay = new SessionReplay(timeline, mProvider, participantMarkers);
+        replay.seek(timeline.getEndTime());
+        if (mOverlay == null) {
+            mOverlay = mMap.addTileOverlay(new TileOverlayOptions().tileProvider(mProvider));
+        }
+        replayBar.setVisibility(View.VISIBLE);
+        updateReplayControls();
+    }
 
-            String displayName = null;
-            if (userDocument != null) {
-                displayName = (String) userDocument.getField(MeteorController.COLLECTION_USERS_COLUMN_NAME);
+    /**
+     * Stop the replay and show the live state of the session again
+     */
+    private void stopReplay() {
+        if (replay == null) {
+            return;
+        }
+        setReplayPlaying(false);
+        replay.clear();
+        replay = null;
+        replayBar.setVisibility(View.GONE);
+
+        // Rebuild the live heatmap and markers from the timeline
+        long cutoff = heatmapWindow != null ? System.currentTimeMillis() - heatmapWindow.getWindow() : 0;
+        for (SessionTimeline.Track track : timeline.getTracks()) {
+            ArrayList<WeightedLatLng> points = new ArrayList<>(track.size());
+            livePoints.put(track.getUserId(), points);
+            for (int i = 0; i < track.size(); i++) {
+                if (heatmapWindow == null) {
+                    points.add(mProvider.add(new LatLng(track.getLatitude(i), track.getLongitude(i))));
+                } else {
+                    if (track.getTime(i) >= cutoff) {
+                        heatmapWindow.add(track.getLatitude(i), track.getLongitude(i), track.getTime(i));
+                    }
+                    points.add(null);
+                }
             }
+            int last = track.size() - 1;
+            participantMarkers.update(track.getUserId(), track.getLatitude(last), track.getLongitude(last));
+        }
+    }
 
-            displayName = displayName != null ? displayName : userId;
+    /**
+     * Start or pause the playback of the replay
+     *
+     * @param playing True to play
+     */
+    private void setReplayPlaying(boolean playing) {
+        handler.removeCallbacks(replayFrame);
+        replayPlaying = playing && replay != null;
+        replayPlay.setText(replayPlaying ? R.string.replay_pause : R.string.replay_play);
+        if (replayPlaying) {
+            // Play from the start if the end was reached
+            if (replay.getTime() >= timeline.getEndTime()) {
+                replay.seek(timeline.getStartTime());
+            }
+            replayFrameTime = SystemClock.uptimeMillis();
+            handler.post(replayFrame);
+        }
+    }
 
-            // Use existing marker for this user if it already exists, otherwise, create a new one.
-            if (mapMarkers.containsKey(userId)) {
-                Marker marker = mapMarkers.get(userId);
-                marker.setPosition(location);
-                marker.setTitle(displayName);
+    /**
+     * Advances the replay by the elapsed time multiplied with the playback speed
+     */
+    private final Runnable replayFrame = new Runnable() {
+        @Override
+        public void run() {
+            if (replay == null) {
+                return;
+            }
+            long now = SystemClock.uptimeMillis();
+            long time = replay.getTime() + (now - replayFrameTime) * REPLAY_SPEEDS[replaySpeedIndex];
+            replayFrameTime = now;
+
+            replay.seek(Math.min(time, timeline.getEndTime()));
+            updateReplayControls();
+            if (time >= timeline.getEndTime()) {
+                setReplayPlaying(false);
             } else {
-                Marker marker = mMap.addMarker(new MarkerOptions()
-                        .position(location)
-                        .title(displayName)
-                );
-                mapMarkers.put(userId, marker);
+                handler.postDelayed(this, REPLAY_FRAME_INTERVAL);
             }
-        } catch (NullPointerException e) {
-            Log.e(getClass().getSimpleName(), "Error on GPS data receipt: " + e.getMessage());
         }
+    };
+
+    /**
+     * Show the replayed instant on the seek bar, which covers the whole timeline
+     */
+    private void updateReplayControls() {
+        long start = timeline.getStartTime();
+        replaySeek.setMax((int) ((timeline.getEndTime() - start) / REPLAY_SEEK_STEP));
+        replaySeek.setProgress((int) ((replay.getTime() - start) / REPLAY_SEEK_STEP));
+        replayTime.setText(DateFormat.getTimeInstance(DateFormat.MEDIUM).format(new Date(replay.getTime())));
+    }
+
+    @Override
+    public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+        if (fromUser && replay != null) {
+            replay.seek(timeline.getStartTime() + progress * REPLAY_SEEK_STEP);
+            replayTime.setText(DateFormat.getTimeInstance(DateFormat.MEDIUM).format(new Date(replay.getTime())));
+        }
+    }
+
+    @Override
+    public void onStartTrackingTouch(SeekBar seekBar) {
+    }
+
+    @Override
+    public void onStopTrackingTouch(SeekBar seekBar) {
     }
 }
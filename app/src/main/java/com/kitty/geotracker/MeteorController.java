@@ -2,19 +2,26 @@ package com.kitty.geotracker;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.location.Location;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
+import android.util.Base64;
 import android.util.Log;
 
 import com.google.android.gms.iid.InstanceID;
+import com.kitty.geotracker.db.DocumentCache;
+import com.kitty.geotracker.db.IndexedDatabase;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Locale;
-import java.util.Map;
 
 import im.delight.android.ddp.Meteor;
 import im.delight.android.ddp.MeteorCallback;
@@ -24,18 +31,51 @@ import im.delight.android.ddp.SubscribeListener;
 import im.delight.android.ddp.db.Collection;
 import im.delight.android.ddp.db.Database;
 import im.delight.android.ddp.db.Document;
-import im.delight.android.ddp.db.memory.InMemoryDatabase;
 
 public class MeteorController implements MeteorCallback, SharedPreferences.OnSharedPreferenceChangeListener {
 
     private static MeteorController mInstance;
     private Meteor meteor;
-    private Database database;
+    private IndexedDatabase database;
+    private GPSDataStore gpsData;
+    private DocumentCache cache;
+    private final JsonFieldDecoder fieldDecoder = new JsonFieldDecoder(1024);
     private static String userId, displayName;
-    private String session = null, sessionDocumentId = null;
-    private int state = STATE_NO_SESSION;
+    private volatile String session = null;
+    private String sessionDocumentId = null;
+    private volatile int state = STATE_NO_SESSION;
     private static final String DEFAULT_METEOR_URL = "geotracker-web.herokuapp.com";
     private MeteorControllerListener mListener = null;
+    private final HashMap<String, String> displayNames = new HashMap<>();
+    private final HashMap<String, String> userDocumentIds = new HashMap<>();
+    private LocationUpload locationUpload;
+    private volatile FixJournal journal = null;
+    private boolean uploading = false;
+    private int uploadGeneration = 0;
+    private volatile boolean compactEncoding;
+    private final HashMap<String, Object> uploadData = new HashMap<>();
+    private final HashMap<String, Object> uploadPacked = new HashMap<>();
+    private final HashMap<String, Object> liveData = new HashMap<>();
+    private final Object[] liveParams = {liveData};
+    private final UploadPressure uploadPressure = new UploadPressure(PRESSURE_QUEUE_DEPTH, PRESSURE_ROUND_TRIP_TIME,
+            PRESSURE_MAX_SCALE);
+    private final HandlerThread uploadThread;
+    private final Handler uploadHandler;
+    private final Fix liveFix = new Fix();
+    private boolean livePending = false, liveUploading = false;
+    private long liveSentAt = -1;
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushLocations();
+        }
+    };
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private boolean retentionEnabled = false;
+    private final HashMap<String, Metrics.Counter> ddpMessages = new HashMap<>();
+    private boolean disconnected = false;
+    private final HashMap<String, HashSet<String>> unconfirmedDocuments = new HashMap<>();
+    private final HashSet<String> syncedCollections = new HashSet<>();
     private final String TAG = getClass().getSimpleName();
 
     // States
@@ -60,6 +100,47 @@ public class MeteorController implements MeteorCallback, SharedPreferences.OnSha
     public static final String COLLECTION_GPS_DATA_COLUMN_BEARING = "bearing";
     public static final String COLLECTION_GPS_DATA_COLUMN_SPEED = "speed";
     public static final String COLLECTION_GPS_DATA_COLUMN_TIME = "time";
+    public static final String COLLECTION_GPS_DATA_COLUMN_FIXES = "fixes";
+    public static final String COLLECTION_GPS_DATA_COLUMN_PACKED = "packed";
+
+    // Batching
+    public static final String PREF_BATCH_MAX_SIZE = "batch_max_size";
+    public static final String PREF_BATCH_MAX_AGE = "batch_max_age";
+    private static final int DEFAULT_BATCH_MAX_SIZE = 50;
+    private static final long DEFAULT_BATCH_MAX_AGE = 60000; // in milliseconds
+    private static final int CATCH_UP_BATCH_SIZE = 100;
+    private static final long CATCH_UP_INTERVAL = 1000; // in milliseconds
+    public static final String PREF_COMPACT_ENCODING = "compact_encoding";
+    static final String EJSON_BINARY = "$binary";
+
+    // Retention of GPS data, 0 is unlimited
+    public static final String PREF_RETENTION_MAX_DOCUMENTS = "retention_max_documents";
+    public static final String PREF_RETENTION_MAX_AGE = "retention_max_age";
+    public static final String PREF_RETENTION_KEEP_PER_USER = "retention_keep_per_user";
+    private static final long EVICTION_INTERVAL = 1000; // in milliseconds
+    private static final int EVICTION_BATCH = 100; // in documents
+
+    // Documents are requested again from a little before the newest cached fix of a session, to cover
+    // fixes that reached the server late
+    private static final long SYNC_OVERLAP = 300000; // in milliseconds
+
+    // Metrics
+    public static final String PREF_METRICS_ENABLED = "metrics_enabled";
+    private static final Metrics.Counter FIXES_SENT = Metrics.counter("fixes.sent");
+    private static final Metrics.Gauge UPLOAD_QUEUE_DEPTH = Metrics.gauge("upload.queue");
+    private static final Metrics.Histogram UPLOAD_TIME = Metrics.histogram("upload.round_trip");
+    private static final Metrics.Counter RECONNECTS = Metrics.counter("meteor.reconnects");
+    private static final Metrics.Counter DDP_OTHER_MESSAGES = Metrics.counter("ddp.messages.other");
+
+    // Backpressure
+    private static final int PRESSURE_QUEUE_DEPTH = CATCH_UP_BATCH_SIZE; // in locations
+    private static final long PRESSURE_ROUND_TRIP_TIME = 2000; // in milliseconds
+    private static final double PRESSURE_MAX_SCALE = 10;
+
+    // Live positions, one document per participant and session holding the latest location
+    public static final String COLLECTION_LIVE_POSITIONS = "LivePositions";
+    public static final String METHOD_UPDATE_LIVE_POSITION = "updateLivePosition";
+    private static final long LIVE_POSITION_INTERVAL = 2000; // in milliseconds
 
     // Users
     public static final String COLLECTION_USERS = "Users";
@@ -69,9 +150,13 @@ public class MeteorController implements MeteorCallback, SharedPreferences.OnSha
     // Subscriptions
     public static final String SUBSCRIPTION_SESSION_LIST = "SessionsList";
     public static final String SUBSCRIPTION_USERS = "Users";
+    public static final String SUBSCRIPTION_LIVE_POSITIONS = "LivePositions";
 
     public interface MeteorControllerListener {
-        void onReceivedGPSData(final String documentID);
+        void onReceivedGPSData(String userId, double latitude, double longitude, long time);
+        void onRemovedGPSData(String userId, double latitude, double longitude, long time);
+        void onReceivedLivePosition(String userId, double latitude, double longitude);
+        void onDisplayNameChanged(String userId, String displayName);
         void onSessionClosed(String sessionName);
         void onSessionManage(String sessionName);
         void onSessionMessage(String message, boolean toast);
@@ -93,6 +178,26 @@ public class MeteorController implements MeteorCallback, SharedPreferences.OnSha
         String meteorUrl = String.format(Locale.US, "ws://%s/websocket",
                 prefs.getString("meteor_ip", DEFAULT_METEOR_URL));
 
+        // Create the location upload and its batcher
+        locationUpload = new LocationUpload(uploadPressure, new LocationBatcher(
+                (int) getLongPreference(prefs, PREF_BATCH_MAX_SIZE, DEFAULT_BATCH_MAX_SIZE),
+                getLongPreference(prefs, PREF_BATCH_MAX_AGE, DEFAULT_BATCH_MAX_AGE)
+        ));
+        compactEncoding = prefs.getBoolean(PREF_COMPACT_ENCODING, false);
+
+        // Count DDP messages per collection. Counters are looked up by collection name, so counting
+        // does not build any strings.
+        Metrics.setEnabled(prefs.getBoolean(PREF_METRICS_ENABLED, false));
+        for (String collectionName : new String[]{COLLECTION_SESSIONS, COLLECTION_GPS_DATA,
+                COLLECTION_LIVE_POSITIONS, COLLECTION_USERS}) {
+            ddpMessages.put(collectionName, Metrics.counter("ddp.messages." + collectionName));
+        }
+
+        // Location uploads are handled on their own thread
+        uploadThread = new HandlerThread("MeteorController-upload", Process.THREAD_PRIORITY_BACKGROUND);
+        uploadThread.start();
+        uploadHandler = new Handler(uploadThread.getLooper());
+
         // Bind the meteor controller listener
         if (context instanceof MeteorControllerListener) {
             mListener = (MeteorControllerListener) context;
@@ -100,9 +205,26 @@ public class MeteorController implements MeteorCallback, SharedPreferences.OnSha
             throw new RuntimeException(context.toString() + " must implement MeteorControllerListener");
         }
 
+        // Create the local database. It is filled from the callbacks, so the DDP client does not parse
+        // every document into generic fields.
+        database = createDatabase();
+        gpsData = (GPSDataStore) database.getCollectionStore(COLLECTION_GPS_DATA);
+
+        // Evict GPS data beyond the retention limits
+        setRetention(prefs);
+
+        // Restore the documents of the last run, so sessions can be shown before they are downloaded again
+        cache = new DocumentCache(context.getApplicationContext());
+        cache.load(new DocumentCache.Loader() {
+            @Override
+            public void onCachedDocument(String collectionName, String documentID, String fieldsJson) {
+                restoreDocument(collectionName, documentID, fieldsJson);
+            }
+        });
+
         // Create a new Meteor instance
         if (!MeteorSingleton.hasInstance()) {
-            meteor = MeteorSingleton.createInstance(context, meteorUrl, new InMemoryDatabase());
+            meteor = MeteorSingleton.createInstance(context, meteorUrl);
             meteor.addCallback(this);
         } else {
             meteor = MeteorSingleton.getInstance();
@@ -113,14 +235,12 @@ public class MeteorController implements MeteorCallback, SharedPreferences.OnSha
             connect();
         }
 
-        // Store database in local variable
-        database = meteor.getDatabase();
-
         // Subscribe to users
         meteor.subscribe(SUBSCRIPTION_USERS, null, new SubscribeListener() {
             @Override
             public void onSuccess() {
                 Log.i(TAG, "[Subscribe Users] Subscribed to " + SUBSCRIPTION_USERS);
+                reconcileCache(COLLECTION_USERS);
                 initializeUser();
                 prefs.registerOnSharedPreferenceChangeListener(MeteorController.this);
             }
@@ -139,6 +259,7 @@ public class MeteorController implements MeteorCallback, SharedPreferences.OnSha
             @Override
             public void onSuccess() {
                 Log.d(getClass().getSimpleName(), "Subscribe to session list successful");
+                reconcileCache(COLLECTION_SESSIONS);
             }
 
             @Override
@@ -182,6 +303,83 @@ public class MeteorController implements MeteorCallback, SharedPreferences.OnSha
         return mInstance != null;
     }
 
+    /**
+     * Apply the GPS data retention limits from the preferences and evict documents beyond them
+     * periodically
+     *
+     * @param prefs Shared preferences
+     */
+    private void setRetention(SharedPreferences prefs) {
+        int maxDocuments = (int) getLongPreference(prefs, PREF_RETENTION_MAX_DOCUMENTS, 0);
+        long maxAge = getLongPreference(prefs, PREF_RETENTION_MAX_AGE, 0) * 60000;
+        int keepPerUser = (int) getLongPreference(prefs, PREF_RETENTION_KEEP_PER_USER, 0);
+        gpsData.setRetention(maxDocuments, maxAge, keepPerUser);
+
+        retentionEnabled = maxDocuments > 0 || maxAge > 0 || keepPerUser > 0;
+        mainHandler.removeCallbacks(evictRunnable);
+        if (retentionEnabled) {
+            mainHandler.post(evictRunnable);
+        }
+    }
+
+    /**
+     * Removes GPS data beyond the retention limits a batch at a time, together with the fixes shown on
+     * the map and the cached documents
+     */
+    private final Runnable evictRunnable = new Runnable() {
+        @Override
+        public void run() {
+            int evicted = gpsData.evict(System.currentTimeMillis(), EVICTION_BATCH, evictionListener);
+            if (evicted > 0) {
+                Log.d(TAG, "Evicted " + evicted + " GPS data documents, " + gpsData.getDocumentCount() + " left");
+            }
+            if (retentionEnabled) {
+                mainHandler.postDelayed(this, EVICTION_INTERVAL);
+            }
+        }
+    };
+
+    /**
+     * Passes the fixes of evicted or removed GPS data to the listener, so they leave the map as well
+     */
+    private final GPSDataStore.Visitor removedFixVisitor = new GPSDataStore.Visitor() {
+        @Override
+        public void onFix(String userId, Fix fix) {
+            if (getState() == STATE_CREATED_SESSION) {
+                mListener.onRemovedGPSData(userId, fix.latitude, fix.longitude, fix.time);
+            }
+        }
+    };
+
+    private final GPSDataStore.EvictionListener evictionListener = new GPSDataStore.EvictionListener() {
+        @Override
+        public void onFix(String userId, Fix fix) {
+            removedFixVisitor.onFix(userId, fix);
+        }
+
+        @Override
+        public void onEvicted(String documentID) {
+            cache.remove(COLLECTION_GPS_DATA, documentID);
+        }
+    };
+
+    /**
+     * Read a numeric preference that is stored as a string
+     *
+     * @param prefs        Shared preferences
+     * @param key          Preference key
+     * @param defaultValue Value to use if the preference is missing or invalid
+     * @return Preference value
+     */
+    static long getLongPreference(SharedPreferences prefs, String key, long defaultValue) {
+        try {
+            long value = Long.parseLong(prefs.getString(key, String.valueOf(defaultValue)));
+            return value > 0 ? value : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
     /**
      * Add the user to the Users collection if they do not exist yet
      */
@@ -298,6 +496,72 @@ public class MeteorController implements MeteorCallback, SharedPreferences.OnSha
         return userId;
     }
 
+    /**
+     * Create the local database with indexes on the fields that are queried. GPS data is kept in a
+     * columnar store.
+     *
+     * @return Database
+     */
+    static IndexedDatabase createDatabase() {
+        return new IndexedDatabase()
+                .addIndex(COLLECTION_USERS, COLLECTION_USERS_COLUMN_USER)
+                .addIndex(COLLECTION_SESSIONS, COLLECTION_SESSIONS_COLUMN_TITLE)
+                .addIndex(COLLECTION_SESSIONS, COLLECTION_SESSIONS_COLUMN_ACTIVE)
+                .addCollectionStore(COLLECTION_GPS_DATA, new GPSDataStore());
+    }
+
+    /**
+     * Get the display name of a user from the users collection
+     *
+     * @param userId User id
+     * @return Display name or null if the user has none
+     */
+    public String getDisplayName(String userId) {
+        return displayNames.get(userId);
+    }
+
+    /**
+     * Update the cached display name of a user after its document was added or changed
+     *
+     * @param documentID Document id in the users collection
+     */
+    private void updateDisplayName(String documentID) {
+        Document document = database.getCollection(COLLECTION_USERS).getDocument(documentID);
+        if (document == null || !(document.getField(COLLECTION_USERS_COLUMN_USER) instanceof String)) {
+            return;
+        }
+
+        String user = (String) document.getField(COLLECTION_USERS_COLUMN_USER);
+        Object field = document.getField(COLLECTION_USERS_COLUMN_NAME);
+        String name = field instanceof String ? (String) field : null;
+
+        userDocumentIds.put(documentID, user);
+        boolean known = displayNames.containsKey(user);
+        String previous = displayNames.put(user, name);
+        if (!known || (previous == null ? name != null : !previous.equals(name))) {
+            mListener.onDisplayNameChanged(user, name);
+        }
+    }
+
+    /**
+     * Set the journal that fixes are written to before they are uploaded
+     *
+     * @param journal Fix journal
+     */
+    public void setJournal(FixJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Get the looper of the thread location uploads are handled on. {@link #postLocation} must be
+     * called on this looper.
+     *
+     * @return Upload looper
+     */
+    public Looper getUploadLooper() {
+        return uploadThread.getLooper();
+    }
+
     /**
      * Connect to Meteor
      */
@@ -321,6 +585,15 @@ public class MeteorController implements MeteorCallback, SharedPreferences.OnSha
         return meteor;
     }
 
+    /**
+     * Get the local copy of the subscribed collections
+     *
+     * @return Database
+     */
+    public Database getDatabase() {
+        return database;
+    }
+
     /**
      * Create a session
      *
@@ -356,6 +629,7 @@ public class MeteorController implements MeteorCallback, SharedPreferences.OnSha
                 sessionDocumentId = documentId;
 
                 // Subscribe to the session
+                subscribeLivePositions(sessionName);
                 meteor.subscribe(sessionName, null, new SubscribeListener() {
                     @Override
                     public void onSuccess() {
@@ -406,7 +680,7 @@ public class MeteorController implements MeteorCallback, SharedPreferences.OnSha
         session = sessionName;
 
         // Check if this user created the session
-        Document document = meteor.getDatabase().getCollection(COLLECTION_SESSIONS)
+        Document document = database.getCollection(COLLECTION_SESSIONS)
                 .whereEqual(COLLECTION_SESSIONS_COLUMN_TITLE, sessionName)
                 .whereEqual(COLLECTION_SESSIONS_COLUMN_ACTIVE, true)
                 .findOne();
@@ -422,9 +696,13 @@ public class MeteorController implements MeteorCallback, SharedPreferences.OnSha
         setState(STATE_CREATED_SESSION);
         sessionDocumentId = document.getId();
 
+        // Show the cached locations right away, the subscription only adds what is new
+        showCachedSession(sessionName);
+
         // Subscribe to the session
         mListener.onSessionMessage("Loading data. Please wait...", true);
-        meteor.subscribe(sessionName, null, new SubscribeListener() {
+        subscribeLivePositions(sessionName);
+        meteor.subscribe(sessionName, getSessionParameters(sessionName), new SubscribeListener() {
             @Override
             public void onSuccess() {
                 Log.d(TAG, "Re-manage \"" + sessionName + "\" successfully");
@@ -446,6 +724,65 @@ public class MeteorController implements MeteorCallback, SharedPreferences.OnSha
         });
     }
 
+    /**
+     * Pass the cached locations and live positions of a session on to the listener
+     *
+     * @param sessionName Session name
+     */
+    private void showCachedSession(String sessionName) {
+        int count = gpsData.visitSession(sessionName, gpsDataVisitor);
+        Document[] livePositions = database.getCollection(COLLECTION_LIVE_POSITIONS)
+                .whereEqual(COLLECTION_GPS_DATA_COLUMN_SESSION_ID, sessionName)
+                .find();
+        for (Document livePosition : livePositions) {
+            dispatchLivePosition(livePosition.getId());
+        }
+        Log.d(TAG, "Showing " + count + " cached locations and " + livePositions.length + " live positions of \""
+                + sessionName + "\"");
+    }
+
+    /**
+     * Get the parameters of a session subscription. If fixes of the session are in the local GPS data,
+     * the time of the newest one minus {@link #SYNC_OVERLAP} is passed, so the server can skip documents
+     * with older fixes. The time is taken from the fixes themselves rather than from the clock of this
+     * device, so it can be compared with the times stored on the server. Documents that are sent anyway
+     * are recognized by their id and ignored. While the cache is still being loaded the newest time may
+     * be too old, which only makes the server send more than needed.
+     *
+     * @param sessionName Session name
+     * @return Subscription parameters or null if no fixes of the session are known
+     */
+    private Object[] getSessionParameters(String sessionName) {
+        long newest = gpsData.getNewestTime(sessionName);
+        return newest != Long.MIN_VALUE ? new Object[]{newest - SYNC_OVERLAP} : null;
+    }
+
+    /**
+     * Write cached documents to storage right away
+     */
+    public void flushCache() {
+        cache.flush();
+    }
+
+    /**
+     * Subscribe to the latest location of every participant of a session
+     *
+     * @param sessionName Session name
+     */
+    private void subscribeLivePositions(final String sessionName) {
+        meteor.subscribe(SUBSCRIPTION_LIVE_POSITIONS, new Object[]{sessionName}, new SubscribeListener() {
+            @Override
+            public void onSuccess() {
+                Log.d(TAG, "Subscribed to live positions of \"" + sessionName + "\" successfully");
+            }
+
+            @Override
+            public void onError(String error, String reason, String details) {
+                Log.e(TAG, "[Subscribe Live Positions] Failed to subscribe to \"" + sessionName + "\": " + reason);
+            }
+        });
+    }
+
     /**
      * Leave the current session
      */
@@ -456,6 +793,7 @@ public class MeteorController implements MeteorCallback, SharedPreferences.OnSha
         }
 
         Log.d(TAG, "[Leave Session] Leaving session \"" + session + "\"");
+        uploadHandler.post(flushRunnable);
         clearSession();
     }
 
@@ -478,48 +816,257 @@ public class MeteorController implements MeteorCallback, SharedPreferences.OnSha
     }
 
     /**
-     * Post location to Meteor
+     * Get the backlog and round-trip time of the location upload. Sampling stages use it to lower the
+     * location rate while the upload falls behind.
      *
-     * @param location Location
+     * @return Upload pressure
      */
-    public void postLocation(Location location) {
+    public UploadPressure getUploadPressure() {
+        return uploadPressure;
+    }
+
+    /**
+     * Post location to Meteor. Locations are written to the journal and sent in batches, see
+     * {@link #flushLocations()}. Must be called on the upload looper.
+     *
+     * @param fix Location fix, only valid for the duration of the call
+     */
+    public void postLocation(Fix fix) {
         // Only post location if the user is a member of a session (and not a session owner)
         if (getState() != STATE_JOINED_SESSION || session == null) {
             return;
         }
 
+        if (journal == null) {
+            Log.e(TAG, "[Post Location] No journal available, dropping location");
+            return;
+        }
+
         // TODO: Remove this
 //        mListener.onSessionMessage("Posting " + location.getProvider() + " data", true);
 
-        // Make sure there is a connection to Meteor
+        int discarded = journal.setSession(session);
+        if (discarded > 0) {
+            Log.w(TAG, "[Post Location] Discarded " + discarded + " unsent locations of a previous session");
+        }
+        boolean due = locationUpload.append(journal, fix, SystemClock.elapsedRealtime());
+        UPLOAD_QUEUE_DEPTH.set(journal.size());
+
+        // The live position is sent independent of the trail batches
+        liveFix.set(fix);
+        livePending = true;
+        sendLivePosition();
+
+        LocationBatcher batcher = locationUpload.getBatcher();
+        if (due) {
+            flushLocations();
+        } else if (batcher.size() == 1) {
+            // First fix of a new batch, make sure it does not wait longer than the max age
+            uploadHandler.postDelayed(flushRunnable, batcher.getMaxAge());
+        }
+    }
+
+    /**
+     * Upsert the participant's live position document with the latest location. Only one update is in
+     * flight at a time and updates are sent at most every {@link #LIVE_POSITION_INTERVAL} milliseconds.
+     * Locations posted meanwhile overwrite each other, so the next update always carries the latest
+     * location. Runs on the upload looper.
+     */
+    private void sendLivePosition() {
+        if (!livePending || liveUploading || session == null || !meteor.isConnected()) {
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        long wait = liveSentAt < 0 ? 0 : liveSentAt + LIVE_POSITION_INTERVAL - now;
+        if (wait > 0) {
+            uploadHandler.removeCallbacks(sendLiveRunnable);
+            uploadHandler.postDelayed(sendLiveRunnable, wait);
+            return;
+        }
+        liveSentAt = now;
+
+        // The parameters are reused, the DDP client serializes them before the call returns
+        HashMap<String, Object> data = liveData;
+        data.put(COLLECTION_GPS_DATA_COLUMN_SESSION_ID, session);
+        data.put(COLLECTION_GPS_DATA_COLUMN_USER_ID, getUserId());
+        data.put(COLLECTION_GPS_DATA_COLUMN_PROVIDER, liveFix.provider);
+        data.put(COLLECTION_GPS_DATA_COLUMN_TIME, liveFix.time);
+        data.put(COLLECTION_GPS_DATA_COLUMN_LATITUDE, liveFix.latitude);
+        data.put(COLLECTION_GPS_DATA_COLUMN_LONGITUDE, liveFix.longitude);
+        data.put(COLLECTION_GPS_DATA_COLUMN_ALTITUDE, liveFix.altitude);
+        data.put(COLLECTION_GPS_DATA_COLUMN_BEARING, liveFix.bearing);
+        data.put(COLLECTION_GPS_DATA_COLUMN_SPEED, liveFix.speed);
+
+        livePending = false;
+        liveUploading = true;
+        meteor.call(METHOD_UPDATE_LIVE_POSITION, liveParams, liveResultListener);
+    }
+
+    private final ResultListener liveResultListener = new ResultListener() {
+        @Override
+        public void onSuccess(String result) {
+            uploadHandler.post(liveDone);
+        }
+
+        @Override
+        public void onError(String error, String reason, String details) {
+            Log.e(TAG, "[Live Position] Failed to update live position: " + reason);
+            uploadHandler.post(liveDone);
+        }
+    };
+
+    private final Runnable sendLiveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sendLivePosition();
+        }
+    };
+
+    /**
+     * Sends the live position again if a newer location arrived while the last update was in flight
+     */
+    private final Runnable liveDone = new Runnable() {
+        @Override
+        public void run() {
+            liveUploading = false;
+            sendLivePosition();
+        }
+    };
+
+    /**
+     * Send the oldest journaled locations to Meteor as a single GPS data document. Depending on the
+     * compact encoding preference the locations are either stored as an array of fixes or as a
+     * {@link FixCodec} batch in an EJSON binary field. The locations are
+     * only removed from the journal once Meteor acknowledged the insert. While the journal holds more
+     * locations than fit in one document, the next document is sent {@link #CATCH_UP_INTERVAL}
+     * milliseconds after the previous one was acknowledged. Runs on the upload looper.
+     */
+    private void flushLocations() {
+        uploadHandler.removeCallbacks(flushRunnable);
+        locationUpload.getBatcher().reset();
+
+        if (journal == null || journal.isEmpty() || uploading) {
+            return;
+        }
+
+        // Make sure there is a connection to Meteor. The journal is drained once it is established.
         if (!meteor.isConnected()) {
             Log.d(TAG, "[Post Location] Reconnecting to Meteor");
             meteor.reconnect();
+            return;
         }
 
-        HashMap<String, Object> data = new HashMap<>();
-        data.put(COLLECTION_GPS_DATA_COLUMN_SESSION_ID, getSession());
+        String journalSession = journal.getSession();
+        if (journalSession == null) {
+            return;
+        }
+
+        // The document is reused for every upload, the DDP client serializes it before the insert returns
+        HashMap<String, Object> data = uploadData;
+        data.clear();
+        data.put(COLLECTION_GPS_DATA_COLUMN_SESSION_ID, journalSession);
         data.put(COLLECTION_GPS_DATA_COLUMN_USER_ID, getUserId());
-        data.put(COLLECTION_GPS_DATA_COLUMN_PROVIDER, location.getProvider());
-        data.put(COLLECTION_GPS_DATA_COLUMN_TIME, location.getTime());
-        data.put(COLLECTION_GPS_DATA_COLUMN_ALTITUDE, location.getAltitude());
-        data.put(COLLECTION_GPS_DATA_COLUMN_BEARING, location.getBearing());
-        data.put(COLLECTION_GPS_DATA_COLUMN_LATITUDE, location.getLatitude());
-        data.put(COLLECTION_GPS_DATA_COLUMN_LONGITUDE, location.getLongitude());
-        data.put(COLLECTION_GPS_DATA_COLUMN_SPEED, location.getSpeed());
-        meteor.insert(COLLECTION_GPS_DATA, data);
+
+        final long tail = journal.getTail();
+        final int count;
+        if (compactEncoding) {
+            count = locationUpload.encodePacked(journal, journalSession, getUserId(), CATCH_UP_BATCH_SIZE);
+
+            uploadPacked.put(EJSON_BINARY, Base64.encodeToString(locationUpload.finishPacked(), Base64.NO_WRAP));
+            data.put(COLLECTION_GPS_DATA_COLUMN_PACKED, uploadPacked);
+        } else {
+            count = locationUpload.encodeFixes(journal, CATCH_UP_BATCH_SIZE);
+            data.put(COLLECTION_GPS_DATA_COLUMN_FIXES, locationUpload.finishFixes());
+        }
+
+        // Results are delivered on the main thread, hand them back to the upload thread. Results of an
+        // upload that was given up on disconnect are ignored, another upload may be in flight already.
+        final FixJournal uploadJournal = journal;
+        final String uploadSession = journalSession;
+        final int generation = ++uploadGeneration;
+        uploading = true;
+        uploadPressure.onSent(SystemClock.elapsedRealtime());
+        final long sent = Metrics.startTime();
+        meteor.insert(COLLECTION_GPS_DATA, data, new ResultListener() {
+            @Override
+            public void onSuccess(String result) {
+                uploadPressure.onAcknowledged(SystemClock.elapsedRealtime());
+                UPLOAD_TIME.recordSince(sent);
+                uploadHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != uploadGeneration) {
+                            return;
+                        }
+                        uploading = false;
+
+                        locationUpload.onUploaded(uploadJournal, uploadSession, tail, count);
+                        UPLOAD_QUEUE_DEPTH.set(uploadJournal.size());
+                        FIXES_SENT.add(count);
+
+                        // Keep catching up on locations that were journaled while disconnected
+                        if (!uploadJournal.isEmpty()) {
+                            uploadHandler.postDelayed(flushRunnable, CATCH_UP_INTERVAL);
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onError(String error, String reason, String details) {
+                Log.e(TAG, "[Post Location] Failed to upload " + count + " locations: " + reason);
+                uploadPressure.onAborted();
+                uploadHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == uploadGeneration) {
+                            uploading = false;
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Pass the fixes contained in a GPS data document on to the listener. The fixes are read from the
+     * {@link GPSDataStore}, which expanded single fixes, fix arrays and packed batches into rows.
+     *
+     * @param documentID Document id
+     */
+    private void dispatchGPSData(String documentID) {
+        if (gpsData.visit(documentID, gpsDataVisitor) < 0) {
+            Log.e(TAG, "No GPS data stored for document \"" + documentID + "\"");
+        }
     }
 
+    private final GPSDataStore.Visitor gpsDataVisitor = new GPSDataStore.Visitor() {
+        @Override
+        public void onFix(String userId, Fix fix) {
+            mListener.onReceivedGPSData(userId, fix.latitude, fix.longitude, fix.time);
+        }
+    };
+
     @Override
     public void onConnect(boolean signedInAutomatically) {
         Log.d(TAG, "Connected to Meteor. Auto-signed in: " + signedInAutomatically);
+        if (disconnected) {
+            disconnected = false;
+            RECONNECTS.increment();
+        }
         // TODO: Remove this
 //        mListener.onSessionMessage("Connected to Meteor", true);
 
+        // Upload locations that were journaled while disconnected
+        uploadHandler.post(flushRunnable);
+        uploadHandler.post(liveDone);
+
         // Try to restore subscription if it exists
         if (getState() == STATE_CREATED_SESSION && session != null) {
             // Subscribe to the session
-            meteor.subscribe(session, null, new SubscribeListener() {
+            subscribeLivePositions(session);
+            meteor.subscribe(session, getSessionParameters(session), new SubscribeListener() {
                 @Override
                 public void onSuccess() {
                     Log.d(TAG, "Resubscribed to \"" + session + "\" successfully");
@@ -546,6 +1093,18 @@ public class MeteorController implements MeteorCallback, SharedPreferences.OnSha
     @Override
     public void onDisconnect() {
         Log.d(TAG, "Disconnected from Meteor");
+        disconnected = true;
+
+        // An upload in flight will not be acknowledged anymore, its locations are resent on reconnect
+        uploadPressure.onAborted();
+        uploadHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                uploadGeneration++;
+                uploading = false;
+                liveUploading = false;
+            }
+        });
         // TODO: Remove this
 //        mListener.onSessionMessage("Disconnected from Meteor", true);
     }
@@ -559,27 +1118,209 @@ public class MeteorController implements MeteorCallback, SharedPreferences.OnSha
 
     @Override
     public void onDataAdded(String collectionName, String documentID, String newValuesJson) {
-        Log.d(TAG,
-                String.format(Locale.US, "Document \"%s\" added to collection \"%s\"", documentID, collectionName));
-        Log.d(TAG, "Data: " + newValuesJson);
+        countMessage(collectionName);
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, String.format(Locale.US, "Document \"%s\" added to collection \"%s\": %s", documentID,
+                    collectionName, newValuesJson));
+        }
+
+        // GPS data is decoded straight into its columns, other documents into generic fields. GPS data
+        // never changes, so documents that are already known from the cache are skipped.
+        if (collectionName.equals(COLLECTION_GPS_DATA)) {
+            if (gpsData.contains(documentID) || gpsData.add(documentID, newValuesJson) < 0) {
+                return;
+            }
+            cache.put(collectionName, documentID, gpsData.getSession(documentID), newValuesJson);
+        } else {
+            try {
+                database.onDataAdded(collectionName, documentID, FieldsBuilder.decode(fieldDecoder, newValuesJson));
+            } catch (IllegalArgumentException e) {
+                Log.e(TAG, "Invalid document \"" + documentID + "\" in \"" + collectionName + "\": " + e.getMessage());
+                return;
+            }
+            cache.put(collectionName, documentID, getDocumentSession(collectionName, documentID), newValuesJson);
+            HashSet<String> unconfirmed = unconfirmedDocuments.get(collectionName);
+            if (unconfirmed != null) {
+                unconfirmed.remove(documentID);
+            }
+        }
 
         // Only trigger GPS data listener if the user created the session
         if (collectionName.equals(COLLECTION_GPS_DATA)) {
             if (getState() == STATE_CREATED_SESSION && getSession() != null) {
-                mListener.onReceivedGPSData(documentID);
+                dispatchGPSData(documentID);
             }
+        } else if (collectionName.equals(COLLECTION_LIVE_POSITIONS)) {
+            dispatchLivePosition(documentID);
+        } else if (collectionName.equals(COLLECTION_USERS)) {
+            updateDisplayName(documentID);
         }
     }
 
+    /**
+     * Count a DDP message of a collection
+     *
+     * @param collectionName Collection
+     */
+    private void countMessage(String collectionName) {
+        if (Metrics.isEnabled()) {
+            Metrics.Counter counter = ddpMessages.get(collectionName);
+            (counter != null ? counter : DDP_OTHER_MESSAGES).increment();
+        }
+    }
+
+    /**
+     * Add a document that was cached in the last run. Documents that were received again in the meantime
+     * are kept as they are.
+     *
+     * @param collectionName Collection
+     * @param documentID     Document id
+     * @param fieldsJson     JSON object with the fields of the document
+     */
+    private void restoreDocument(String collectionName, String documentID, String fieldsJson) {
+        if (collectionName.equals(COLLECTION_GPS_DATA)) {
+            if (gpsData.contains(documentID) || gpsData.add(documentID, fieldsJson) < 0) {
+                return;
+            }
+            if (getState() == STATE_CREATED_SESSION && getSession() != null
+                    && getSession().equals(gpsData.getSession(documentID))) {
+                dispatchGPSData(documentID);
+            }
+            return;
+        }
+
+        if (database.getCollection(collectionName).getDocument(documentID) != null) {
+            return;
+        }
+
+        // Sessions and users are not tied to a session, so the server never removes cached ones that were
+        // deleted meanwhile. Once the subscription is ready, cached documents it did not send are stale.
+        boolean reconciled = collectionName.equals(COLLECTION_SESSIONS) || collectionName.equals(COLLECTION_USERS);
+        if (reconciled && syncedCollections.contains(collectionName)) {
+            cache.remove(collectionName, documentID);
+            return;
+        }
+        try {
+            database.onDataAdded(collectionName, documentID, FieldsBuilder.decode(fieldDecoder, fieldsJson));
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Invalid cached document \"" + documentID + "\" in \"" + collectionName + "\": "
+                    + e.getMessage());
+            return;
+        }
+        if (reconciled) {
+            HashSet<String> unconfirmed = unconfirmedDocuments.get(collectionName);
+            if (unconfirmed == null) {
+                unconfirmed = new HashSet<>();
+                unconfirmedDocuments.put(collectionName, unconfirmed);
+            }
+            unconfirmed.add(documentID);
+        }
+
+        if (collectionName.equals(COLLECTION_LIVE_POSITIONS)) {
+            dispatchLivePosition(documentID);
+        } else if (collectionName.equals(COLLECTION_USERS)) {
+            updateDisplayName(documentID);
+        }
+    }
+
+    /**
+     * Remove the cached documents of a collection that the server did not send again once its
+     * subscription is ready. Ended sessions also take their cached locations with them.
+     *
+     * @param collectionName Collection
+     */
+    private void reconcileCache(String collectionName) {
+        syncedCollections.add(collectionName);
+        HashSet<String> unconfirmed = unconfirmedDocuments.remove(collectionName);
+        if (unconfirmed == null) {
+            return;
+        }
+
+        for (String documentID : unconfirmed) {
+            if (collectionName.equals(COLLECTION_SESSIONS)) {
+                Document document = database.getCollection(collectionName).getDocument(documentID);
+                Object title = document != null ? document.getField(COLLECTION_SESSIONS_COLUMN_TITLE) : null;
+                if (title instanceof String) {
+                    cache.removeSession((String) title);
+                }
+            }
+            removeDocument(collectionName, documentID);
+        }
+        Log.d(TAG, "Removed " + unconfirmed.size() + " stale cached documents from \"" + collectionName + "\"");
+    }
+
+    /**
+     * Get the session a document belongs to
+     *
+     * @param collectionName Collection
+     * @param documentID     Document id
+     * @return Session or null if the document does not belong to a session
+     */
+    private String getDocumentSession(String collectionName, String documentID) {
+        if (!collectionName.equals(COLLECTION_LIVE_POSITIONS)) {
+            return null;
+        }
+        Document document = database.getCollection(collectionName).getDocument(documentID);
+        Object session = document != null ? document.getField(COLLECTION_GPS_DATA_COLUMN_SESSION_ID) : null;
+        return session instanceof String ? (String) session : null;
+    }
+
+    /**
+     * Pass the location of a live position document on to the listener
+     *
+     * @param documentID Document id
+     */
+    private void dispatchLivePosition(String documentID) {
+        if (getState() != STATE_CREATED_SESSION || getSession() == null) {
+            return;
+        }
+
+        Document document = database.getCollection(COLLECTION_LIVE_POSITIONS).getDocument(documentID);
+        if (document == null || !getSession().equals(document.getField(COLLECTION_GPS_DATA_COLUMN_SESSION_ID))) {
+            return;
+        }
+
+        Object user = document.getField(COLLECTION_GPS_DATA_COLUMN_USER_ID);
+        Object latitude = document.getField(COLLECTION_GPS_DATA_COLUMN_LATITUDE);
+        Object longitude = document.getField(COLLECTION_GPS_DATA_COLUMN_LONGITUDE);
+        if (!(user instanceof String) || !(latitude instanceof Number) || !(longitude instanceof Number)) {
+            Log.e(TAG, "Invalid live position in document \"" + documentID + "\"");
+            return;
+        }
+        mListener.onReceivedLivePosition((String) user, ((Number) latitude).doubleValue(),
+                ((Number) longitude).doubleValue());
+    }
+
     @Override
     public void onDataChanged(String collectionName, String documentID,
                               String updatedValuesJson, String removedValuesJson) {
-        Log.d(TAG,
-                String.format(Locale.US, "Document \"%s\" changed in collection \"%s\"", documentID, collectionName));
-        Log.d(TAG, "Updated: " + updatedValuesJson);
-        Log.d(TAG, "Removed: " + removedValuesJson);
+        countMessage(collectionName);
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, String.format(Locale.US, "Document \"%s\" changed in collection \"%s\": %s, removed %s",
+                    documentID, collectionName, updatedValuesJson, removedValuesJson));
+        }
 
-        if (collectionName.equals(COLLECTION_SESSIONS)) {
+        try {
+            database.onDataChanged(collectionName, documentID, FieldsBuilder.decode(fieldDecoder, updatedValuesJson),
+                    FieldsBuilder.decodeNames(fieldDecoder, removedValuesJson));
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Invalid change of document \"" + documentID + "\" in \"" + collectionName + "\": "
+                    + e.getMessage());
+            return;
+        }
+
+        if (!collectionName.equals(COLLECTION_GPS_DATA)) {
+            Document document = database.getCollection(collectionName).getDocument(documentID);
+            if (document != null) {
+                cache.put(collectionName, document, getDocumentSession(collectionName, documentID));
+            }
+        }
+
+        if (collectionName.equals(COLLECTION_LIVE_POSITIONS)) {
+            dispatchLivePosition(documentID);
+        } else if (collectionName.equals(COLLECTION_USERS)) {
+            updateDisplayName(documentID);
+        } else if (collectionName.equals(COLLECTION_SESSIONS)) {
             Collection collection = database.getCollection(collectionName);
             Document document = collection.getDocument(documentID);
 
@@ -590,13 +1331,43 @@ public class MeteorController implements MeteorCallback, SharedPreferences.OnSha
             if (getState() == STATE_JOINED_SESSION && !active && session.equals(title)) {
                 mListener.onSessionClosed(title);
             }
+
+            // Ended sessions are not shown again
+            if (!active) {
+                cache.removeSession(title);
+            }
         }
     }
 
     @Override
     public void onDataRemoved(String collectionName, String documentID) {
-        Log.d(TAG,
-                String.format(Locale.US, "Document \"%s\" removed from collection \"%s\"", documentID, collectionName));
+        countMessage(collectionName);
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, String.format(Locale.US, "Document \"%s\" removed from collection \"%s\"", documentID,
+                    collectionName));
+        }
+        removeDocument(collectionName, documentID);
+    }
+
+    /**
+     * Remove a document from the local database and the cache
+     *
+     * @param collectionName Collection
+     * @param documentID     Document id
+     */
+    private void removeDocument(String collectionName, String documentID) {
+        if (collectionName.equals(COLLECTION_GPS_DATA)) {
+            gpsData.visit(documentID, removedFixVisitor);
+        }
+        database.onDataRemoved(collectionName, documentID);
+        cache.remove(collectionName, documentID);
+
+        if (collectionName.equals(COLLECTION_USERS)) {
+            String user = userDocumentIds.remove(documentID);
+            if (user != null && displayNames.remove(user) != null) {
+                mListener.onDisplayNameChanged(user, null);
+            }
+        }
     }
 
     @Override
@@ -605,6 +1376,20 @@ public class MeteorController implements MeteorCallback, SharedPreferences.OnSha
             case "display_name":
                 changeDisplayName(sharedPreferences.getString(key, null));
                 break;
+
+            case PREF_COMPACT_ENCODING:
+                compactEncoding = sharedPreferences.getBoolean(key, false);
+                break;
+
+            case PREF_METRICS_ENABLED:
+                Metrics.setEnabled(sharedPreferences.getBoolean(key, false));
+                break;
+
+            case PREF_RETENTION_MAX_DOCUMENTS:
+            case PREF_RETENTION_MAX_AGE:
+            case PREF_RETENTION_KEEP_PER_USER:
+                setRetention(sharedPreferences);
+                break;
         }
     }
 }
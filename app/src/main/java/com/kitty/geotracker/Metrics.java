@@ -0,0 +1,438 @@
+package com.kitty.geotracker;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Registry of counters, gauges and latency histograms for the hot paths of the app, which are shown on
+ * the {@link DiagnosticsActivity}.
+ * <p>
+ * Metrics are registered once, usually in static fields of the class that updates them, and are
+ * updated with atomic operations only, so any thread can update them without taking a lock. While
+ * metrics are disabled every update returns right away and nothing is allocated.
+ */
+public final class Metrics {
+
+    private static volatile boolean enabled = false;
+    private static final Map<String, Metric> metrics = new TreeMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * Enable or disable updates of all metrics. Values recorded so far are kept.
+     *
+     * @param enabled True to record updates
+     */
+    public static void setEnabled(boolean enabled) {
+        Metrics.enabled = enabled;
+    }
+
+    /**
+     * Check if updates of metrics are recorded
+     *
+     * @return True if metrics are enabled
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Get the counter with the given name, registering it if it does not exist yet
+     *
+     * @param name Name
+     * @return Counter
+     */
+    public static Counter counter(String name) {
+        return register(name, Counter.class);
+    }
+
+    /**
+     * Get the gauge with the given name, registering it if it does not exist yet
+     *
+     * @param name Name
+     * @return Gauge
+     */
+    public static Gauge gauge(String name) {
+        return register(name, Gauge.class);
+    }
+
+    /**
+     * Get the histogram with the given name, registering it if it does not exist yet
+     *
+     * @param name Name
+     * @return Histogram
+     */
+    public static Histogram histogram(String name) {
+        return register(name, Histogram.class);
+    }
+
+    private static <T extends Metric> T register(String name, Class<T> type) {
+        synchronized (metrics) {
+            Metric metric = metrics.get(name);
+            if (metric == null) {
+                if (type == Counter.class) {
+                    metric = new Counter(name);
+                } else if (type == Gauge.class) {
+                    metric = new Gauge(name);
+                } else {
+                    metric = new Histogram(name);
+                }
+                metrics.put(name, metric);
+            } else if (!type.isInstance(metric)) {
+                throw new IllegalArgumentException("Metric \"" + name + "\" is a "
+                        + metric.getClass().getSimpleName());
+            }
+            return type.cast(metric);
+        }
+    }
+
+    /**
+     * Get the start time of an operation that is timed with {@link Histogram#recordSince(long)}
+     *
+     * @return Time in nanoseconds or 0 if metrics are disabled
+     */
+    public static long startTime() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Reset all metrics to their initial values
+     */
+    public static void reset() {
+        for (Metric metric : getMetrics()) {
+            metric.reset();
+        }
+    }
+
+    /**
+     * Write a report of all metrics, one line per metric sorted by name
+     *
+     * @param writer Writer
+     * @throws IOException If the report could not be written
+     */
+    public static void dump(Writer writer) throws IOException {
+        for (Metric metric : getMetrics()) {
+            writer.write(metric.describe());
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    /**
+     * Get a report of all metrics
+     *
+     * @return Report, one line per metric sorted by name
+     */
+    public static String dump() {
+        StringWriter writer = new StringWriter();
+        try {
+            dump(writer);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return writer.toString();
+    }
+
+    private static List<Metric> getMetrics() {
+        synchronized (metrics) {
+            return new ArrayList<>(metrics.values());
+        }
+    }
+
+    /**
+     * Named metric
+     */
+    public abstract static class Metric {
+        private final String name;
+
+        Metric(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Get the name of the metric
+         *
+         * @return Name
+         */
+        public String getName() {
+            return name;
+        }
+
+        abstract void reset();
+
+        abstract String describe();
+    }
+
+    /**
+     * Number of times something happened
+     */
+    public static final class Counter extends Metric {
+        private final AtomicLong count = new AtomicLong();
+
+        Counter(String name) {
+            super(name);
+        }
+
+        /**
+         * Count one occurrence
+         */
+        public void increment() {
+            if (enabled) {
+                count.incrementAndGet();
+            }
+        }
+
+        /**
+         * Count several occurrences
+         *
+         * @param delta Number of occurrences
+         */
+        public void add(long delta) {
+            if (enabled) {
+                count.addAndGet(delta);
+            }
+        }
+
+        /**
+         * Get the number of occurrences counted
+         *
+         * @return Count
+         */
+        public long get() {
+            return count.get();
+        }
+
+        @Override
+        void reset() {
+            count.set(0);
+        }
+
+        @Override
+        String describe() {
+            return String.format(Locale.US, "%-28s %d", getName(), get());
+        }
+    }
+
+    /**
+     * Current value of something, together with the highest value it had
+     */
+    public static final class Gauge extends Metric {
+        private final AtomicLong value = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        Gauge(String name) {
+            super(name);
+        }
+
+        /**
+         * Set the current value
+         *
+         * @param value Value
+         */
+        public void set(long value) {
+            if (enabled) {
+                this.value.set(value);
+                updateMax(max, value);
+            }
+        }
+
+        /**
+         * Get the current value
+         *
+         * @return Value
+         */
+        public long get() {
+            return value.get();
+        }
+
+        /**
+         * Get the highest value set
+         *
+         * @return Value
+         */
+        public long getMax() {
+            return max.get();
+        }
+
+        @Override
+        void reset() {
+            value.set(0);
+            max.set(0);
+        }
+
+        @Override
+        String describe() {
+            return String.format(Locale.US, "%-28s %d (max %d)", getName(), get(), getMax());
+        }
+    }
+
+    /**
+     * Distribution of latencies in microseconds.
+     * <p>
+     * Like an HDR histogram, values are counted in buckets whose width grows with the value: values below
+     * {@link #SUB_BUCKETS} get a bucket each, every higher power of two is split into {@link #SUB_BUCKETS}
+     * buckets of equal width. The percentiles therefore have a relative error of at most
+     * 1 / {@link #SUB_BUCKETS} over the whole range of long values, with a fixed number of counters.
+     */
+    public static final class Histogram extends Metric {
+        static final int SUB_BUCKET_BITS = 4;
+        static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        Histogram(String name) {
+            super(name);
+        }
+
+        /**
+         * Record the time elapsed since an operation started
+         *
+         * @param startTime Start time returned by {@link Metrics#startTime()}
+         */
+        public void recordSince(long startTime) {
+            if (startTime != 0) {
+                record((System.nanoTime() - startTime) / 1000);
+            }
+        }
+
+        /**
+         * Record a latency
+         *
+         * @param micros Latency in microseconds
+         */
+        public void record(long micros) {
+            if (!enabled) {
+                return;
+            }
+            if (micros < 0) {
+                micros = 0;
+            }
+            buckets.incrementAndGet(bucket(micros));
+            count.incrementAndGet();
+            sum.addAndGet(micros);
+            updateMax(max, micros);
+        }
+
+        /**
+         * Get the number of recorded latencies
+         *
+         * @return Count
+         */
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * Get the highest recorded latency
+         *
+         * @return Latency in microseconds
+         */
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * Get the mean of the recorded latencies
+         *
+         * @return Latency in microseconds, 0 if nothing was recorded
+         */
+        public long getMean() {
+            long count = this.count.get();
+            return count > 0 ? sum.get() / count : 0;
+        }
+
+        /**
+         * Get the latency that a share of the recorded latencies does not exceed. Latencies recorded
+         * while the percentile is computed may or may not be included.
+         *
+         * @param percentile Percentile between 0 and 100
+         * @return Highest latency in the bucket of the percentile in microseconds, 0 if nothing was recorded
+         */
+        public long getPercentile(double percentile) {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                total += buckets.get(i);
+            }
+            if (total == 0) {
+                return 0;
+            }
+
+            long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(highestInBucket(i), getMax());
+                }
+            }
+            return getMax();
+        }
+
+        /**
+         * Get the bucket a value is counted in
+         *
+         * @param value Non-negative value
+         * @return Bucket index
+         */
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            return SUB_BUCKETS + shift * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+        }
+
+        /**
+         * Get the highest value counted in a bucket
+         *
+         * @param bucket Bucket index
+         * @return Value
+         */
+        static long highestInBucket(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+            long lowest = (long) (SUB_BUCKETS + (bucket - SUB_BUCKETS) % SUB_BUCKETS) << shift;
+            return lowest + (1L << shift) - 1;
+        }
+
+        @Override
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            sum.set(0);
+            max.set(0);
+        }
+
+        @Override
+        String describe() {
+            return String.format(Locale.US, "%-28s n=%d mean=%d p50=%d p90=%d p99=%d max=%d µs", getName(),
+                    getCount(), getMean(), getPercentile(50), getPercentile(90), getPercentile(99), getMax());
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package com.kitty.geotracker;
+
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.BitmapDescriptorFactory;
+import com.google.android.gms.maps.model.LatLng;
+import com.google.android.gms.maps.model.LatLngBounds;
+import com.google.android.gms.maps.model.Marker;
+import com.google.android.gms.maps.model.MarkerOptions;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Shows a marker per participant, but only for participants within the visible part of the map.
+ * <p>
+ * Below {@code clusterZoom}, participants are grouped into screen-space grid cells and each cell with
+ * several participants is shown as a single cluster marker. The clusters are kept between updates, so
+ * a participant entering, leaving or changing a cell only updates the markers of the cells involved.
+ * Positions are tracked in Web Mercator world
+ * coordinates, so the screen-space distance of a move can be computed without the map's projection.
+ * Moves of less than {@code minMovePixels} are not applied to the marker. The visible region and zoom
+ * level are refreshed whenever the camera comes to rest.
+ */
+public class ParticipantMarkers implements GoogleMap.OnCameraIdleListener, SessionReplay.Markers {
+
+    private static final double TILE_SIZE = 256; // in pixels at zoom level 0
+
+    private final GoogleMap map;
+    private final TitleSource titles;
+    private final float clusterZoom;
+    private final double clusterCellPixels;
+    private final double minMovePixels;
+
+    private final HashMap<String, Participant> participants = new HashMap<>();
+    private final HashMap<Long, Cluster> clusters = new HashMap<>();
+    private LatLngBounds visibleBounds = null;
+    private double worldPixels = TILE_SIZE;
+    private boolean clustered = false;
+
+    /**
+     * Provides marker titles
+     */
+    public interface TitleSource {
+        /**
+         * Get the marker title of a participant
+         *
+         * @param userId Participant
+         * @return Title
+         */
+        String getTitle(String userId);
+    }
+
+    private static class Participant {
+        final String userId;
+        double latitude, longitude;
+        double x, y; // in world coordinates between 0 and 1
+        long cell;
+        Marker marker;
+        double markerX, markerY;
+        Cluster cluster; // cluster the participant is counted in while clustered
+
+        Participant(String userId) {
+            this.userId = userId;
+        }
+    }
+
+    /**
+     * Visible participants in the same grid cell
+     */
+    private static class Cluster {
+        final long cell;
+        final List<Participant> members = new ArrayList<>();
+        Marker marker; // only if there are several members
+
+        Cluster(long cell) {
+            this.cell = cell;
+        }
+    }
+
+    /**
+     * Create a new marker layer. {@link #onCameraIdle} must be called whenever the camera comes to rest.
+     *
+     * @param map               Map
+     * @param titles            Provides marker titles
+     * @param clusterZoom       Zoom level below which participants are clustered
+     * @param clusterCellPixels Size of a cluster cell in pixels
+     * @param minMovePixels     Minimum distance in pixels a marker is moved by
+     */
+    public ParticipantMarkers(GoogleMap map, TitleSource titles, float clusterZoom, double clusterCellPixels,
+                              double minMovePixels) {
+        this.map = map;
+        this.titles = titles;
+        this.clusterZoom = clusterZoom;
+        this.clusterCellPixels = clusterCellPixels;
+        this.minMovePixels = minMovePixels;
+    }
+
+    /**
+     * Update the position of a participant
+     *
+     * @param userId    Participant
+     * @param latitude  Latitude
+     * @param longitude Longitude
+     */
+    @Override
+    public void update(String userId, double latitude, double longitude) {
+        Participant participant = participants.get(userId);
+        if (participant == null) {
+            participant = new Participant(userId);
+            participants.put(userId, participant);
+        }
+
+        setPosition(participant, latitude, longitude);
+        boolean visible = isVisible(participant);
+
+        if (clustered) {
+            // Cluster membership only changes if the participant entered, left or changed a cell
+            Cluster previous = participant.cluster;
+            if (previous != null && (!visible || previous.cell != participant.cell)) {
+                leave(participant);
+                show(previous);
+            }
+            if (!visible) {
+                removeMarker(participant);
+            } else if (participant.cluster == null) {
+                show(join(participant));
+            } else if (participant.marker != null) {
+                move(participant);
+            }
+            return;
+        }
+
+        if (!visible) {
+            removeMarker(participant);
+        } else if (participant.marker == null) {
+            addMarker(participant);
+        } else {
+            move(participant);
+        }
+    }
+
+    /**
+     * Update the title of a participant's marker
+     *
+     * @param userId Participant
+     */
+    public void updateTitle(String userId) {
+        Participant participant = participants.get(userId);
+        if (participant != null && participant.marker != null) {
+            participant.marker.setTitle(titles.getTitle(userId));
+        }
+    }
+
+    /**
+     * Remove a participant and its marker
+     *
+     * @param userId Participant
+     */
+    @Override
+    public void remove(String userId) {
+        Participant participant = participants.remove(userId);
+        if (participant == null) {
+            return;
+        }
+
+        removeMarker(participant);
+        Cluster cluster = participant.cluster;
+        if (cluster != null) {
+            leave(participant);
+            show(cluster);
+        }
+    }
+
+    /**
+     * Remove all participants and markers
+     */
+    public void clear() {
+        for (Participant participant : participants.values()) {
+            removeMarker(participant);
+        }
+        participants.clear();
+        removeClusters();
+    }
+
+    /**
+     * Forget all participants and markers without removing them, e.g. after the map was cleared
+     */
+    public void reset() {
+        participants.clear();
+        clusters.clear();
+    }
+
+    @Override
+    public void onCameraIdle() {
+        visibleBounds = map.getProjection().getVisibleRegion().latLngBounds;
+        float zoom = map.getCameraPosition().zoom;
+        worldPixels = TILE_SIZE * Math.pow(2, zoom);
+        clustered = zoom < clusterZoom;
+        for (Participant participant : participants.values()) {
+            participant.cell = cell(participant.x, participant.y);
+        }
+        refresh();
+    }
+
+    /**
+     * Show markers for all visible participants, clustering them if zoomed out
+     */
+    private void refresh() {
+        removeClusters();
+
+        if (!clustered) {
+            for (Participant participant : participants.values()) {
+                if (!isVisible(participant)) {
+                    removeMarker(participant);
+                } else if (participant.marker == null) {
+                    addMarker(participant);
+                } else {
+                    move(participant);
+                }
+            }
+            return;
+        }
+
+        // Group the visible participants by grid cell
+        for (Participant participant : participants.values()) {
+            if (isVisible(participant)) {
+                join(participant);
+            } else {
+                removeMarker(participant);
+            }
+        }
+        for (Cluster cluster : clusters.values()) {
+            show(cluster);
+        }
+    }
+
+    /**
+     * Add a participant to the cluster of its cell
+     *
+     * @return Cluster
+     */
+    private Cluster join(Participant participant) {
+        Cluster cluster = clusters.get(participant.cell);
+        if (cluster == null) {
+            cluster = new Cluster(participant.cell);
+            clusters.put(participant.cell, cluster);
+        }
+        cluster.members.add(participant);
+        participant.cluster = cluster;
+        return cluster;
+    }
+
+    /**
+     * Remove a participant from its cluster
+     */
+    private void leave(Participant participant) {
+        participant.cluster.members.remove(participant);
+        participant.cluster = null;
+    }
+
+    /**
+     * Show a cluster after its members changed: a single member gets its own marker, several members
+     * a cluster marker at their centre
+     */
+    private void show(Cluster cluster) {
+        List<Participant> members = cluster.members;
+        if (members.size() < 2 && cluster.marker != null) {
+            cluster.marker.remove();
+            cluster.marker = null;
+        }
+        if (members.isEmpty()) {
+            clusters.remove(cluster.cell);
+            return;
+        }
+        if (members.size() == 1) {
+            Participant participant = members.get(0);
+            if (participant.marker == null) {
+                addMarker(participant);
+            } else {
+                move(participant);
+            }
+            return;
+        }
+
+        double latitude = 0, longitude = 0;
+        for (Participant participant : members) {
+            removeMarker(participant);
+            latitude += participant.latitude;
+            longitude += participant.longitude;
+        }
+        LatLng position = new LatLng(latitude / members.size(), longitude / members.size());
+        String title = String.format(Locale.US, "%d participants", members.size());
+        if (cluster.marker == null) {
+            cluster.marker = map.addMarker(new MarkerOptions()
+                    .position(position)
+                    .title(title)
+                    .icon(BitmapDescriptorFactory.defaultMarker(BitmapDescriptorFactory.HUE_AZURE))
+            );
+        } else {
+            cluster.marker.setPosition(position);
+            cluster.marker.setTitle(title);
+        }
+    }
+
+    private void setPosition(Participant participant, double latitude, double longitude) {
+        participant.latitude = latitude;
+        participant.longitude = longitude;
+        participant.x = (longitude + 180) / 360;
+        double sin = Math.sin(Math.toRadians(latitude));
+        participant.y = 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+        participant.cell = cell(participant.x, participant.y);
+    }
+
+    private long cell(double x, double y) {
+        double cellSize = clusterCellPixels / worldPixels;
+        return ((long) Math.floor(x / cellSize) << 32) | ((long) Math.floor(y / cellSize) & 0xffffffffL);
+    }
+
+    private boolean isVisible(Participant participant) {
+        return visibleBounds == null || visibleBounds.contains(new LatLng(participant.latitude, participant.longitude));
+    }
+
+    private void addMarker(Participant participant) {
+        participant.marker = map.addMarker(new MarkerOptions()
+                .position(new LatLng(participant.latitude, participant.longitude))
+                .title(titles.getTitle(participant.userId))
+        );
+        participant.markerX = participant.x;
+        participant.markerY = participant.y;
+    }
+
+    /**
+     * Move a participant's marker to its position unless it would move by less than the threshold
+     */
+    private void move(Participant participant) {
+        double dx = (participant.x - participant.markerX) * worldPixels;
+        double dy = (participant.y - participant.markerY) * worldPixels;
+        if (Math.hypot(dx, dy) < minMovePixels) {
+            return;
+        }
+        participant.marker.setPosition(new LatLng(participant.latitude, participant.longitude));
+        participant.markerX = participant.x;
+        participant.markerY = participant.y;
+    }
+
+    private static void removeMarker(Participant participant) {
+        if (participant.marker != null) {
+            participant.marker.remove();
+            participant.marker = null;
+        }
+    }
+
+    private void removeClusters() {
+        for (Cluster cluster : clusters.values()) {
+            if (cluster.marker != null) {
+                cluster.marker.remove();
+            }
+            for (Participant participant : cluster.members) {
+                participant.cluster = null;
+            }
+        }
+        clusters.clear();
+    }
+}
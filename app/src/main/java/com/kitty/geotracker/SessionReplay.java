@@ -0,0 +1,193 @@
+package com.kitty.geotracker;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.heatmaps.WeightedLatLng;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Shows the state of a session at an earlier instant on the heatmap and participant markers.
+ * <p>
+ * The heatmap shows every fix up to the replayed instant. For each participant, the fixes on the
+ * heatmap are a prefix of its track in the {@link SessionTimeline}. Seeking finds the new end of every
+ * prefix with a binary search and only adds or removes the fixes in between, so the cost depends on
+ * the number of participants and the distance of the seek rather than the length of the session.
+ */
+public class SessionReplay {
+
+    private final SessionTimeline timeline;
+    private final Heatmap provider;
+    private final Markers markers;
+    private final HashMap<String, ArrayList<WeightedLatLng>> shown = new HashMap<>();
+    private long time = Long.MIN_VALUE;
+
+    /**
+     * Heatmap the replayed fixes are shown on, see {@link IncrementalHeatmapTileProvider}
+     */
+    public interface Heatmap {
+        /**
+         * Add a point to the heatmap
+         *
+         * @param location Location
+         * @return Point to pass to {@link #remove}
+         */
+        WeightedLatLng add(LatLng location);
+
+        /**
+         * Remove a point from the heatmap
+         *
+         * @param point Point as returned by {@link #add}
+         */
+        void remove(WeightedLatLng point);
+    }
+
+    /**
+     * Markers showing the replayed position of every participant, see {@link ParticipantMarkers}
+     */
+    public interface Markers {
+        /**
+         * Show a participant at a position
+         *
+         * @param userId    Participant
+         * @param latitude  Latitude
+         * @param longitude Longitude
+         */
+        void update(String userId, double latitude, double longitude);
+
+        /**
+         * Remove a participant's marker
+         *
+         * @param userId Participant
+         */
+        void remove(String userId);
+    }
+
+    /**
+     * Create a new replay. The heatmap and markers are expected to be empty.
+     *
+     * @param timeline Fixes of the session
+     * @param provider Heatmap the fixes are shown on
+     * @param markers  Markers of the participants
+     */
+    public SessionReplay(SessionTimeline timeline, Heatmap provider, Markers markers) {
+        this.timeline = timeline;
+        this.provider = provider;
+        this.markers = markers;
+    }
+
+    /**
+     * Show the state of the session at an instant
+     *
+     * @param time Time in milliseconds since the epoch
+     */
+    public void seek(long time) {
+        this.time = time;
+        for (SessionTimeline.Track track : timeline.getTracks()) {
+            ArrayList<WeightedLatLng> points = getShown(track.getUserId());
+            int count = track.count(time);
+            if (count == points.size()) {
+                continue;
+            }
+
+            while (points.size() < count) {
+                int i = points.size();
+                points.add(provider.add(new LatLng(track.getLatitude(i), track.getLongitude(i))));
+            }
+            while (points.size() > count) {
+                provider.remove(points.remove(points.size() - 1));
+            }
+            updateMarker(track.getUserId());
+        }
+    }
+
+    /**
+     * Show a fix that was added to the timeline during the replay if it happened before the replayed
+     * instant
+     *
+     * @param userId Participant
+     * @param index  Index of the fix in the participant's track
+     */
+    public void onAdded(String userId, int index) {
+        SessionTimeline.Track track = timeline.getTrack(userId);
+        if (track.getTime(index) > time) {
+            return;
+        }
+
+        ArrayList<WeightedLatLng> points = getShown(userId);
+        points.add(index, provider.add(new LatLng(track.getLatitude(index), track.getLongitude(index))));
+        if (index == points.size() - 1) {
+            updateMarker(userId);
+        }
+    }
+
+    /**
+     * Remove consecutive fixes that were removed from the timeline from the heatmap if they are shown
+     *
+     * @param userId Participant
+     * @param index  Index the first fix had in the participant's track
+     * @param count  Number of fixes
+     */
+    public void onRemoved(String userId, int index, int count) {
+        ArrayList<WeightedLatLng> points = shown.get(userId);
+        if (points == null || index >= points.size()) {
+            return;
+        }
+
+        List<WeightedLatLng> removed = points.subList(index, Math.min(index + count, points.size()));
+        for (WeightedLatLng point : removed) {
+            provider.remove(point);
+        }
+        removed.clear();
+        if (index == points.size()) {
+            updateMarker(userId);
+        }
+    }
+
+    /**
+     * Get the replayed instant
+     *
+     * @return Time in milliseconds since the epoch
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Remove all replayed fixes from the heatmap and all replayed markers
+     */
+    public void clear() {
+        for (String userId : shown.keySet()) {
+            markers.remove(userId);
+        }
+        for (ArrayList<WeightedLatLng> points : shown.values()) {
+            for (WeightedLatLng point : points) {
+                provider.remove(point);
+            }
+        }
+        shown.clear();
+    }
+
+    private ArrayList<WeightedLatLng> getShown(String userId) {
+        ArrayList<WeightedLatLng> points = shown.get(userId);
+        if (points == null) {
+            points = new ArrayList<>();
+            shown.put(userId, points);
+        }
+        return points;
+    }
+
+    /**
+     * Move a participant's marker to the last fix shown, or remove it if there is none
+     */
+    private void updateMarker(String userId) {
+        int count = shown.get(userId).size();
+        if (count == 0) {
+            markers.remove(userId);
+        } else {
+            SessionTimeline.Track track = timeline.getTrack(userId);
+            markers.update(userId, track.getLatitude(count - 1), track.getLongitude(count - 1));
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package com.kitty.geotracker;
+
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * Time index of all fixes received in a session.
+ * <p>
+ * The fixes of every participant are kept in primitive arrays sorted by time. Fixes usually arrive in
+ * order and are appended, late fixes are inserted at their place. The position of a participant at any
+ * instant is found with a binary search over its track.
+ */
+public class SessionTimeline {
+
+    private final HashMap<String, Track> tracks = new HashMap<>();
+    private long startTime = Long.MAX_VALUE;
+    private long endTime = Long.MIN_VALUE;
+    private int size = 0;
+
+    /**
+     * Fixes of a single participant sorted by time.
+     * <p>
+     * The fixes occupy a window of the arrays starting at an offset, so removing the oldest fixes, as
+     * eviction does, only moves the offset. The window is moved back to the front when the arrays
+     * fill up.
+     */
+    public static class Track {
+
+        private static final int INITIAL_CAPACITY = 64;
+
+        private final String userId;
+        private long[] times = new long[INITIAL_CAPACITY];
+        private double[] latitudes = new double[INITIAL_CAPACITY];
+        private double[] longitudes = new double[INITIAL_CAPACITY];
+        private int start = 0;
+        private int size = 0;
+
+        Track(String userId) {
+            this.userId = userId;
+        }
+
+        /**
+         * Insert a fix at its place in time. Fixes with the same time keep the order they were added in.
+         *
+         * @return Index of the fix
+         */
+        int add(double latitude, double longitude, long time) {
+            if (start + size == times.length) {
+                // Grow only if more than half of the arrays is in use
+                resize(size * 2 < times.length ? times.length : times.length * 2);
+            }
+
+            int index = count(time);
+            int moved = size - index;
+            int at = start + index;
+            if (moved > 0) {
+                System.arraycopy(times, at, times, at + 1, moved);
+                System.arraycopy(latitudes, at, latitudes, at + 1, moved);
+                System.arraycopy(longitudes, at, longitudes, at + 1, moved);
+            }
+            times[at] = time;
+            latitudes[at] = latitude;
+            longitudes[at] = longitude;
+            size++;
+            return index;
+        }
+
+        /**
+         * Find a fix
+         *
+         * @return Index of the first matching fix or -1 if it is not in the track
+         */
+        int indexOf(double latitude, double longitude, long time) {
+            for (int i = count(time - 1); i < size && times[start + i] == time; i++) {
+                if (latitudes[start + i] == latitude && longitudes[start + i] == longitude) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Remove consecutive fixes. Removing the oldest or newest fixes does not move any others.
+         *
+         * @param index Index of the first fix to remove
+         * @param count Number of fixes to remove
+         */
+        void remove(int index, int count) {
+            int moved = size - index - count;
+            if (index == 0) {
+                start += count;
+            } else if (moved > 0) {
+                int at = start + index;
+                System.arraycopy(times, at + count, times, at, moved);
+                System.arraycopy(latitudes, at + count, latitudes, at, moved);
+                System.arraycopy(longitudes, at + count, longitudes, at, moved);
+            }
+            size -= count;
+            if (size == 0) {
+                start = 0;
+            }
+        }
+
+        /**
+         * Get the number of fixes at or before a time
+         *
+         * @param time Time in milliseconds since the epoch
+         * @return Number of fixes, which is also the index of the first fix after the time
+         */
+        public int count(long time) {
+            int low = 0, high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (times[start + middle] <= time) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Get the participant the track belongs to
+         *
+         * @return User id
+         */
+        public String getUserId() {
+            return userId;
+        }
+
+        /**
+         * Get the number of fixes in the track
+         *
+         * @return Number of fixes
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Get the time of a fix
+         *
+         * @param i Index between 0 (oldest) and {@link #size()} - 1 (newest)
+         * @return Time in milliseconds since the epoch
+         */
+        public long getTime(int i) {
+            return times[start + i];
+        }
+
+        /**
+         * Get the latitude of a fix
+         *
+         * @param i Index between 0 (oldest) and {@link #size()} - 1 (newest)
+         * @return Latitude
+         */
+        public double getLatitude(int i) {
+            return latitudes[start + i];
+        }
+
+        /**
+         * Get the longitude of a fix
+         *
+         * @param i Index between 0 (oldest) and {@link #size()} - 1 (newest)
+         * @return Longitude
+         */
+        public double getLongitude(int i) {
+            return longitudes[start + i];
+        }
+
+        /**
+         * Move the fixes to the front of arrays with the given capacity
+         */
+        private void resize(int capacity) {
+            times = resize(times, capacity);
+            latitudes = resize(latitudes, capacity);
+            longitudes = resize(longitudes, capacity);
+            start = 0;
+        }
+
+        private long[] resize(long[] array, int capacity) {
+            long[] resized = capacity == array.length ? array : new long[capacity];
+            System.arraycopy(array, start, resized, 0, size);
+            return resized;
+        }
+
+        private double[] resize(double[] array, int capacity) {
+            double[] resized = capacity == array.length ? array : new double[capacity];
+            System.arraycopy(array, start, resized, 0, size);
+            return resized;
+        }
+    }
+
+    /**
+     * Add a fix to the timeline
+     *
+     * @param userId    Participant
+     * @param latitude  Latitude
+     * @param longitude Longitude
+     * @param time      Time of the fix in milliseconds since the epoch
+     * @return Index of the fix in the participant's track
+     */
+    public int add(String userId, double latitude, double longitude, long time) {
+        Track track = tracks.get(userId);
+        if (track == null) {
+            track = new Track(userId);
+            tracks.put(userId, track);
+        }
+
+        startTime = Math.min(startTime, time);
+        endTime = Math.max(endTime, time);
+        size++;
+        return track.add(latitude, longitude, time);
+    }
+
+    /**
+     * Find a fix in a participant's track
+     *
+     * @param userId    Participant
+     * @param latitude  Latitude
+     * @param longitude Longitude
+     * @param time      Time of the fix in milliseconds since the epoch
+     * @return Index of the fix in the participant's track, -1 if it is not in the timeline
+     */
+    public int indexOf(String userId, double latitude, double longitude, long time) {
+        Track track = tracks.get(userId);
+        return track != null ? track.indexOf(latitude, longitude, time) : -1;
+    }
+
+    /**
+     * Remove a fix from the timeline. Tracks without fixes are removed as well.
+     *
+     * @param userId    Participant
+     * @param latitude  Latitude
+     * @param longitude Longitude
+     * @param time      Time of the fix in milliseconds since the epoch
+     * @return Index the fix had in the participant's track, -1 if it is not in the timeline
+     */
+    public int remove(String userId, double latitude, double longitude, long time) {
+        int index = indexOf(userId, latitude, longitude, time);
+        if (index >= 0) {
+            remove(userId, index, 1);
+        }
+        return index;
+    }
+
+    /**
+     * Remove consecutive fixes of a participant. Tracks without fixes are removed as well.
+     *
+     * @param userId Participant
+     * @param index  Index of the first fix to remove in the participant's track
+     * @param count  Number of fixes to remove
+     */
+    public void remove(String userId, int index, int count) {
+        Track track = tracks.get(userId);
+        long first = track.getTime(index);
+        long last = track.getTime(index + count - 1);
+        track.remove(index, count);
+        if (track.size() == 0) {
+            tracks.remove(userId);
+        }
+        size -= count;
+
+        // Only the first and last fixes of the tracks need to be checked
+        if (first == startTime || last == endTime) {
+            startTime = Long.MAX_VALUE;
+            endTime = Long.MIN_VALUE;
+            for (Track remaining : tracks.values()) {
+                startTime = Math.min(startTime, remaining.getTime(0));
+                endTime = Math.max(endTime, remaining.getTime(remaining.size() - 1));
+            }
+        }
+    }
+
+    /**
+     * Get the track of a participant
+     *
+     * @param userId Participant
+     * @return Track or null if there are no fixes of the participant
+     */
+    public Track getTrack(String userId) {
+        return tracks.get(userId);
+    }
+
+    /**
+     * Get the tracks of all participants
+     *
+     * @return Tracks
+     */
+    public Collection<Track> getTracks() {
+        return tracks.values();
+    }
+
+    /**
+     * Get the time of the oldest fix
+     *
+     * @return Time in milliseconds since the epoch, {@link Long#MAX_VALUE} if the timeline is empty
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Get the time of the newest fix
+     *
+     * @return Time in milliseconds since the epoch, {@link Long#MIN_VALUE} if the timeline is empty
+     */
+    public long getEndTime() {
+        return endTime;
+    }
+
+    /**
+     * Get the number of fixes of all participants
+     *
+     * @return Number of fixes
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Check whether the timeline contains any fixes
+     *
+     * @return True if there are no fixes
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Remove all fixes
+     */
+    public void clear() {
+        tracks.clear();
+        startTime = Long.MAX_VALUE;
+        endTime = Long.MIN_VALUE;
+        size = 0;
+    }
+}
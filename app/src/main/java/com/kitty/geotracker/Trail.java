@@ -0,0 +1,243 @@
+package com.kitty.geotracker;
+
+import android.util.SparseArray;
+
+import com.google.android.gms.maps.model.LatLng;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Track of a single participant, simplified separately for every zoom level it is shown at.
+ * <p>
+ * Fixes are stored in primitive arrays in the order they arrive. A zoom level's simplification is
+ * built the first time the level is requested and extended as fixes are appended. It uses a streaming
+ * variant of Douglas-Peucker: the last kept vertex is connected to the newest fix, and the previous fix
+ * becomes a vertex as soon as any fix in between lies further than the tolerance from that segment.
+ * Only the newest fixes in between are checked, which bounds the cost of appending a fix.
+ * The tolerance is given in pixels, so the number of vertices depends on how long the track is on
+ * screen rather than on the number of fixes.
+ * <p>
+ * The oldest fixes can be removed again, e.g. when they were evicted from the local GPS data. The
+ * vertices of the removed part are dropped and the oldest remaining fix becomes the first vertex. The
+ * fixes occupy a window of the arrays starting at an offset, so removing the oldest fixes only moves
+ * the offset. The window is moved back to the front when the arrays fill up.
+ */
+public class Trail {
+
+    private static final double TILE_SIZE = 256; // in pixels at zoom level 0
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int MAX_WINDOW = 256; // newest fixes checked against a segment
+
+    private final double tolerancePixels;
+    private double[] x = new double[INITIAL_CAPACITY];
+    private double[] y = new double[INITIAL_CAPACITY];
+    private double[] latitudes = new double[INITIAL_CAPACITY];
+    private double[] longitudes = new double[INITIAL_CAPACITY];
+    private int start = 0; // array index of the oldest fix
+    private int end = 0; // array index after the newest fix
+    private final SparseArray<Level> levels = new SparseArray<>();
+
+    /**
+     * Simplification for a single zoom level
+     */
+    private static class Level {
+        final double tolerance; // in world coordinates
+        final List<LatLng> vertices = new ArrayList<>();
+        int[] indices = new int[INITIAL_CAPACITY]; // array index of the fix of every vertex
+        int anchor = 0; // array index of the last vertex
+
+        Level(double tolerance) {
+            this.tolerance = tolerance;
+        }
+    }
+
+    /**
+     * Create a new trail
+     *
+     * @param tolerancePixels Maximum distance in pixels between a dropped fix and the simplified track
+     */
+    public Trail(double tolerancePixels) {
+        this.tolerancePixels = tolerancePixels;
+    }
+
+    /**
+     * Append a fix to the trail and extend the simplifications built so far
+     *
+     * @param latitude  Latitude
+     * @param longitude Longitude
+     */
+    public void add(double latitude, double longitude) {
+        if (end == x.length) {
+            // Grow only if more than half of the arrays is in use
+            resize(size() * 2 < x.length ? x.length : x.length * 2);
+        }
+
+        x[end] = (longitude + 180) / 360;
+        double sin = Math.sin(Math.toRadians(latitude));
+        y[end] = 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+        latitudes[end] = latitude;
+        longitudes[end] = longitude;
+        end++;
+
+        for (int i = 0; i < levels.size(); i++) {
+            extend(levels.valueAt(i), end - 1);
+        }
+    }
+
+    /**
+     * Remove the oldest fixes from the trail
+     *
+     * @param count Number of fixes to remove
+     */
+    public void removeOldest(int count) {
+        count = Math.min(count, size());
+        if (count <= 0) {
+            return;
+        }
+
+        start += count;
+        for (int i = 0; i < levels.size(); i++) {
+            Level level = levels.valueAt(i);
+            int vertices = level.vertices.size();
+            int dropped = 0;
+            while (dropped < vertices && level.indices[dropped] < start) {
+                dropped++;
+            }
+            level.vertices.subList(0, dropped).clear();
+            vertices -= dropped;
+            System.arraycopy(level.indices, dropped, level.indices, 0, vertices);
+            level.anchor = Math.max(level.anchor, start);
+
+            // The trail now starts at the oldest remaining fix
+            if (start < end && (vertices == 0 || level.indices[0] != start)) {
+                level.indices = ensureCapacity(level.indices, vertices + 1);
+                System.arraycopy(level.indices, 0, level.indices, 1, vertices);
+                level.indices[0] = start;
+                level.vertices.add(0, new LatLng(latitudes[start], longitudes[start]));
+            }
+        }
+        if (start == end) {
+            start = end = 0;
+            for (int i = 0; i < levels.size(); i++) {
+                levels.valueAt(i).anchor = 0;
+            }
+        }
+    }
+
+    /**
+     * Get the number of fixes in the trail
+     *
+     * @return Number of fixes
+     */
+    public int size() {
+        return end - start;
+    }
+
+    /**
+     * Get the simplified trail for a zoom level
+     *
+     * @param zoom Zoom level
+     * @return Vertices, ending with the newest fix
+     */
+    public List<LatLng> getPoints(int zoom) {
+        Level level = levels.get(zoom);
+        if (level == null) {
+            level = new Level(tolerancePixels / (TILE_SIZE * Math.pow(2, zoom)));
+            levels.put(zoom, level);
+            for (int i = start; i < end; i++) {
+                extend(level, i);
+            }
+        }
+
+        List<LatLng> points = new ArrayList<>(level.vertices.size() + 1);
+        points.addAll(level.vertices);
+        if (end > start && level.anchor != end - 1) {
+            points.add(new LatLng(latitudes[end - 1], longitudes[end - 1]));
+        }
+        return points;
+    }
+
+    /**
+     * Get the number of vertices kept for a zoom level that was requested before
+     *
+     * @param zoom Zoom level
+     * @return Number of vertices, or -1 if the level was not built yet
+     */
+    public int getVertexCount(int zoom) {
+        Level level = levels.get(zoom);
+        return level == null ? -1 : level.vertices.size();
+    }
+
+    private void extend(Level level, int newest) {
+        if (newest == start) {
+            addVertex(level, start);
+            return;
+        }
+
+        // Older fixes were already close to the segments checked for the fixes before them
+        for (int i = Math.max(level.anchor + 1, newest - MAX_WINDOW); i < newest; i++) {
+            if (distance(i, level.anchor, newest) > level.tolerance) {
+                addVertex(level, newest - 1);
+                return;
+            }
+        }
+    }
+
+    private void addVertex(Level level, int index) {
+        int vertices = level.vertices.size();
+        level.indices = ensureCapacity(level.indices, vertices + 1);
+        level.indices[vertices] = index;
+        level.vertices.add(new LatLng(latitudes[index], longitudes[index]));
+        level.anchor = index;
+    }
+
+    /**
+     * Distance between a fix and the segment between two other fixes in world coordinates
+     */
+    private double distance(int point, int first, int last) {
+        double dx = x[last] - x[first], dy = y[last] - y[first];
+        double px = x[point] - x[first], py = y[point] - y[first];
+        double lengthSquared = dx * dx + dy * dy;
+        if (lengthSquared == 0) {
+            return Math.hypot(px, py);
+        }
+
+        double t = Math.max(0, Math.min(1, (px * dx + py * dy) / lengthSquared));
+        return Math.hypot(px - t * dx, py - t * dy);
+    }
+
+    private static int[] ensureCapacity(int[] array, int capacity) {
+        if (capacity <= array.length) {
+            return array;
+        }
+        int[] grown = new int[Math.max(capacity, array.length * 2)];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    /**
+     * Move the fixes to the front of arrays with the given capacity
+     */
+    private void resize(int capacity) {
+        x = resize(x, capacity);
+        y = resize(y, capacity);
+        latitudes = resize(latitudes, capacity);
+        longitudes = resize(longitudes, capacity);
+        for (int i = 0; i < levels.size(); i++) {
+            Level level = levels.valueAt(i);
+            for (int j = 0; j < level.vertices.size(); j++) {
+                level.indices[j] -= start;
+            }
+            level.anchor -= start;
+        }
+        end -= start;
+        start = 0;
+    }
+
+    private double[] resize(double[] array, int capacity) {
+        double[] resized = capacity == array.length ? array : new double[capacity];
+        System.arraycopy(array, start, resized, 0, end - start);
+        return resized;
+    }
+}
@@ -0,0 +1,135 @@
+package com.kitty.geotracker;
+
+import android.graphics.Color;
+
+import com.google.android.gms.maps.GoogleMap;
+import com.google.android.gms.maps.model.Polyline;
+import com.google.android.gms.maps.model.PolylineOptions;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * Draws the track of every participant as a polyline.
+ * <p>
+ * Fixes are appended to each participant's {@link Trail}. Polylines show the trail simplified for the
+ * current zoom level and are only updated in {@link #flush}, once for every participant whose fixes
+ * were added or removed since the last flush.
+ */
+public class TrailLayer {
+
+    private static final float WIDTH = 4; // in pixels
+
+    private final GoogleMap map;
+    private final double tolerancePixels;
+    private final HashMap<String, Trail> trails = new HashMap<>();
+    private final HashMap<String, Polyline> polylines = new HashMap<>();
+    private final HashSet<String> changed = new HashSet<>();
+    private int zoom;
+
+    /**
+     * Create a new trail layer
+     *
+     * @param map             Map
+     * @param tolerancePixels Maximum distance in pixels between a dropped fix and the drawn track
+     * @param zoom            Initial zoom level
+     */
+    public TrailLayer(GoogleMap map, double tolerancePixels, int zoom) {
+        this.map = map;
+        this.tolerancePixels = tolerancePixels;
+        this.zoom = zoom;
+    }
+
+    /**
+     * Append a fix to a participant's trail
+     *
+     * @param userId    Participant
+     * @param latitude  Latitude
+     * @param longitude Longitude
+     */
+    public void add(String userId, double latitude, double longitude) {
+        Trail trail = trails.get(userId);
+        if (trail == null) {
+            trail = new Trail(tolerancePixels);
+            trails.put(userId, trail);
+        }
+        trail.add(latitude, longitude);
+        changed.add(userId);
+    }
+
+    /**
+     * Remove the oldest fixes from a participant's trail
+     *
+     * @param userId Participant
+     * @param count  Number of fixes to remove
+     */
+    public void removeOldest(String userId, int count) {
+        Trail trail = trails.get(userId);
+        if (trail != null) {
+            trail.removeOldest(count);
+            changed.add(userId);
+        }
+    }
+
+    /**
+     * Update the polylines of all participants whose fixes changed since the last flush
+     */
+    public void flush() {
+        for (String userId : changed) {
+            Trail trail = trails.get(userId);
+            Polyline polyline = polylines.get(userId);
+            if (trail.size() == 0) {
+                if (polyline != null) {
+                    polyline.remove();
+                }
+                trails.remove(userId);
+                polylines.remove(userId);
+            } else if (polyline == null) {
+                polylines.put(userId, map.addPolyline(new PolylineOptions()
+                        .addAll(trail.getPoints(zoom))
+                        .color(color(userId))
+                        .width(WIDTH)
+                ));
+            } else {
+                polyline.setPoints(trail.getPoints(zoom));
+            }
+        }
+        changed.clear();
+    }
+
+    /**
+     * Show the trails simplified for another zoom level
+     *
+     * @param zoom Zoom level
+     */
+    public void setZoom(int zoom) {
+        if (zoom == this.zoom) {
+            return;
+        }
+        this.zoom = zoom;
+        for (Map.Entry<String, Polyline> polyline : polylines.entrySet()) {
+            polyline.getValue().setPoints(trails.get(polyline.getKey()).getPoints(zoom));
+        }
+    }
+
+    /**
+     * Forget all trails without removing the polylines, e.g. after the map was cleared
+     */
+    public void reset() {
+        trails.clear();
+        polylines.clear();
+        changed.clear();
+    }
+
+    /**
+     * Pick a stable color per participant
+     *
+     * @param userId Participant
+     * @return Color
+     */
+    private static int color(String userId) {
+        float[] hsv = {(userId.hashCode() & 0x7fffffff) % 360, 0.8f, 0.9f};
+        return Color.HSVToColor(hsv);
+    }
+}
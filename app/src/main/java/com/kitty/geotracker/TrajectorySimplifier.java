@@ -0,0 +1,119 @@
+package com.kitty.geotracker;
+
+/**
+ * Streaming dead-band filter that drops GPS fixes which add no information to a participant's
+ * trajectory.
+ * <p>
+ * The last accepted fix is extrapolated along its bearing at its speed, or kept in place if it has no
+ * speed or bearing. A new fix is only accepted if it is further than the error bound away from that
+ * prediction, if its speed or bearing changed noticeably, or if no fix has been accepted for the
+ * heartbeat interval. A participant standing still or moving in a straight line at constant speed
+ * therefore only sends a fix per heartbeat.
+ */
+public class TrajectorySimplifier implements FixFilter {
+
+    private static final double EARTH_RADIUS = 6371008.8; // in metres
+
+    // Bearing is unreliable at walking speed and below
+    private static final float MIN_BEARING_SPEED = 1.5f; // in metres per second
+
+    private final double errorBound;
+    private final long heartbeatInterval;
+    private final float maxSpeedDelta;
+    private final float maxBearingDelta;
+    private double scale = 1;
+
+    private boolean hasLast = false;
+    private long lastTime;
+    private double lastLatitude, lastLongitude;
+    private float lastSpeed, lastBearing;
+    private boolean lastHasMotion;
+
+    /**
+     * Create a new simplifier
+     *
+     * @param errorBound        Maximum distance in metres between a dropped fix and the predicted position
+     * @param heartbeatInterval Maximum time in milliseconds between two accepted fixes
+     * @param maxSpeedDelta     Maximum speed change in metres per second for a fix to be dropped
+     * @param maxBearingDelta   Maximum bearing change in degrees for a fix to be dropped
+     */
+    public TrajectorySimplifier(double errorBound, long heartbeatInterval, float maxSpeedDelta, float maxBearingDelta) {
+        this.errorBound = errorBound;
+        this.heartbeatInterval = heartbeatInterval;
+        this.maxSpeedDelta = maxSpeedDelta;
+        this.maxBearingDelta = maxBearingDelta;
+    }
+
+    /**
+     * Decide whether a fix should be uploaded. Accepted fixes become the new reference point.
+     *
+     * @param fix Fix
+     * @return True if the fix should be uploaded
+     */
+    @Override
+    public boolean accept(Fix fix) {
+        if (hasLast && !isSignificant(fix.time, fix.latitude, fix.longitude, fix.speed, fix.bearing,
+                fix.hasSpeed && fix.hasBearing)) {
+            return false;
+        }
+
+        hasLast = true;
+        lastTime = fix.time;
+        lastLatitude = fix.latitude;
+        lastLongitude = fix.longitude;
+        lastSpeed = fix.speed;
+        lastBearing = fix.bearing;
+        lastHasMotion = fix.hasSpeed && fix.hasBearing;
+        return true;
+    }
+
+    /**
+     * Stretch the error bound and heartbeat interval, e.g. while the upload is falling behind
+     *
+     * @param scale Factor of at least 1
+     */
+    public void setScale(double scale) {
+        this.scale = Math.max(1, scale);
+    }
+
+    /**
+     * Forget the reference point, so the next fix is always accepted
+     */
+    @Override
+    public void reset() {
+        hasLast = false;
+    }
+
+    private boolean isSignificant(long time, double latitude, double longitude, float speed, float bearing,
+                                  boolean hasMotion) {
+        long elapsed = time - lastTime;
+        if (elapsed >= heartbeatInterval * scale || elapsed < 0) {
+            return true;
+        }
+
+        if (Math.abs(speed - lastSpeed) > maxSpeedDelta) {
+            return true;
+        }
+
+        if (hasMotion && lastHasMotion && speed >= MIN_BEARING_SPEED && lastSpeed >= MIN_BEARING_SPEED
+                && bearingDelta(bearing, lastBearing) > maxBearingDelta) {
+            return true;
+        }
+
+        // Dead-reckon the last accepted fix and compare with the actual position. Without a bearing the
+        // direction is unknown, so the last position itself is the prediction.
+        double travelled = lastHasMotion ? lastSpeed * elapsed / 1000.0 : 0;
+        double heading = Math.toRadians(lastBearing);
+        double cosLatitude = Math.cos(Math.toRadians(lastLatitude));
+        double predictedNorth = travelled * Math.cos(heading);
+        double predictedEast = travelled * Math.sin(heading);
+        double north = Math.toRadians(latitude - lastLatitude) * EARTH_RADIUS;
+        double east = Math.toRadians(longitude - lastLongitude) * EARTH_RADIUS * cosLatitude;
+        return Math.hypot(north - predictedNorth, east - predictedEast) > errorBound * scale;
+    }
+
+    private static float bearingDelta(float a, float b) {
+        float delta = Math.abs(a - b) % 360;
+        return delta > 180 ? 360 - delta : delta;
+    }
+}
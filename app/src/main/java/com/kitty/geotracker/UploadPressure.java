@@ -0,0 +1,107 @@
+package com.kitty.geotracker;
+
+/**
+ * Tracks how far the location upload is falling behind and turns that into a sampling scale.
+ * <p>
+ * The upload reports the number of journaled locations that still need to be sent and the round-trip
+ * time of every acknowledged upload. While an upload is in flight for longer than the average
+ * round-trip time, its age is used instead, so a stalled connection raises the pressure too. The scale
+ * is 1 while the queue is short and uploads are fast and grows proportionally beyond the thresholds,
+ * up to {@code maxScale}. Sampling stages multiply their intervals by the scale.
+ */
+public class UploadPressure {
+
+    private static final double RTT_SMOOTHING = 0.2;
+
+    private final int depthThreshold;
+    private final long rttThreshold;
+    private final double maxScale;
+
+    private int queueDepth = 0;
+    private double roundTripTime = 0;
+    private long inFlightSince = -1;
+
+    /**
+     * Create a new pressure tracker
+     *
+     * @param depthThreshold Queue depth up to which no sampling is applied
+     * @param rttThreshold   Round-trip time in milliseconds up to which no sampling is applied
+     * @param maxScale       Maximum sampling scale
+     */
+    public UploadPressure(int depthThreshold, long rttThreshold, double maxScale) {
+        this.depthThreshold = depthThreshold;
+        this.rttThreshold = rttThreshold;
+        this.maxScale = maxScale;
+    }
+
+    /**
+     * Update the number of locations waiting to be uploaded
+     *
+     * @param depth Number of locations
+     */
+    public synchronized void setQueueDepth(int depth) {
+        queueDepth = depth;
+    }
+
+    /**
+     * Report that an upload was sent
+     *
+     * @param now Current time in milliseconds
+     */
+    public synchronized void onSent(long now) {
+        inFlightSince = now;
+    }
+
+    /**
+     * Report that the upload in flight was acknowledged
+     *
+     * @param now Current time in milliseconds
+     */
+    public synchronized void onAcknowledged(long now) {
+        if (inFlightSince < 0) {
+            return;
+        }
+        long rtt = now - inFlightSince;
+        roundTripTime = roundTripTime == 0 ? rtt : roundTripTime + RTT_SMOOTHING * (rtt - roundTripTime);
+        inFlightSince = -1;
+    }
+
+    /**
+     * Report that the upload in flight failed or will not be acknowledged
+     */
+    public synchronized void onAborted() {
+        inFlightSince = -1;
+    }
+
+    /**
+     * Get the number of locations waiting to be uploaded
+     *
+     * @return Number of locations
+     */
+    public synchronized int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * Get the smoothed upload round-trip time, or the age of the upload in flight if that is longer
+     *
+     * @param now Current time in milliseconds
+     * @return Round-trip time in milliseconds
+     */
+    public synchronized long getRoundTripTime(long now) {
+        long inFlight = inFlightSince < 0 ? 0 : now - inFlightSince;
+        return Math.max(Math.round(roundTripTime), inFlight);
+    }
+
+    /**
+     * Get the factor sampling intervals should be multiplied with
+     *
+     * @param now Current time in milliseconds
+     * @return Scale between 1 and the maximum scale
+     */
+    public synchronized double getScale(long now) {
+        double depthScale = (double) queueDepth / depthThreshold;
+        double rttScale = (double) getRoundTripTime(now) / rttThreshold;
+        return Math.min(maxScale, Math.max(1, Math.max(depthScale, rttScale)));
+    }
+}
@@ -0,0 +1,330 @@
+package com.kitty.geotracker.db;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import im.delight.android.ddp.db.Document;
+
+/**
+ * SQLite cache of the documents received from Meteor, so a restarted manager can show a session
+ * before it has been downloaded again.
+ * <p>
+ * Every document is stored as the JSON of its fields, together with the session it belongs to and
+ * the time it was received. Writes are collected in memory, where later writes to the same document
+ * replace earlier ones, and are applied on a background thread in a single transaction every
+ * {@link #FLUSH_INTERVAL} milliseconds.
+ */
+public class DocumentCache extends SQLiteOpenHelper {
+
+    private static final String TAG = DocumentCache.class.getSimpleName();
+    private static final String DATABASE_NAME = "documents.db";
+    private static final int DATABASE_VERSION = 1;
+    private static final long FLUSH_INTERVAL = 1000; // in milliseconds
+    private static final int LOAD_CHUNK_SIZE = 100; // in documents per main thread message
+
+    private static final String TABLE_DOCUMENTS = "documents";
+    private static final String COLUMN_COLLECTION = "collection";
+    private static final String COLUMN_ID = "id";
+    private static final String COLUMN_SESSION = "session";
+    private static final String COLUMN_RECEIVED = "received";
+    private static final String COLUMN_FIELDS = "fields";
+
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final LinkedHashMap<String, Write> pending = new LinkedHashMap<>();
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            write();
+        }
+    };
+
+    /**
+     * Receives the cached documents
+     */
+    public interface Loader {
+        /**
+         * Called on the main thread for every cached document, oldest first. Other messages of the main
+         * thread may be handled between two documents.
+         *
+         * @param collectionName Collection
+         * @param documentID     Document id
+         * @param fieldsJson     JSON object with the fields of the document
+         */
+        void onCachedDocument(String collectionName, String documentID, String fieldsJson);
+    }
+
+    /**
+     * Pending write of a document. Documents without fields are deleted.
+     */
+    private static class Write {
+        final String collectionName, documentID, session, fieldsJson;
+        final long received;
+
+        Write(String collectionName, String documentID, String session, String fieldsJson, long received) {
+            this.collectionName = collectionName;
+            this.documentID = documentID;
+            this.session = session;
+            this.fieldsJson = fieldsJson;
+            this.received = received;
+        }
+    }
+
+    public DocumentCache(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        thread = new HandlerThread("DocumentCache", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_DOCUMENTS + " ("
+                + COLUMN_COLLECTION + " TEXT NOT NULL, "
+                + COLUMN_ID + " TEXT NOT NULL, "
+                + COLUMN_SESSION + " TEXT, "
+                + COLUMN_RECEIVED + " INTEGER NOT NULL, "
+                + COLUMN_FIELDS + " TEXT NOT NULL, "
+                + "PRIMARY KEY (" + COLUMN_COLLECTION + ", " + COLUMN_ID + "))");
+        db.execSQL("CREATE INDEX " + TABLE_DOCUMENTS + "_" + COLUMN_SESSION + " ON " + TABLE_DOCUMENTS
+                + " (" + COLUMN_SESSION + ")");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // The cache can always be downloaded again
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_DOCUMENTS);
+        onCreate(db);
+    }
+
+    /**
+     * Read all cached documents in the background and pass them to a loader on the main thread. The
+     * documents are read and passed on in chunks of {@link #LOAD_CHUNK_SIZE}, and the next chunk is only
+     * read once the loader has received the previous one, so neither a large cache nor a busy main
+     * thread makes the whole table pile up in memory.
+     *
+     * @param loader Loader
+     */
+    public void load(Loader loader) {
+        handler.post(new ChunkLoader(loader));
+    }
+
+    /**
+     * Reads the cached documents a chunk at a time on the cache thread and passes every chunk to the
+     * loader on the main thread
+     */
+    private class ChunkLoader implements Runnable {
+        private final Loader loader;
+        private final List<String[]> chunk = new ArrayList<>(LOAD_CHUNK_SIZE);
+        private Cursor cursor;
+        private boolean last = false;
+        private int loaded = 0;
+
+        private final Runnable deliver = new Runnable() {
+            @Override
+            public void run() {
+                for (String[] document : chunk) {
+                    loader.onCachedDocument(document[0], document[1], document[2]);
+                }
+                if (!last) {
+                    handler.post(ChunkLoader.this);
+                }
+            }
+        };
+
+        ChunkLoader(Loader loader) {
+            this.loader = loader;
+        }
+
+        @Override
+        public void run() {
+            chunk.clear();
+            try {
+                if (cursor == null) {
+                    cursor = getReadableDatabase().rawQuery("SELECT " + COLUMN_COLLECTION + ", " + COLUMN_ID + ", "
+                            + COLUMN_FIELDS + " FROM " + TABLE_DOCUMENTS + " ORDER BY " + COLUMN_RECEIVED, null);
+                }
+                while (chunk.size() < LOAD_CHUNK_SIZE && cursor.moveToNext()) {
+                    chunk.add(new String[]{cursor.getString(0), cursor.getString(1), cursor.getString(2)});
+                }
+            } catch (SQLException e) {
+                Log.e(TAG, "Could not read the document cache", e);
+                chunk.clear();
+            }
+
+            loaded += chunk.size();
+            last = chunk.size() < LOAD_CHUNK_SIZE;
+            if (last) {
+                if (cursor != null) {
+                    cursor.close();
+                }
+                Log.d(TAG, "Loaded " + loaded + " cached documents");
+            }
+            if (!chunk.isEmpty()) {
+                mainHandler.post(deliver);
+            }
+        }
+    }
+
+    /**
+     * Store a document
+     *
+     * @param collectionName Collection
+     * @param documentID     Document id
+     * @param session        Session the document belongs to or null
+     * @param fieldsJson     JSON object with the fields of the document
+     */
+    public void put(String collectionName, String documentID, String session, String fieldsJson) {
+        enqueue(new Write(collectionName, documentID, session, fieldsJson, System.currentTimeMillis()));
+    }
+
+    /**
+     * Store a document with its current fields
+     *
+     * @param collectionName Collection
+     * @param document       Document
+     * @param session        Session the document belongs to or null
+     */
+    public void put(String collectionName, Document document, String session) {
+        JSONObject fields = new JSONObject();
+        try {
+            for (String fieldName : document.getFieldNames()) {
+                fields.put(fieldName, JSONObject.wrap(document.getField(fieldName)));
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Could not cache document \"" + document.getId() + "\": " + e.getMessage());
+            return;
+        }
+        put(collectionName, document.getId(), session, fields.toString());
+    }
+
+    /**
+     * Remove a document
+     *
+     * @param collectionName Collection
+     * @param documentID     Document id
+     */
+    public void remove(String collectionName, String documentID) {
+        enqueue(new Write(collectionName, documentID, null, null, 0));
+    }
+
+    /**
+     * Remove all documents of a session
+     *
+     * @param session Session
+     */
+    public void removeSession(final String session) {
+        synchronized (this) {
+            Iterator<Write> iterator = pending.values().iterator();
+            while (iterator.hasNext()) {
+                if (session.equals(iterator.next().session)) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        // Writes that were taken from the queue already are applied before
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int count = getWritableDatabase().delete(TABLE_DOCUMENTS, COLUMN_SESSION + " = ?",
+                            new String[]{session});
+                    Log.d(TAG, "Removed " + count + " cached documents of session \"" + session + "\"");
+                } catch (SQLException e) {
+                    Log.e(TAG, "Could not remove the cached documents of session \"" + session + "\"", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Write pending documents right away, e.g. before the app goes to the background
+     */
+    public void flush() {
+        handler.removeCallbacks(flushRunnable);
+        handler.post(flushRunnable);
+    }
+
+    private void enqueue(Write write) {
+        boolean first;
+        synchronized (this) {
+            String key = write.collectionName + '\u0000' + write.documentID;
+            first = pending.isEmpty();
+            pending.remove(key);
+            pending.put(key, write);
+        }
+        if (first) {
+            handler.postDelayed(flushRunnable, FLUSH_INTERVAL);
+        }
+    }
+
+    /**
+     * Apply the pending writes in a single transaction. Runs on the cache thread.
+     */
+    private void write() {
+        List<Write> writes;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            writes = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO " + TABLE_DOCUMENTS + " ("
+                    + COLUMN_COLLECTION + ", " + COLUMN_ID + ", " + COLUMN_SESSION + ", " + COLUMN_RECEIVED + ", "
+                    + COLUMN_FIELDS + ") VALUES (?, ?, ?, ?, ?)");
+            SQLiteStatement delete = db.compileStatement("DELETE FROM " + TABLE_DOCUMENTS + " WHERE "
+                    + COLUMN_COLLECTION + " = ? AND " + COLUMN_ID + " = ?");
+            db.beginTransaction();
+            try {
+                for (Write write : writes) {
+                    if (write.fieldsJson == null) {
+                        delete.bindString(1, write.collectionName);
+                        delete.bindString(2, write.documentID);
+                        delete.executeUpdateDelete();
+                        continue;
+                    }
+                    insert.bindString(1, write.collectionName);
+                    insert.bindString(2, write.documentID);
+                    if (write.session != null) {
+                        insert.bindString(3, write.session);
+                    } else {
+                        insert.bindNull(3);
+                    }
+                    insert.bindLong(4, write.received);
+                    insert.bindString(5, write.fieldsJson);
+                    insert.executeInsert();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                insert.close();
+                delete.close();
+            }
+        } catch (SQLException e) {
+            Log.e(TAG, "Could not write " + writes.size() + " documents to the cache", e);
+        }
+    }
+}
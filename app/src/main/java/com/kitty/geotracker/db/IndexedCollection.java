@@ -0,0 +1,240 @@
+package com.kitty.geotracker.db;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import im.delight.android.ddp.db.Collection;
+import im.delight.android.ddp.db.Document;
+import im.delight.android.ddp.db.Query;
+
+/**
+ * Collection of an {@link IndexedDatabase}.
+ * <p>
+ * Besides the documents by id, the collection keeps a hash index for every declared field that maps
+ * each value of the field to the ids of the documents having it. Indexes are updated whenever a
+ * document is added, changed or removed. Queries with an equality condition on an indexed field only
+ * look at the documents in the matching bucket instead of scanning the collection.
+ */
+public class IndexedCollection implements Collection {
+
+    private final String name;
+    private final LinkedHashMap<String, IndexedDocument> documents = new LinkedHashMap<>();
+    private final HashMap<String, HashMap<Object, LinkedHashSet<String>>> indexes = new HashMap<>();
+
+    IndexedCollection(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Index a field. Documents that are already in the collection are indexed as well.
+     *
+     * @param fieldName Field
+     */
+    synchronized void addIndex(String fieldName) {
+        if (indexes.containsKey(fieldName)) {
+            return;
+        }
+        indexes.put(fieldName, new HashMap<Object, LinkedHashSet<String>>());
+        for (IndexedDocument document : documents.values()) {
+            index(fieldName, document.getField(fieldName), document.getId());
+        }
+    }
+
+    /**
+     * Check whether a field is indexed
+     *
+     * @param fieldName Field
+     * @return True if there is an index for the field
+     */
+    public synchronized boolean isIndexed(String fieldName) {
+        return indexes.containsKey(fieldName);
+    }
+
+    synchronized void add(String documentId, Map<String, Object> fields) {
+        IndexedDocument document = documents.get(documentId);
+        if (document == null) {
+            document = new IndexedDocument(documentId);
+            documents.put(documentId, document);
+        }
+        update(document, fields, null);
+    }
+
+    synchronized void change(String documentId, Map<String, Object> updated, Map<String, Object> removed) {
+        IndexedDocument document = documents.get(documentId);
+        if (document != null) {
+            update(document, updated, removed);
+        }
+    }
+
+    synchronized void remove(String documentId) {
+        IndexedDocument document = documents.remove(documentId);
+        if (document == null) {
+            return;
+        }
+        for (String fieldName : indexes.keySet()) {
+            unindex(fieldName, document.getField(fieldName), documentId);
+        }
+    }
+
+    /**
+     * Apply changed fields to a document and move it to the matching index buckets
+     */
+    private void update(IndexedDocument document, Map<String, Object> updated, Map<String, Object> removed) {
+        Map<String, Object> fields = document.getFields();
+        if (removed != null) {
+            for (String fieldName : removed.keySet()) {
+                setField(document, fieldName, null);
+            }
+            fields.keySet().removeAll(removed.keySet());
+        }
+        if (updated != null) {
+            for (Map.Entry<String, Object> field : updated.entrySet()) {
+                setField(document, field.getKey(), field.getValue());
+            }
+        }
+    }
+
+    private void setField(IndexedDocument document, String fieldName, Object value) {
+        Object previous = document.getFields().put(fieldName, value);
+        if (indexes.containsKey(fieldName)) {
+            unindex(fieldName, previous, document.getId());
+            index(fieldName, value, document.getId());
+        }
+    }
+
+    private void index(String fieldName, Object value, String documentId) {
+        if (value == null) {
+            return;
+        }
+        HashMap<Object, LinkedHashSet<String>> index = indexes.get(fieldName);
+        LinkedHashSet<String> bucket = index.get(value);
+        if (bucket == null) {
+            bucket = new LinkedHashSet<>();
+            index.put(value, bucket);
+        }
+        bucket.add(documentId);
+    }
+
+    private void unindex(String fieldName, Object value, String documentId) {
+        if (value == null) {
+            return;
+        }
+        HashMap<Object, LinkedHashSet<String>> index = indexes.get(fieldName);
+        LinkedHashSet<String> bucket = index.get(value);
+        if (bucket != null) {
+            bucket.remove(documentId);
+            if (bucket.isEmpty()) {
+                index.remove(value);
+            }
+        }
+    }
+
+    /**
+     * Get the ids of the documents with a value in an indexed field
+     *
+     * @param fieldName Indexed field
+     * @param value     Value
+     * @return Document ids, or null if the field is not indexed
+     */
+    synchronized Set<String> lookup(String fieldName, Object value) {
+        HashMap<Object, LinkedHashSet<String>> index = indexes.get(fieldName);
+        if (index == null) {
+            return null;
+        }
+        LinkedHashSet<String> bucket = index.get(value);
+        return bucket != null ? bucket : Collections.<String>emptySet();
+    }
+
+    synchronized IndexedDocument get(String documentId) {
+        return documents.get(documentId);
+    }
+
+    synchronized java.util.Collection<IndexedDocument> values() {
+        return documents.values();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public synchronized Document getDocument(String id) {
+        return documents.get(id);
+    }
+
+    @Override
+    public synchronized String[] getDocumentIds() {
+        return documents.keySet().toArray(new String[documents.size()]);
+    }
+
+    @Override
+    public synchronized Document[] getDocuments() {
+        return documents.values().toArray(new Document[documents.size()]);
+    }
+
+    @Override
+    public synchronized int count() {
+        return documents.size();
+    }
+
+    @Override
+    public Query whereEqual(String fieldName, Object fieldValue) {
+        return new IndexedQuery(this).whereEqual(fieldName, fieldValue);
+    }
+
+    @Override
+    public Query whereNotEqual(String fieldName, Object fieldValue) {
+        return new IndexedQuery(this).whereNotEqual(fieldName, fieldValue);
+    }
+
+    @Override
+    public Query whereLessThan(String fieldName, double fieldValue) {
+        return new IndexedQuery(this).whereLessThan(fieldName, fieldValue);
+    }
+
+    @Override
+    public Query whereLessThanOrEqual(String fieldName, double fieldValue) {
+        return new IndexedQuery(this).whereLessThanOrEqual(fieldName, fieldValue);
+    }
+
+    @Override
+    public Query whereGreaterThan(String fieldName, double fieldValue) {
+        return new IndexedQuery(this).whereGreaterThan(fieldName, fieldValue);
+    }
+
+    @Override
+    public Query whereGreaterThanOrEqual(String fieldName, double fieldValue) {
+        return new IndexedQuery(this).whereGreaterThanOrEqual(fieldName, fieldValue);
+    }
+
+    @Override
+    public Query whereNull(String fieldName) {
+        return new IndexedQuery(this).whereNull(fieldName);
+    }
+
+    @Override
+    public Query whereNotNull(String fieldName) {
+        return new IndexedQuery(this).whereNotNull(fieldName);
+    }
+
+    @Override
+    public Query whereIn(String fieldName, Object[] fieldValues) {
+        return new IndexedQuery(this).whereIn(fieldName, fieldValues);
+    }
+
+    @Override
+    public Query whereNotIn(String fieldName, Object[] fieldValues) {
+        return new IndexedQuery(this).whereNotIn(fieldName, fieldValues);
+    }
+
+    @Override
+    public String toString() {
+        return "IndexedCollection{name=" + name + ", documents=" + documents.size() + ", indexes="
+                + indexes.keySet() + "}";
+    }
+}
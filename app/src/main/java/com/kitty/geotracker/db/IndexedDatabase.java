@@ -0,0 +1,150 @@
+package com.kitty.geotracker.db;
+
+import java.util.HashMap;
+import java.util.HashSet;
+
+import im.delight.android.ddp.Fields;
+import im.delight.android.ddp.db.Collection;
+import im.delight.android.ddp.db.DataStore;
+import im.delight.android.ddp.db.Database;
+
+/**
+ * Local copy of the subscribed collections with secondary hash indexes.
+ * <p>
+ * Works like the {@code InMemoryDatabase} of the DDP client, but fields declared with
+ * {@link #addIndex} are indexed in their collection, so {@code whereEqual} queries on them do not
+ * have to scan all documents. Indexes can be declared before the collection receives any documents.
+ * <p>
+ * Collections with a specialized store, see {@link #addCollectionStore}, are passed to that store
+ * instead and are not available as {@link Collection}s.
+ */
+public class IndexedDatabase implements DataStore, Database {
+
+    private final HashMap<String, IndexedCollection> collections = new HashMap<>();
+    private final HashMap<String, HashSet<String>> indexedFields = new HashMap<>();
+    private final HashMap<String, DataStore> collectionStores = new HashMap<>();
+
+    /**
+     * Index a field of a collection
+     *
+     * @param collectionName Collection
+     * @param fieldName      Field
+     * @return This database
+     */
+    public synchronized IndexedDatabase addIndex(String collectionName, String fieldName) {
+        HashSet<String> fields = indexedFields.get(collectionName);
+        if (fields == null) {
+            fields = new HashSet<>();
+            indexedFields.put(collectionName, fields);
+        }
+        fields.add(fieldName);
+
+        IndexedCollection collection = collections.get(collectionName);
+        if (collection != null) {
+            collection.addIndex(fieldName);
+        }
+        return this;
+    }
+
+    /**
+     * Keep the documents of a collection in a specialized store
+     *
+     * @param collectionName Collection
+     * @param store          Receives the added, changed and removed documents of the collection
+     * @return This database
+     */
+    public synchronized IndexedDatabase addCollectionStore(String collectionName, DataStore store) {
+        collectionStores.put(collectionName, store);
+        return this;
+    }
+
+    /**
+     * Get the specialized store of a collection
+     *
+     * @param collectionName Collection
+     * @return Store or null if the collection is kept in this database
+     */
+    public synchronized DataStore getCollectionStore(String collectionName) {
+        return collectionStores.get(collectionName);
+    }
+
+    /**
+     * Get a collection. Collections that did not receive any documents yet are returned empty.
+     *
+     * @param name Collection name
+     * @return Collection
+     */
+    @Override
+    public synchronized Collection getCollection(String name) {
+        IndexedCollection collection = collections.get(name);
+        return collection != null ? collection : new IndexedCollection(name);
+    }
+
+    @Override
+    public synchronized String[] getCollectionNames() {
+        return collections.keySet().toArray(new String[collections.size()]);
+    }
+
+    @Override
+    public synchronized int count() {
+        return collections.size();
+    }
+
+    @Override
+    public void onDataAdded(String collectionName, String documentID, Fields newValues) {
+        DataStore store = getCollectionStore(collectionName);
+        if (store != null) {
+            store.onDataAdded(collectionName, documentID, newValues);
+            return;
+        }
+        getOrCreate(collectionName).add(documentID, newValues);
+    }
+
+    @Override
+    public void onDataChanged(String collectionName, String documentID, Fields updatedValues,
+                              Fields removedValues) {
+        DataStore store = getCollectionStore(collectionName);
+        if (store != null) {
+            store.onDataChanged(collectionName, documentID, updatedValues, removedValues);
+            return;
+        }
+        getOrCreate(collectionName).change(documentID, updatedValues, removedValues);
+    }
+
+    @Override
+    public void onDataRemoved(String collectionName, String documentID) {
+        DataStore store = getCollectionStore(collectionName);
+        if (store != null) {
+            store.onDataRemoved(collectionName, documentID);
+            return;
+        }
+
+        IndexedCollection collection;
+        synchronized (this) {
+            collection = collections.get(collectionName);
+        }
+        if (collection != null) {
+            collection.remove(documentID);
+        }
+    }
+
+    private synchronized IndexedCollection getOrCreate(String name) {
+        IndexedCollection collection = collections.get(name);
+        if (collection == null) {
+            collection = new IndexedCollection(name);
+            HashSet<String> fields = indexedFields.get(name);
+            if (fields != null) {
+                for (String fieldName : fields) {
+                    collection.addIndex(fieldName);
+                }
+            }
+            collections.put(name, collection);
+        }
+        return collection;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "IndexedDatabase{collections=" + collections.values() + "}";
+    }
+}
@@ -0,0 +1,48 @@
+package com.kitty.geotracker.db;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import im.delight.android.ddp.db.Document;
+
+/**
+ * Document of an {@link IndexedCollection}
+ */
+public class IndexedDocument implements Document {
+
+    private final String id;
+    private final HashMap<String, Object> fields = new HashMap<>();
+
+    IndexedDocument(String id) {
+        this.id = id;
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public Object getField(String name) {
+        return fields.get(name);
+    }
+
+    @Override
+    public String[] getFieldNames() {
+        return fields.keySet().toArray(new String[fields.size()]);
+    }
+
+    /**
+     * Get all fields of the document
+     *
+     * @return Fields by name
+     */
+    Map<String, Object> getFields() {
+        return fields;
+    }
+
+    @Override
+    public String toString() {
+        return "IndexedDocument{id=" + id + ", fields=" + fields + "}";
+    }
+}
@@ -0,0 +1,241 @@
+package com.kitty.geotracker.db;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import im.delight.android.ddp.db.Document;
+import im.delight.android.ddp.db.Query;
+
+/**
+ * Query on an {@link IndexedCollection}.
+ * <p>
+ * Conditions are collected first and evaluated when the query is run. If there are equality or
+ * {@code whereIn} conditions on indexed fields, the smallest set of matching ids from the indexes is
+ * used as candidates and only those documents are checked against the other conditions. Otherwise all
+ * documents of the collection are scanned.
+ */
+public class IndexedQuery implements Query {
+
+    private static final int EQUAL = 0;
+    private static final int NOT_EQUAL = 1;
+    private static final int LESS_THAN = 2;
+    private static final int LESS_THAN_OR_EQUAL = 3;
+    private static final int GREATER_THAN = 4;
+    private static final int GREATER_THAN_OR_EQUAL = 5;
+    private static final int NULL = 6;
+    private static final int NOT_NULL = 7;
+    private static final int IN = 8;
+    private static final int NOT_IN = 9;
+
+    private final IndexedCollection collection;
+    private final List<Condition> conditions = new ArrayList<>();
+
+    private static class Condition {
+        final int operator;
+        final String fieldName;
+        final Object value;
+        final double number;
+        final Object[] values;
+
+        Condition(int operator, String fieldName, Object value, double number, Object[] values) {
+            this.operator = operator;
+            this.fieldName = fieldName;
+            this.value = value;
+            this.number = number;
+            this.values = values;
+        }
+
+        boolean matches(Document document) {
+            Object field = document.getField(fieldName);
+            switch (operator) {
+                case EQUAL:
+                    return equal(field, value);
+                case NOT_EQUAL:
+                    return !equal(field, value);
+                case LESS_THAN:
+                    return field instanceof Number && ((Number) field).doubleValue() < number;
+                case LESS_THAN_OR_EQUAL:
+                    return field instanceof Number && ((Number) field).doubleValue() <= number;
+                case GREATER_THAN:
+                    return field instanceof Number && ((Number) field).doubleValue() > number;
+                case GREATER_THAN_OR_EQUAL:
+                    return field instanceof Number && ((Number) field).doubleValue() >= number;
+                case NULL:
+                    return field == null;
+                case NOT_NULL:
+                    return field != null;
+                case IN:
+                    return contains(values, field);
+                case NOT_IN:
+                    return !contains(values, field);
+                default:
+                    return false;
+            }
+        }
+
+        private static boolean equal(Object a, Object b) {
+            return a == null ? b == null : a.equals(b);
+        }
+
+        private static boolean contains(Object[] values, Object field) {
+            for (Object value : values) {
+                if (equal(field, value)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    IndexedQuery(IndexedCollection collection) {
+        this.collection = collection;
+    }
+
+    private Query add(int operator, String fieldName, Object value, double number, Object[] values) {
+        conditions.add(new Condition(operator, fieldName, value, number, values));
+        return this;
+    }
+
+    @Override
+    public Query whereEqual(String fieldName, Object fieldValue) {
+        return add(EQUAL, fieldName, fieldValue, 0, null);
+    }
+
+    @Override
+    public Query whereNotEqual(String fieldName, Object fieldValue) {
+        return add(NOT_EQUAL, fieldName, fieldValue, 0, null);
+    }
+
+    @Override
+    public Query whereLessThan(String fieldName, double fieldValue) {
+        return add(LESS_THAN, fieldName, null, fieldValue, null);
+    }
+
+    @Override
+    public Query whereLessThanOrEqual(String fieldName, double fieldValue) {
+        return add(LESS_THAN_OR_EQUAL, fieldName, null, fieldValue, null);
+    }
+
+    @Override
+    public Query whereGreaterThan(String fieldName, double fieldValue) {
+        return add(GREATER_THAN, fieldName, null, fieldValue, null);
+    }
+
+    @Override
+    public Query whereGreaterThanOrEqual(String fieldName, double fieldValue) {
+        return add(GREATER_THAN_OR_EQUAL, fieldName, null, fieldValue, null);
+    }
+
+    @Override
+    public Query whereNull(String fieldName) {
+        return add(NULL, fieldName, null, 0, null);
+    }
+
+    @Override
+    public Query whereNotNull(String fieldName) {
+        return add(NOT_NULL, fieldName, null, 0, null);
+    }
+
+    @Override
+    public Query whereIn(String fieldName, Object[] fieldValues) {
+        return add(IN, fieldName, null, 0, fieldValues);
+    }
+
+    @Override
+    public Query whereNotIn(String fieldName, Object[] fieldValues) {
+        return add(NOT_IN, fieldName, null, 0, fieldValues);
+    }
+
+    @Override
+    public Document findOne() {
+        Document[] documents = find(1);
+        return documents.length > 0 ? documents[0] : null;
+    }
+
+    @Override
+    public Document[] find() {
+        return find(Integer.MAX_VALUE);
+    }
+
+    @Override
+    public Document[] find(int limit) {
+        return find(limit, 0);
+    }
+
+    @Override
+    public Document[] find(int limit, int offset) {
+        List<Document> results = new ArrayList<>();
+        synchronized (collection) {
+            Set<String> candidates = candidates();
+            Iterable<? extends Document> documents = collection.values();
+            if (candidates != null) {
+                List<Document> indexed = new ArrayList<>(candidates.size());
+                for (String id : candidates) {
+                    indexed.add(collection.get(id));
+                }
+                documents = indexed;
+            }
+
+            int skipped = 0;
+            for (Document document : documents) {
+                if (results.size() >= limit) {
+                    break;
+                }
+                if (!matches(document)) {
+                    continue;
+                }
+                if (skipped < offset) {
+                    skipped++;
+                    continue;
+                }
+                results.add(document);
+            }
+        }
+        return results.toArray(new Document[results.size()]);
+    }
+
+    @Override
+    public int count() {
+        return find().length;
+    }
+
+    /**
+     * Find the smallest set of candidate ids from the indexes
+     *
+     * @return Document ids or null if no condition can use an index
+     */
+    private Set<String> candidates() {
+        Set<String> smallest = null;
+        for (Condition condition : conditions) {
+            Set<String> ids = null;
+            if (condition.operator == EQUAL && condition.value != null) {
+                ids = collection.lookup(condition.fieldName, condition.value);
+            } else if (condition.operator == IN && collection.isIndexed(condition.fieldName)) {
+                // Missing fields are not indexed
+                ids = new LinkedHashSet<>();
+                for (Object value : condition.values) {
+                    if (value == null) {
+                        ids = null;
+                        break;
+                    }
+                    ids.addAll(collection.lookup(condition.fieldName, value));
+                }
+            }
+            if (ids != null && (smallest == null || ids.size() < smallest.size())) {
+                smallest = ids;
+            }
+        }
+        return smallest;
+    }
+
+    private boolean matches(Document document) {
+        for (Condition condition : conditions) {
+            if (!condition.matches(document)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
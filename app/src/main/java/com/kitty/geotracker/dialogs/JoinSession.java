@@ -42,7 +42,7 @@ public class JoinSession extends DialogFragment implements MeteorCallback, Dialo
         meteorController = MeteorController.getInstance();
         mMeteor = meteorController.getMeteor();
         mMeteor.addCallback(this);
-        database = mMeteor.getDatabase();
+        database = meteorController.getDatabase();
         refreshData();
     }
 
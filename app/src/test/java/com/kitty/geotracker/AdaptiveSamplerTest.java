@@ -0,0 +1,91 @@
+package com.kitty.geotracker;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveSamplerTest {
+
+    private static final long BASE_INTERVAL = 1000;
+    private static final long HEARTBEAT = 30000;
+    private static final int DEPTH_THRESHOLD = 100;
+
+    private UploadPressure pressure;
+    private TrajectorySimplifier simplifier;
+    private AdaptiveSampler sampler;
+    private long now;
+
+    @Before
+    public void setUp() {
+        pressure = new UploadPressure(DEPTH_THRESHOLD, 2000, 10);
+        simplifier = new TrajectorySimplifier(10, HEARTBEAT, 3, 30);
+        sampler = new AdaptiveSampler(pressure, BASE_INTERVAL, simplifier, new AdaptiveSampler.Clock() {
+            @Override
+            public long now() {
+                return now;
+            }
+        });
+        now = 1500000000000L;
+    }
+
+    private Fix fix() {
+        return new Fix().set("gps", now, 41, -73, 0, 5, 0, 0);
+    }
+
+    @Test
+    public void acceptsEveryFixWithoutPressure() {
+        for (int i = 0; i < 10; i++) {
+            assertTrue("Fix " + i + " dropped", sampler.accept(fix()));
+            now += BASE_INTERVAL;
+        }
+    }
+
+    @Test
+    public void dropsFixesWhileUploadFallsBehind() {
+        pressure.setQueueDepth(DEPTH_THRESHOLD * 3);
+        for (int i = 0; i < 12; i++) {
+            assertEquals("Fix " + i, i % 3 == 0, sampler.accept(fix()));
+            now += BASE_INTERVAL;
+        }
+
+        // The backlog drained, the full rate is restored
+        pressure.setQueueDepth(0);
+        for (int i = 0; i < 3; i++) {
+            assertTrue("Fix " + i + " dropped", sampler.accept(fix()));
+            now += BASE_INTERVAL;
+        }
+    }
+
+    @Test
+    public void stretchesSimplifierHeartbeat() {
+        pressure.setQueueDepth(DEPTH_THRESHOLD * 3);
+        assertTrue(sampler.accept(fix()) && simplifier.accept(fix()));
+
+        now += HEARTBEAT;
+        assertTrue(sampler.accept(fix()));
+        assertFalse(simplifier.accept(fix()));
+
+        now += HEARTBEAT * 2;
+        assertTrue(sampler.accept(fix()));
+        assertTrue(simplifier.accept(fix()));
+
+        // Without pressure the simplifier is back to its own heartbeat
+        pressure.setQueueDepth(0);
+        now += HEARTBEAT;
+        assertTrue(sampler.accept(fix()));
+        assertTrue(simplifier.accept(fix()));
+    }
+
+    @Test
+    public void resetAcceptsNextFix() {
+        pressure.setQueueDepth(DEPTH_THRESHOLD * 3);
+        assertTrue(sampler.accept(fix()));
+        now += BASE_INTERVAL;
+        assertFalse(sampler.accept(fix()));
+        sampler.reset();
+        assertTrue(sampler.accept(fix()));
+    }
+}
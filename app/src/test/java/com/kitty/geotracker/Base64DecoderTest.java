@@ -0,0 +1,54 @@
+package com.kitty.geotracker;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class Base64DecoderTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void decodesWithAndWithoutPadding() {
+        assertEquals("", decode(""));
+        assertEquals("M", decode("TQ=="));
+        assertEquals("Ma", decode("TWE="));
+        assertEquals("Man", decode("TWFu"));
+        assertEquals("Ma", decode("TWE"));
+        assertEquals("any carnal pleasure.", decode("YW55IGNhcm5hbCBwbGVhc3VyZS4="));
+    }
+
+    @Test
+    public void skipsLineBreaks() {
+        assertEquals("any carnal pleasure.", decode("YW55IGNh\ncm5hbCBw\r\nbGVhc3VyZS4="));
+    }
+
+    @Test
+    public void decodesAllByteValues() {
+        byte[] decoded = Base64Decoder.decode("AP8Q7w+/");
+        assertTrue(Arrays.equals(new byte[]{0, (byte) 0xff, 0x10, (byte) 0xef, 0x0f, (byte) 0xbf}, decoded));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidCharacter() {
+        Base64Decoder.decode("TW*u");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDataAfterPadding() {
+        Base64Decoder.decode("TQ==TWFu");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTruncatedData() {
+        Base64Decoder.decode("TWFuT");
+    }
+
+    private static String decode(String data) {
+        return new String(Base64Decoder.decode(data), UTF_8);
+    }
+}
@@ -0,0 +1,215 @@
+package com.kitty.geotracker;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.kitty.geotracker.db.IndexedDatabase;
+
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import im.delight.android.ddp.Fields;
+import im.delight.android.ddp.db.Document;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays a recorded trace of DDP added and changed messages through the decoding done in
+ * {@link MeteorController} and through the decoding of the DDP client, which parses every message
+ * into {@link Fields} with Jackson.
+ * <p>
+ * Every line of {@code ddp-trace.txt} holds the tab-separated arguments of one callback:
+ * {@code added <collection> <id> <fields>} or {@code changed <collection> <id> <updated> <removed>}.
+ * GPS data documents hold a single fix, a fixes array or a packed {@link FixCodec} batch. The streaming
+ * path decodes GPS data straight into the {@link GPSDataStore} columns. The benchmark reports the
+ * throughput of both paths and is only run by hand, since its timings depend on the machine.
+ */
+public class DdpDecodeBenchmarkTest {
+
+    private static final String TRACE = "ddp-trace.txt";
+    private static final int WARM_UP_PASSES = 30;
+    private static final int MEASURED_PASSES = 100;
+
+    private final List<String[]> messages = new ArrayList<>();
+    private long traceBytes;
+
+    @Before
+    public void setUp() throws IOException {
+        InputStream stream = getClass().getClassLoader().getResourceAsStream(TRACE);
+        assertNotNull("Missing " + TRACE, stream);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(stream, Charset.forName("UTF-8")));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    messages.add(line.split("\t"));
+                    traceBytes += line.length() + 1;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void streamingMatchesClientPath() throws IOException {
+        Replay streaming = new Replay();
+        Replay client = new Replay();
+        streaming.streaming(messages);
+        client.client(messages);
+
+        assertTrue(streaming.gpsData.size() > 0);
+        assertEquals(client.gpsData.size(), streaming.gpsData.size());
+        assertEquals(client.gpsData.getDocumentCount(), streaming.gpsData.getDocumentCount());
+
+        int packed = 0;
+        for (String[] message : messages) {
+            if (MeteorController.COLLECTION_GPS_DATA.equals(message[1])) {
+                String expected = fixes(client.gpsData, message[2]);
+                assertTrue("No fixes in " + message[2], !expected.isEmpty());
+                assertEquals(expected, fixes(streaming.gpsData, message[2]));
+                if (message[3].contains(MeteorController.EJSON_BINARY)) {
+                    packed++;
+                }
+            } else {
+                Document expected = client.database.getCollection(message[1]).getDocument(message[2]);
+                Document actual = streaming.database.getCollection(message[1]).getDocument(message[2]);
+                assertEquals(expected.getFieldNames().length, actual.getFieldNames().length);
+                for (String fieldName : expected.getFieldNames()) {
+                    assertEquals(normalize(expected.getField(fieldName)), normalize(actual.getField(fieldName)));
+                }
+            }
+        }
+        assertTrue("No packed GPS data in " + TRACE, packed > 0);
+    }
+
+    @Ignore("Benchmark, run by hand")
+    @Test
+    public void benchmarkDecoding() throws IOException {
+        for (int pass = 0; pass < WARM_UP_PASSES; pass++) {
+            new Replay().client(messages);
+            new Replay().streaming(messages);
+        }
+
+        long start = System.nanoTime();
+        for (int pass = 0; pass < MEASURED_PASSES; pass++) {
+            new Replay().client(messages);
+        }
+        long clientTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int pass = 0; pass < MEASURED_PASSES; pass++) {
+            new Replay().streaming(messages);
+        }
+        long streamingTime = System.nanoTime() - start;
+
+        System.out.println(String.format(Locale.US, "%d messages, %d bytes: client %s, streaming %s",
+                messages.size(), traceBytes, throughput(clientTime), throughput(streamingTime)));
+    }
+
+    private String throughput(long nanos) {
+        double seconds = nanos / 1e9;
+        return String.format(Locale.US, "%.0f messages/s, %.1f MB/s", MEASURED_PASSES * messages.size() / seconds,
+                MEASURED_PASSES * traceBytes / seconds / (1024 * 1024));
+    }
+
+    /**
+     * Make field values of both paths comparable. Jackson returns integers that fit as
+     * {@link Integer}, the streaming decoder always returns {@link Long}.
+     */
+    private static Object normalize(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        } else if (value instanceof Map) {
+            Map<Object, Object> normalized = new HashMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                normalized.put(entry.getKey(), normalize(entry.getValue()));
+            }
+            return normalized;
+        } else if (value instanceof List) {
+            List<Object> normalized = new ArrayList<>();
+            for (Object item : (List<?>) value) {
+                normalized.add(normalize(item));
+            }
+            return normalized;
+        }
+        return value;
+    }
+
+    /**
+     * Describe the fixes of a document
+     */
+    private static String fixes(GPSDataStore gpsData, String documentID) {
+        final StringBuilder builder = new StringBuilder();
+        gpsData.visit(documentID, new GPSDataStore.Visitor() {
+            @Override
+            public void onFix(String userId, Fix fix) {
+                builder.append(userId).append(' ').append(fix.provider).append(' ').append(fix.time).append(' ')
+                        .append(fix.latitude).append(' ').append(fix.longitude).append(' ').append(fix.altitude)
+                        .append(' ').append(fix.bearing).append(' ').append(fix.speed).append('\n');
+            }
+        });
+        return builder.toString();
+    }
+
+    /**
+     * Stores of one replay of the trace
+     */
+    private static class Replay {
+        final JsonFieldDecoder decoder = new JsonFieldDecoder(1024);
+        final ObjectMapper mapper = new ObjectMapper();
+        final GPSDataStore gpsData = new GPSDataStore();
+        final IndexedDatabase database = new IndexedDatabase()
+                .addIndex(MeteorController.COLLECTION_USERS, MeteorController.COLLECTION_USERS_COLUMN_USER)
+                .addCollectionStore(MeteorController.COLLECTION_GPS_DATA, gpsData);
+
+        /**
+         * Decode the messages the way {@link MeteorController} does
+         */
+        void streaming(List<String[]> messages) {
+            for (String[] message : messages) {
+                if (message[0].equals("added")) {
+                    if (MeteorController.COLLECTION_GPS_DATA.equals(message[1])) {
+                        gpsData.add(message[2], message[3]);
+                    } else {
+                        database.onDataAdded(message[1], message[2], FieldsBuilder.decode(decoder, message[3]));
+                    }
+                } else {
+                    database.onDataChanged(message[1], message[2], FieldsBuilder.decode(decoder, message[3]),
+                            FieldsBuilder.decodeNames(decoder, message[4]));
+                }
+            }
+        }
+
+        /**
+         * Parse every message into {@link Fields} with Jackson and store them, like the DDP client does
+         * for its data store
+         */
+        void client(List<String[]> messages) throws IOException {
+            for (String[] message : messages) {
+                if (message[0].equals("added")) {
+                    database.onDataAdded(message[1], message[2], mapper.readValue(message[3], Fields.class));
+                } else {
+                    Fields removed = new Fields();
+                    for (String name : mapper.readValue(message[4], String[].class)) {
+                        removed.put(name, null);
+                    }
+                    database.onDataChanged(message[1], message[2], mapper.readValue(message[3], Fields.class),
+                            removed);
+                }
+            }
+        }
+    }
+}
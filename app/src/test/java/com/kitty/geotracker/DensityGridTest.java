@@ -0,0 +1,157 @@
+package com.kitty.geotracker;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifies the cell coordinates and the removals of the {@link DensityGrid}
+ */
+public class DensityGridTest {
+
+    private static final int MAX_ZOOM = 10;
+    private static final int CELLS = DensityGrid.CELLS;
+
+    // Resolution of the cells at the highest zoom level, coordinates on it are exact
+    private static final double STEP = 1.0 / ((1 << MAX_ZOOM) * CELLS);
+
+    private DensityGrid grid;
+
+    @Before
+    public void setUp() {
+        grid = new DensityGrid(MAX_ZOOM);
+    }
+
+    @Test
+    public void pointsAreAddedToTheirCellOnEveryLevel() {
+        double[] coordinates = {0, STEP, 0.5 - STEP, 0.5, 0.5 + STEP / 2, 0.75 - STEP, 0.3 + 17 * STEP,
+                1 - STEP, 1};
+        for (double x : coordinates) {
+            for (double y : coordinates) {
+                grid.clear();
+                grid.add(x, y, 1);
+                for (int zoom = 0; zoom <= MAX_ZOOM; zoom++) {
+                    int[] expected = locate(x, y, zoom);
+                    assertArrayEquals("x " + x + ", y " + y + " at zoom " + zoom, expected,
+                            findCell(zoom, expected[0], expected[1]));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void tileBoundariesAreSharedThroughThePadding() {
+        // Last cell of tile (0, 0) and first cell of tile (1, 0) at zoom 1
+        grid.add(0.5 - STEP, 0.25, 1);
+        grid.add(0.5, 0.25, 2);
+
+        double[][] out = new double[CELLS + 2][CELLS + 2];
+        assertTrue(grid.copy(1, 0, 0, 1, out));
+        assertEquals(1, out[CELLS][CELLS / 2 + 1], 0);
+        assertEquals(2, out[CELLS + 1][CELLS / 2 + 1], 0);
+
+        out = new double[CELLS + 2][CELLS + 2];
+        assertTrue(grid.copy(1, 1, 0, 1, out));
+        assertEquals(1, out[0][CELLS / 2 + 1], 0);
+        assertEquals(2, out[1][CELLS / 2 + 1], 0);
+
+        // The padding wraps around at the antimeridian, but not at the poles
+        grid.clear();
+        grid.add(0, 0, 3);
+        grid.add(0, 1, 4);
+        out = new double[CELLS + 2][CELLS + 2];
+        assertTrue(grid.copy(1, 1, 0, 1, out));
+        assertEquals(3, out[CELLS + 1][1], 0);
+        assertEquals(0, out[CELLS + 1][0], 0);
+        out = new double[CELLS + 2][CELLS + 2];
+        assertTrue(grid.copy(1, 0, 1, 1, out));
+        assertEquals(4, out[1][CELLS], 0);
+        assertEquals(0, out[1][CELLS + 1], 0);
+    }
+
+    @Test
+    public void removingPointsReturnsCellsToZero() {
+        Random random = new Random(42);
+        int count = 2000;
+        double[] x = new double[count], y = new double[count];
+        float[] weights = new float[count];
+        for (int i = 0; i < count; i++) {
+            // Clustered around two places, so cells are shared by many points
+            double centre = i % 2 == 0 ? 0.3 : 0.7;
+            x[i] = centre + random.nextGaussian() * 0.001;
+            y[i] = centre + random.nextGaussian() * 0.001;
+            weights[i] = 0.1f + random.nextInt(10) * 0.3f;
+            grid.add(x[i], y[i], weights[i]);
+        }
+
+        // Remove the points around one place in a different order, the other place is unchanged
+        for (int i = count - 2; i >= 0; i -= 2) {
+            grid.add(x[i], y[i], -weights[i]);
+        }
+        for (int zoom = 0; zoom <= MAX_ZOOM; zoom++) {
+            int[] removed = locate(0.3, 0.3, zoom);
+            double[][] out = new double[CELLS][CELLS];
+            if (grid.copy(zoom, removed[0], removed[1], 0, out)) {
+                for (int i = 0; i < count; i += 2) {
+                    int[] cell = locate(x[i], y[i], zoom);
+                    if (cell[0] == removed[0] && cell[1] == removed[1]) {
+                        assertEquals("Zoom " + zoom, 0, out[cell[2]][cell[3]], 0);
+                    }
+                }
+            }
+            assertTrue(grid.getMaxCell(zoom) > 0);
+        }
+
+        for (int i = 1; i < count; i += 2) {
+            grid.add(x[i], y[i], -weights[i]);
+        }
+        for (int zoom = 0; zoom <= MAX_ZOOM; zoom++) {
+            for (double place : new double[]{0.3, 0.7}) {
+                int[] tile = locate(place, place, zoom);
+                assertFalse("Zoom " + zoom, grid.copy(zoom, tile[0], tile[1], 0, new double[CELLS][CELLS]));
+            }
+            assertEquals("Zoom " + zoom, 0, grid.getMaxCell(zoom), 0);
+        }
+    }
+
+    /**
+     * Compute the tile and cell of a point from its position on the highest zoom level
+     *
+     * @return Tile column and row, cell column and row
+     */
+    private static int[] locate(double x, double y, int zoom) {
+        double scale = (1 << zoom) * CELLS;
+        int cellX = Math.min((int) (x * scale), (int) scale - 1);
+        int cellY = Math.min((int) (y * scale), (int) scale - 1);
+        return new int[]{cellX / CELLS, cellY / CELLS, cellX % CELLS, cellY % CELLS};
+    }
+
+    /**
+     * Find the only cell with a weight in a tile
+     *
+     * @return Tile column and row, cell column and row, or null if the tile is empty
+     */
+    private int[] findCell(int zoom, int tx, int ty) {
+        double[][] out = new double[CELLS][CELLS];
+        if (!grid.copy(zoom, tx, ty, 0, out)) {
+            return null;
+        }
+
+        int[] found = null;
+        for (int cx = 0; cx < CELLS; cx++) {
+            for (int cy = 0; cy < CELLS; cy++) {
+                if (out[cx][cy] != 0) {
+                    assertTrue("Several cells with a weight at zoom " + zoom, found == null);
+                    found = new int[]{tx, ty, cx, cy};
+                }
+            }
+        }
+        return found;
+    }
+}
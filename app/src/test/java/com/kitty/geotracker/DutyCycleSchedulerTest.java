@@ -0,0 +1,142 @@
+package com.kitty.geotracker;
+
+import android.location.LocationManager;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DutyCycleSchedulerTest {
+
+    private static final long IDLE_DELAY = 60000;
+    private static final long STATIONARY_DELAY = 300000;
+
+    /**
+     * Records the active location requests instead of talking to the LocationManager
+     */
+    private static class FakeLocationSource implements LocationSource {
+        final Set<String> enabled = new HashSet<>();
+        final List<String> providers = new ArrayList<>();
+        final List<Long> intervals = new ArrayList<>();
+        int requests = 0;
+
+        @Override
+        public boolean isProviderEnabled(String provider) {
+            return enabled.contains(provider);
+        }
+
+        @Override
+        public void requestUpdates(String provider, long interval, float minDistance) {
+            providers.add(provider);
+            intervals.add(interval);
+            requests++;
+        }
+
+        @Override
+        public void removeUpdates() {
+            providers.clear();
+            intervals.clear();
+        }
+    }
+
+    private FakeLocationSource source;
+    private DutyCycleScheduler scheduler;
+    private final Fix fix = new Fix();
+
+    @Before
+    public void setUp() {
+        source = new FakeLocationSource();
+        source.enabled.add(LocationManager.GPS_PROVIDER);
+        source.enabled.add(LocationManager.NETWORK_PROVIDER);
+        scheduler = new DutyCycleScheduler(source, IDLE_DELAY, STATIONARY_DELAY, 50);
+        scheduler.start(0);
+    }
+
+    private void feed(long now, double latitude, float speed, float bearing) {
+        scheduler.onFix(fix.set(LocationManager.GPS_PROVIDER, now, latitude, -73, 0, 5, bearing, speed), now);
+    }
+
+    private void feedNetwork(long now, double latitude, float accuracy) {
+        scheduler.onFix(fix.set(LocationManager.NETWORK_PROVIDER, now, latitude, -73, 0, accuracy, 0, 0), now);
+    }
+
+    @Test
+    public void startsWithFullRateGps() {
+        assertEquals(DutyCycleScheduler.MODE_MOVING, scheduler.getMode());
+        assertEquals(1, source.providers.size());
+        assertEquals(LocationManager.GPS_PROVIDER, source.providers.get(0));
+        assertEquals(1000L, (long) source.intervals.get(0));
+    }
+
+    @Test
+    public void stretchesIntervalAndFallsBackToNetworkWhenStill() {
+        for (long t = 1000; t <= IDLE_DELAY; t += 1000) {
+            feed(t, 41, 0.1f, t % 360);
+        }
+        assertEquals(DutyCycleScheduler.MODE_IDLE, scheduler.getMode());
+        assertEquals(LocationManager.GPS_PROVIDER, source.providers.get(0));
+        assertTrue(source.intervals.get(0) > 1000);
+
+        // No more fixes arrive while idle, the periodic check moves on to stationary mode
+        scheduler.checkTimeouts(STATIONARY_DELAY);
+        assertEquals(DutyCycleScheduler.MODE_STATIONARY, scheduler.getMode());
+        assertTrue(source.providers.contains(LocationManager.NETWORK_PROVIDER));
+        assertTrue(source.providers.contains(LocationManager.PASSIVE_PROVIDER));
+        assertFalse(source.providers.contains(LocationManager.GPS_PROVIDER));
+    }
+
+    @Test
+    public void staysOnGpsWhenNetworkProviderIsDisabled() {
+        source.enabled.remove(LocationManager.NETWORK_PROVIDER);
+        feed(1000, 41, 0, 0);
+        scheduler.checkTimeouts(STATIONARY_DELAY * 2);
+        assertEquals(DutyCycleScheduler.MODE_IDLE, scheduler.getMode());
+        assertEquals(LocationManager.GPS_PROVIDER, source.providers.get(0));
+    }
+
+    @Test
+    public void snapsBackToGpsWhenMovementResumes() {
+        feed(1000, 41, 0, 0);
+        scheduler.checkTimeouts(STATIONARY_DELAY + 1000);
+        assertEquals(DutyCycleScheduler.MODE_STATIONARY, scheduler.getMode());
+
+        // A network fix far away from where the participant stopped
+        feed(STATIONARY_DELAY + 60000, 41.001, 0, 0);
+        assertEquals(DutyCycleScheduler.MODE_MOVING, scheduler.getMode());
+        assertEquals(1, source.providers.size());
+        assertEquals(LocationManager.GPS_PROVIDER, source.providers.get(0));
+        assertEquals(1000L, (long) source.intervals.get(0));
+    }
+
+    @Test
+    public void inaccurateNetworkFixDoesNotResumeGps() {
+        feed(1000, 41, 0, 0);
+        scheduler.checkTimeouts(STATIONARY_DELAY + 1000);
+        assertEquals(DutyCycleScheduler.MODE_STATIONARY, scheduler.getMode());
+
+        // About 110 metres away, but within the jitter of a fix accurate to 150 metres
+        feedNetwork(STATIONARY_DELAY + 60000, 41.001, 150);
+        assertEquals(DutyCycleScheduler.MODE_STATIONARY, scheduler.getMode());
+
+        // The same distance from an accurate fix is movement
+        feedNetwork(STATIONARY_DELAY + 120000, 41.001, 20);
+        assertEquals(DutyCycleScheduler.MODE_MOVING, scheduler.getMode());
+    }
+
+    @Test
+    public void slowMovementWithSteadyBearingKeepsFullRate() {
+        for (long t = 1000; t <= IDLE_DELAY * 2; t += 1000) {
+            feed(t, 41 + t * 1e-8, 0.6f, 90);
+        }
+        assertEquals(DutyCycleScheduler.MODE_MOVING, scheduler.getMode());
+        assertEquals(1, source.requests);
+    }
+}
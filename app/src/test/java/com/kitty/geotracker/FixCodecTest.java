@@ -0,0 +1,88 @@
+package com.kitty.geotracker;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Verifies that {@link FixCodec} decodes what it encoded and rejects corrupt batches cleanly
+ */
+public class FixCodecTest {
+
+    @Test
+    public void decodesEncodedBatch() {
+        FixCodec codec = new FixCodec();
+        codec.begin("session", "user");
+        codec.onFix(new Fix().set("gps", 1500000000000L, 41.1234567, -73.7654321, 12.3f, 5, 45.5f, 1.25f));
+        codec.onFix(new Fix().set("network", 1500000001000L, 41.1234667, -73.7654221, 12.5f, 20, 0, 0));
+
+        final List<String> decoded = new ArrayList<>();
+        int count = FixCodec.decode(codec.finish(), new FixSink() {
+            @Override
+            public void onFix(Fix fix) {
+                decoded.add(fix.provider + " " + fix.time + " " + fix.latitude + " " + fix.longitude + " "
+                        + fix.altitude + " " + fix.bearing + " " + fix.speed);
+            }
+        });
+
+        assertEquals(2, count);
+        assertEquals(Arrays.asList(
+                "gps 1500000000000 41.1234567 -73.7654321 12.3 45.5 1.25",
+                "network 1500000001000 41.1234667 -73.7654221 12.5 0.0 0.0"), decoded);
+    }
+
+    @Test
+    public void rejectsHugeDictionary() {
+        // Version, a dictionary size that wraps to a negative int
+        assertRejected(bytes(1, 0xff, 0xff, 0xff, 0xff, 0x0f));
+        // A dictionary size that would need gigabytes
+        assertRejected(bytes(1, 0xff, 0xff, 0xff, 0xff, 0x07));
+    }
+
+    @Test
+    public void rejectsHugeFixCount() {
+        // Version, empty dictionary, session, user and a fix count far beyond the data
+        assertRejected(bytes(1, 0, 0, 0, 0xff, 0xff, 0xff, 0xff, 0x07));
+    }
+
+    @Test
+    public void rejectsOversizedString() {
+        // Version, one dictionary entry whose length exceeds the data
+        assertRejected(bytes(1, 1, 0x7f, 'a'));
+    }
+
+    @Test
+    public void rejectsTruncatedBatch() {
+        FixCodec codec = new FixCodec();
+        codec.begin("session", "user");
+        codec.onFix(new Fix().set("gps", 1500000000000L, 41, -73, 12, 5, 45, 1));
+        byte[] data = codec.finish();
+        assertRejected(Arrays.copyOf(data, data.length - 1));
+    }
+
+    private static void assertRejected(byte[] data) {
+        try {
+            FixCodec.decode(data, new FixSink() {
+                @Override
+                public void onFix(Fix fix) {
+                }
+            });
+            fail("Corrupt batch was decoded");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,140 @@
+package com.kitty.geotracker;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifies that the location ingest path does not allocate once it has been warmed up.
+ * <p>
+ * Fixes go through the same objects as in the app: the {@link FixPool} and {@link FixQueue} of
+ * {@link GPSService}, the filters built by {@link GPSService#createFilter}, and the
+ * {@link LocationUpload} that {@link MeteorController#postLocation} and its uploads go through.
+ * {@link MeteorController} itself needs a Meteor connection, so the test calls the upload steps directly.
+ * Finishing a batch creates the array handed to the DDP client, which happens once per upload and is
+ * not measured.
+ */
+public class FixIngestAllocationTest {
+
+    private static final int WARM_UP_FIXES = 200000;
+    private static final int MEASURED_FIXES = 100000;
+    private static final int BATCH_SIZE = 10;
+
+    // Heading north-east at 10 m/s
+    private static final double LATITUDE_STEP = 10 * Math.cos(Math.toRadians(45)) / 111320;
+    private static final double LONGITUDE_STEP = LATITUDE_STEP / Math.cos(Math.toRadians(41));
+
+    private com.sun.management.ThreadMXBean threadBean;
+    private FixPool pool;
+    private FixQueue queue;
+    private FixFilter filter;
+    private UploadPressure pressure;
+    private FixJournal journal;
+    private LocationUpload upload;
+    private final Fix pipelineFix = new Fix();
+    private long time;
+    private int fixes;
+    private int uploaded;
+
+    @Before
+    public void setUp() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threadBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        pool = new FixPool(4);
+        queue = new FixQueue(64);
+        pressure = new UploadPressure(100, 2000, 10);
+        filter = GPSService.createFilter(pressure, 0, 30000, new AdaptiveSampler.Clock() {
+            @Override
+            public long now() {
+                return time;
+            }
+        });
+        journal = FixJournal.inMemory(4, 2048);
+        upload = new LocationUpload(pressure, new LocationBatcher(BATCH_SIZE, Long.MAX_VALUE));
+        time = 1500000000000L;
+    }
+
+    @Test
+    public void steadyStateIngestDoesNotAllocate() {
+        ingest(WARM_UP_FIXES);
+
+        long threadId = Thread.currentThread().getId();
+        int uploadedBefore = uploaded;
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        ingest(MEASURED_FIXES);
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals(MEASURED_FIXES, uploaded - uploadedBefore);
+        assertTrue("Ingest allocated " + allocated + " bytes for " + MEASURED_FIXES + " fixes",
+                allocated < MEASURED_FIXES / 100);
+    }
+
+    @Test
+    public void mapEncoderReusesItsMaps() {
+        ingest(BATCH_SIZE - 1);
+        upload.encodeFixes(journal, BATCH_SIZE);
+        List<Map<String, Object>> first = upload.finishFixes();
+        Map<String, Object> firstFix = first.get(0);
+
+        upload.encodeFixes(journal, BATCH_SIZE);
+        List<Map<String, Object>> second = upload.finishFixes();
+        assertSame(first, second);
+        assertSame(firstFix, second.get(0));
+        assertEquals(journal.size(), second.size());
+    }
+
+    /**
+     * Capture fixes like {@link GPSService#onLocationChanged}, drain the queue like the service's upload
+     * thread and post the accepted fixes like {@link MeteorController#postLocation}
+     */
+    private void ingest(int count) {
+        for (int i = 0; i < count; i++) {
+            time += 1000;
+            fixes++;
+            Fix fix = pool.acquire().set("gps", time, 41 + fixes * LATITUDE_STEP, -73 + fixes * LONGITUDE_STEP,
+                    100, 5, 45, 10);
+            try {
+                queue.offer(fix);
+            } finally {
+                pool.release(fix);
+            }
+
+            while (queue.poll(pipelineFix)) {
+                if (filter.accept(pipelineFix)) {
+                    post(pipelineFix);
+                }
+            }
+        }
+    }
+
+    private void post(Fix fix) {
+        journal.setSession("session");
+        if (upload.append(journal, fix, time)) {
+            flush();
+        }
+    }
+
+    /**
+     * Encode and acknowledge a batch like {@link MeteorController}'s uploads with compact encoding
+     */
+    private void flush() {
+        upload.getBatcher().reset();
+        long tail = journal.getTail();
+        int count = upload.encodePacked(journal, "session", "user", BATCH_SIZE);
+        upload.onUploaded(journal, "session", tail, count);
+        uploaded += count;
+    }
+}
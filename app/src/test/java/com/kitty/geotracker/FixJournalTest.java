@@ -0,0 +1,115 @@
+package com.kitty.geotracker;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Verifies that uploads are committed to the {@link FixJournal} by sequence number, so fixes that
+ * were appended or discarded while an upload was in flight are not lost.
+ */
+public class FixJournalTest {
+
+    private static final int SEGMENTS = 2;
+    private static final int RECORDS_PER_SEGMENT = 4;
+    private static final int CAPACITY = SEGMENTS * RECORDS_PER_SEGMENT;
+
+    private FixJournal journal;
+    private long time;
+
+    @Before
+    public void setUp() {
+        journal = FixJournal.inMemory(SEGMENTS, RECORDS_PER_SEGMENT);
+        journal.setSession("session");
+        time = 1500000000000L;
+    }
+
+    @Test
+    public void commitRemovesUploadedFixes() {
+        append(5);
+        long tail = journal.getTail();
+        int count = journal.peek(3, new Collector());
+        append(2);
+        journal.commit(tail, count);
+
+        assertEquals(4, journal.size());
+        assertEquals(times(1500000004000L, 4), peekTimes());
+    }
+
+    @Test
+    public void overflowDuringUploadKeepsUnsentFixes() {
+        append(CAPACITY);
+        long tail = journal.getTail();
+        int count = journal.peek(3, new Collector());
+
+        // The ring overflows while the upload is in flight, the two oldest uploaded fixes are overwritten
+        append(2);
+        assertEquals(CAPACITY, journal.size());
+        assertEquals(2, journal.getOverwritten());
+
+        // Only the one uploaded fix that was still pending is removed
+        journal.commit(tail, count);
+        assertEquals(CAPACITY - 1, journal.size());
+        assertEquals(times(1500000004000L, CAPACITY - 1), peekTimes());
+    }
+
+    @Test
+    public void overflowPastUploadedFixesKeepsAllPending() {
+        append(4);
+        long tail = journal.getTail();
+        int count = journal.peek(3, new Collector());
+
+        append(CAPACITY);
+        journal.commit(tail, count);
+        assertEquals(CAPACITY, journal.size());
+        assertEquals(times(1500000005000L, CAPACITY), peekTimes());
+    }
+
+    @Test
+    public void sessionChangeDuringUploadKeepsNewFixes() {
+        append(5);
+        long tail = journal.getTail();
+        int count = journal.peek(5, new Collector());
+
+        assertEquals(5, journal.setSession("other"));
+        append(3);
+        journal.commit(tail, count);
+        assertEquals(3, journal.size());
+        assertEquals(times(1500000006000L, 3), peekTimes());
+    }
+
+    private void append(int count) {
+        Fix fix = new Fix();
+        for (int i = 0; i < count; i++) {
+            time += 1000;
+            journal.append(fix.set("gps", time, 41, -73, 100, 5, 45, 10));
+        }
+    }
+
+    private List<Long> peekTimes() {
+        Collector collector = new Collector();
+        journal.peek(CAPACITY, collector);
+        return collector.times;
+    }
+
+    private static List<Long> times(long first, int count) {
+        List<Long> times = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            times.add(first + i * 1000L);
+        }
+        return times;
+    }
+
+    private static class Collector implements FixSink {
+        final List<Long> times = new ArrayList<>();
+
+        @Override
+        public void onFix(Fix fix) {
+            times.add(fix.time);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.kitty.geotracker;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifies the retention limits, eviction and compaction of the {@link GPSDataStore}
+ */
+public class GPSDataStoreTest {
+
+    private static final long NOW = 1500000000000L;
+
+    /**
+     * Records the evicted documents and their fixes
+     */
+    private static class RecordingListener implements GPSDataStore.EvictionListener {
+        final List<String> evicted = new ArrayList<>();
+        final List<String> fixes = new ArrayList<>();
+
+        @Override
+        public void onFix(String userId, Fix fix) {
+            fixes.add(userId + " " + fix.time);
+        }
+
+        @Override
+        public void onEvicted(String documentID) {
+            evicted.add(documentID);
+        }
+    }
+
+    private GPSDataStore store;
+    private RecordingListener listener;
+
+    @Before
+    public void setUp() {
+        store = new GPSDataStore();
+        listener = new RecordingListener();
+    }
+
+    @Test
+    public void evictsOldestDocumentsBeyondMaximum() {
+        store.setRetention(3, 0, 0);
+        for (int i = 0; i < 5; i++) {
+            add("doc" + i, "user", NOW + i * 1000, 1);
+        }
+
+        assertEquals(2, store.evict(NOW, 10, listener));
+        assertEquals(Arrays.asList("doc0", "doc1"), listener.evicted);
+        assertEquals(Arrays.asList("user " + NOW, "user " + (NOW + 1000)), listener.fixes);
+        assertEquals(3, store.getDocumentCount());
+        assertFalse(store.contains("doc1"));
+        assertTrue(store.contains("doc2"));
+    }
+
+    @Test
+    public void evictsDocumentsByAge() {
+        store.setRetention(0, 60000, 0);
+        add("old", "user", NOW - 120000, 1);
+        add("older", "user", NOW - 180000, 1);
+        add("recent", "user", NOW - 30000, 1);
+        add("late", "user", NOW - 240000, 1);
+
+        // Documents are checked in the order they were added, the late one waits for the recent one
+        assertEquals(2, store.evict(NOW, 10, listener));
+        assertEquals(Arrays.asList("old", "older"), listener.evicted);
+        assertTrue(store.contains("late"));
+    }
+
+    @Test
+    public void evictsAtMostOneBatch() {
+        store.setRetention(1, 0, 0);
+        for (int i = 0; i < 5; i++) {
+            add("doc" + i, "user", NOW, 1);
+        }
+
+        assertEquals(3, store.evict(NOW, 3, listener));
+        assertEquals(1, store.evict(NOW, 3, listener));
+        assertEquals(0, store.evict(NOW, 3, listener));
+        assertEquals(Arrays.asList("doc0", "doc1", "doc2", "doc3"), listener.evicted);
+    }
+
+    @Test
+    public void keepsNewestFixesPerUser() {
+        store.setRetention(0, 0, 4);
+        add("a0", "a", NOW, 3);
+        add("b0", "b", NOW, 2);
+        add("a1", "a", NOW + 10000, 3);
+        add("a2", "a", NOW + 20000, 3);
+
+        assertEquals(1, store.evict(NOW, 10, listener));
+        assertEquals(Arrays.asList("a0"), listener.evicted);
+        assertEquals(Arrays.asList("a " + NOW, "a " + (NOW + 1000), "a " + (NOW + 2000)), listener.fixes);
+        assertEquals(8, store.size());
+
+        // The user's documents follow removals done by the server
+        store.onDataRemoved(MeteorController.COLLECTION_GPS_DATA, "a1");
+        add("a3", "a", NOW + 30000, 3);
+        assertEquals(0, store.evict(NOW, 10, listener));
+        add("a4", "a", NOW + 40000, 3);
+        assertEquals(1, store.evict(NOW, 10, listener));
+        assertEquals(Arrays.asList("a0", "a2"), listener.evicted);
+    }
+
+    @Test
+    public void removingEvictedDocumentIsIgnored() {
+        store.setRetention(1, 0, 0);
+        add("doc0", "user", NOW, 2);
+        add("doc1", "user", NOW + 10000, 2);
+        assertEquals(1, store.evict(NOW, 10, listener));
+
+        store.onDataRemoved(MeteorController.COLLECTION_GPS_DATA, "doc0");
+        assertEquals(1, store.getDocumentCount());
+        assertEquals(2, store.size());
+        assertEquals(2, store.visit("doc1", listener));
+        assertEquals(-1, store.visit("doc0", listener));
+
+        // The document can be added again and is evicted as the oldest once more
+        add("doc0", "user", NOW, 2);
+        assertEquals(1, store.evict(NOW, 10, listener));
+        assertEquals(Arrays.asList("doc0", "doc1"), listener.evicted);
+        assertTrue(store.contains("doc0"));
+    }
+
+    @Test
+    public void compactionKeepsRemainingDocuments() {
+        for (int i = 0; i < 10; i++) {
+            add("doc" + i, "user" + (i % 2), NOW + i * 100000, 5);
+        }
+
+        // Removing more than half of the rows compacts the columns
+        for (int i = 0; i < 10; i += 2) {
+            store.onDataRemoved(MeteorController.COLLECTION_GPS_DATA, "doc" + i);
+        }
+        store.onDataRemoved(MeteorController.COLLECTION_GPS_DATA, "doc9");
+        assertEquals(20, store.size());
+        assertEquals(4, store.getDocumentCount());
+
+        add("doc10", "user0", NOW + 1000000, 5);
+        for (int i : new int[]{1, 3, 5, 7, 10}) {
+            final List<String> fixes = new ArrayList<>();
+            assertEquals(5, store.visit("doc" + i, new GPSDataStore.Visitor() {
+                @Override
+                public void onFix(String userId, Fix fix) {
+                    fixes.add(userId + " " + fix.time);
+                }
+            }));
+            for (int fix = 0; fix < 5; fix++) {
+                assertEquals("user" + (i % 2) + " " + (NOW + i * 100000 + fix * 1000), fixes.get(fix));
+            }
+        }
+        assertEquals(25, store.visitSession("session", listener));
+    }
+
+    @Test
+    public void newestTimeFollowsRemovals() {
+        assertEquals(Long.MIN_VALUE, store.getNewestTime("session"));
+        add("late", "user", NOW + 60000, 3);
+        add("early", "user", NOW, 3);
+        assertEquals(NOW + 62000, store.getNewestTime("session"));
+        assertEquals(Long.MIN_VALUE, store.getNewestTime("other"));
+
+        store.onDataRemoved(MeteorController.COLLECTION_GPS_DATA, "late");
+        assertEquals(NOW + 2000, store.getNewestTime("session"));
+    }
+
+    /**
+     * Add a document with a batch of fixes one second apart
+     */
+    private void add(String documentID, String userId, long time, int count) {
+        StringBuilder json = new StringBuilder(String.format(Locale.US, "{\"%s\":\"session\",\"%s\":\"%s\",\"%s\":[",
+                MeteorController.COLLECTION_GPS_DATA_COLUMN_SESSION_ID,
+                MeteorController.COLLECTION_GPS_DATA_COLUMN_USER_ID, userId,
+                MeteorController.COLLECTION_GPS_DATA_COLUMN_FIXES));
+        for (int i = 0; i < count; i++) {
+            json.append(i > 0 ? "," : "").append(String.format(Locale.US,
+                    "{\"%s\":\"gps\",\"%s\":%d,\"%s\":%f,\"%s\":%f}",
+                    MeteorController.COLLECTION_GPS_DATA_COLUMN_PROVIDER,
+                    MeteorController.COLLECTION_GPS_DATA_COLUMN_TIME, time + i * 1000,
+                    MeteorController.COLLECTION_GPS_DATA_COLUMN_LATITUDE, 41 + i * 1e-4,
+                    MeteorController.COLLECTION_GPS_DATA_COLUMN_LONGITUDE, -73.0));
+        }
+        json.append("]}");
+        assertEquals(count, store.add(documentID, json.toString()));
+    }
+}
@@ -0,0 +1,78 @@
+package com.kitty.geotracker;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifies that {@link KalmanFixFilter} copes with fixes without speed or bearing and with the long
+ * intervals of the stationary duty cycle mode
+ */
+public class KalmanFixFilterTest {
+
+    private static final double LATITUDE = 41, LONGITUDE = -73;
+    private static final double METRES_PER_DEGREE = Math.toRadians(1) * 6371008.8;
+
+    private KalmanFixFilter filter;
+    private long time;
+
+    @Before
+    public void setUp() {
+        filter = new KalmanFixFilter(3, 1, 13.8, 3);
+        time = 1500000000000L;
+    }
+
+    @Test
+    public void missingBearingDoesNotPullTowardsNorth() {
+        // Heading east at 5 m/s, the provider reports the speed but no bearing
+        for (int i = 0; i < 60; i++) {
+            Fix fix = fix(i * 5, 0, 10, 5, 0).setMotion(true, false);
+            assertTrue("Fix " + i + " rejected", filter.accept(fix));
+            assertTrue("Fix " + i + " moved " + north(fix) + " m north", Math.abs(north(fix)) < 2);
+        }
+    }
+
+    @Test
+    public void missingSpeedDoesNotStopTheTrack() {
+        // Heading east at 5 m/s, the provider reports neither speed nor bearing
+        Fix fix = null;
+        for (int i = 0; i < 60; i++) {
+            fix = fix(i * 5, 0, 10, 0, 0).setMotion(false, false);
+            assertTrue("Fix " + i + " rejected", filter.accept(fix));
+        }
+        assertTrue("Track lags " + (59 * 5 - east(fix)) + " m behind", Math.abs(59 * 5 - east(fix)) < 5);
+    }
+
+    @Test
+    public void stationaryIntervalKeepsTheFilterRunning() {
+        // Network locations at the stationary interval of the duty cycle scheduler, plus some delay
+        long interval = DutyCycleScheduler.STATIONARY_INTERVAL + 5000;
+        for (int i = 0; i < 10; i++) {
+            assertTrue(filter.accept(fix(0, 0, 30, 0, 0).setMotion(false, false)));
+            time += interval;
+        }
+
+        // A jump the filter would accept if it restarted at every fix
+        assertFalse(filter.accept(fix(10000, 0, 30, 0, 0).setMotion(false, false)));
+    }
+
+    /**
+     * Create a fix at an offset from the reference point, one second after the previous fix
+     */
+    private Fix fix(double east, double north, float accuracy, float speed, float bearing) {
+        time += 1000;
+        return new Fix().set("network", time, LATITUDE + north / METRES_PER_DEGREE,
+                LONGITUDE + east / (METRES_PER_DEGREE * Math.cos(Math.toRadians(LATITUDE))), 0, accuracy, bearing,
+                speed);
+    }
+
+    private static double north(Fix fix) {
+        return (fix.latitude - LATITUDE) * METRES_PER_DEGREE;
+    }
+
+    private static double east(Fix fix) {
+        return (fix.longitude - LONGITUDE) * METRES_PER_DEGREE * Math.cos(Math.toRadians(LATITUDE));
+    }
+}
@@ -0,0 +1,138 @@
+package com.kitty.geotracker;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifies the values reported by {@link Metrics} and that updating them does not allocate
+ */
+public class MetricsTest {
+
+    private static final int UPDATES = 100000;
+
+    private final Metrics.Counter counter = Metrics.counter("test.counter");
+    private final Metrics.Gauge gauge = Metrics.gauge("test.gauge");
+    private final Metrics.Histogram histogram = Metrics.histogram("test.histogram");
+
+    @Before
+    public void setUp() {
+        Metrics.setEnabled(true);
+        Metrics.reset();
+    }
+
+    @After
+    public void tearDown() {
+        Metrics.setEnabled(false);
+        Metrics.reset();
+    }
+
+    @Test
+    public void metricsAreRegisteredOnce() {
+        assertSame(counter, Metrics.counter("test.counter"));
+        assertSame(histogram, Metrics.histogram("test.histogram"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void namesAreUniqueAcrossTypes() {
+        Metrics.gauge("test.counter");
+    }
+
+    @Test
+    public void disabledMetricsIgnoreUpdates() {
+        Metrics.setEnabled(false);
+        counter.increment();
+        gauge.set(5);
+        histogram.record(100);
+        histogram.recordSince(Metrics.startTime());
+
+        assertEquals(0, counter.get());
+        assertEquals(0, gauge.get());
+        assertEquals(0, histogram.getCount());
+    }
+
+    @Test
+    public void countersAndGauges() {
+        counter.increment();
+        counter.add(4);
+        gauge.set(7);
+        gauge.set(3);
+
+        assertEquals(5, counter.get());
+        assertEquals(3, gauge.get());
+        assertEquals(7, gauge.getMax());
+        assertTrue(Metrics.dump().contains("test.counter"));
+    }
+
+    @Test
+    public void bucketsCoverAllValues() {
+        long previous = -1;
+        for (int bucket = 0; bucket <= Metrics.Histogram.bucket(Long.MAX_VALUE); bucket++) {
+            long highest = Metrics.Histogram.highestInBucket(bucket);
+            assertEquals(bucket, Metrics.Histogram.bucket(previous + 1));
+            assertEquals(bucket, Metrics.Histogram.bucket(highest));
+            previous = highest;
+        }
+        assertEquals(Long.MAX_VALUE, previous);
+    }
+
+    @Test
+    public void percentilesStayWithinBucketPrecision() {
+        Random random = new Random(42);
+        long[] values = new long[UPDATES];
+        for (int i = 0; i < UPDATES; i++) {
+            values[i] = (long) Math.exp(random.nextDouble() * 14);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        for (double percentile : new double[]{50, 90, 99, 99.9}) {
+            long expected = values[(int) Math.ceil(UPDATES * percentile / 100) - 1];
+            long actual = histogram.getPercentile(percentile);
+            assertTrue(percentile + "th percentile " + actual + " instead of " + expected,
+                    actual >= expected && actual <= expected + expected / Metrics.Histogram.SUB_BUCKETS);
+        }
+        assertEquals(values[UPDATES - 1], histogram.getMax());
+        assertEquals(UPDATES, histogram.getCount());
+    }
+
+    @Test
+    public void updatesDoNotAllocate() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        update(UPDATES);
+        long threadId = Thread.currentThread().getId();
+        for (boolean enabled : new boolean[]{false, true}) {
+            Metrics.setEnabled(enabled);
+            long before = threadBean.getThreadAllocatedBytes(threadId);
+            update(UPDATES);
+            long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+            assertTrue((enabled ? "Enabled" : "Disabled") + " metrics allocated " + allocated + " bytes",
+                    allocated < UPDATES / 100);
+        }
+    }
+
+    private void update(int count) {
+        for (int i = 0; i < count; i++) {
+            long start = Metrics.startTime();
+            counter.increment();
+            gauge.set(i);
+            histogram.record(i);
+            histogram.recordSince(start);
+        }
+    }
+}
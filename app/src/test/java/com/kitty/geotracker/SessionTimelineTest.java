@@ -0,0 +1,247 @@
+package com.kitty.geotracker;
+
+import com.google.android.gms.maps.model.LatLng;
+import com.google.maps.android.heatmaps.WeightedLatLng;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifies the ordering and removals of the {@link SessionTimeline} and seeking a {@link SessionReplay}
+ */
+public class SessionTimelineTest {
+
+    private static final long START = 1500000000000L;
+
+    /**
+     * Keeps the points on the heatmap
+     */
+    private static class RecordingHeatmap implements SessionReplay.Heatmap {
+        final IdentityHashMap<WeightedLatLng, LatLng> points = new IdentityHashMap<>();
+
+        @Override
+        public WeightedLatLng add(LatLng location) {
+            WeightedLatLng point = new WeightedLatLng(location);
+            points.put(point, location);
+            return point;
+        }
+
+        @Override
+        public void remove(WeightedLatLng point) {
+            assertTrue("Removed a point that is not on the heatmap", points.remove(point) != null);
+        }
+
+        int count(double latitude) {
+            int count = 0;
+            for (LatLng location : points.values()) {
+                if (location.latitude == latitude) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Keeps the latitude of every marker
+     */
+    private static class RecordingMarkers implements SessionReplay.Markers {
+        final HashMap<String, Double> latitudes = new HashMap<>();
+
+        @Override
+        public void update(String userId, double latitude, double longitude) {
+            latitudes.put(userId, latitude);
+        }
+
+        @Override
+        public void remove(String userId) {
+            latitudes.remove(userId);
+        }
+    }
+
+    private SessionTimeline timeline;
+
+    @Before
+    public void setUp() {
+        timeline = new SessionTimeline();
+    }
+
+    @Test
+    public void lateFixesAreInsertedInOrder() {
+        assertEquals(0, timeline.add("user", 5, 0, START + 5000));
+        assertEquals(0, timeline.add("user", 1, 0, START + 1000));
+        assertEquals(1, timeline.add("user", 3, 0, START + 3000));
+        assertEquals(3, timeline.add("user", 6, 0, START + 6000));
+        assertEquals(1, timeline.add("user", 2, 0, START + 2000));
+        assertEquals(3, timeline.add("user", 4, 0, START + 4000));
+
+        SessionTimeline.Track track = timeline.getTrack("user");
+        assertEquals(6, track.size());
+        for (int i = 0; i < 6; i++) {
+            assertEquals(START + (i + 1) * 1000, track.getTime(i));
+            assertEquals(i + 1, track.getLatitude(i), 0);
+        }
+        assertEquals(START + 1000, timeline.getStartTime());
+        assertEquals(START + 6000, timeline.getEndTime());
+        assertEquals(0, track.count(START));
+        assertEquals(3, track.count(START + 3000));
+        assertEquals(3, track.count(START + 3999));
+        assertEquals(6, track.count(START + 60000));
+    }
+
+    @Test
+    public void fixesWithTheSameTimeKeepTheirOrder() {
+        timeline.add("user", 1, 0, START);
+        timeline.add("user", 2, 0, START + 1000);
+        timeline.add("user", 3, 0, START + 1000);
+        timeline.add("user", 2, 0, START + 1000);
+        timeline.add("user", 4, 0, START + 1000);
+        timeline.add("user", 5, 0, START + 2000);
+
+        // A duplicate is found at its first occurrence
+        assertEquals(1, timeline.indexOf("user", 2, 0, START + 1000));
+        assertEquals(2, timeline.indexOf("user", 3, 0, START + 1000));
+        assertEquals(4, timeline.indexOf("user", 4, 0, START + 1000));
+        assertEquals(-1, timeline.indexOf("user", 5, 0, START + 1000));
+        assertEquals(-1, timeline.indexOf("user", 2, 1, START + 1000));
+        assertEquals(-1, timeline.indexOf("other", 2, 0, START + 1000));
+
+        assertEquals(1, timeline.remove("user", 2, 0, START + 1000));
+        assertEquals(2, timeline.indexOf("user", 2, 0, START + 1000));
+        assertEquals(2, timeline.remove("user", 2, 0, START + 1000));
+        assertEquals(-1, timeline.remove("user", 2, 0, START + 1000));
+
+        SessionTimeline.Track track = timeline.getTrack("user");
+        assertEquals(4, track.size());
+        assertEquals(4, timeline.size());
+        double[] latitudes = {1, 3, 4, 5};
+        for (int i = 0; i < latitudes.length; i++) {
+            assertEquals(latitudes[i], track.getLatitude(i), 0);
+        }
+    }
+
+    @Test
+    public void rangesAreRemovedFromAnyPosition() {
+        for (int i = 0; i < 100; i++) {
+            timeline.add("user", i, 0, START + i * 1000);
+        }
+        timeline.add("other", 0, 0, START + 50000);
+
+        // Removing the oldest fixes moves the start of the track
+        timeline.remove("user", 0, 30);
+        SessionTimeline.Track track = timeline.getTrack("user");
+        assertEquals(70, track.size());
+        assertEquals(30, track.getLatitude(0), 0);
+        assertEquals(START + 30000, timeline.getStartTime());
+
+        timeline.remove("user", 10, 20);
+        timeline.remove("user", 45, 5);
+        assertEquals(45, track.size());
+        assertEquals(46, timeline.size());
+        assertEquals(START + 94000, timeline.getEndTime());
+
+        // Appending after the removals moves the fixes back to the front of the arrays
+        for (int i = 100; i < 200; i++) {
+            timeline.add("user", i, 0, START + i * 1000);
+        }
+        assertEquals(145, track.size());
+        for (int i = 0; i < track.size(); i++) {
+            double latitude = track.getLatitude(i);
+            assertTrue(latitude >= 30 && latitude < 40 || latitude >= 60 && latitude < 95 || latitude >= 100);
+            assertEquals(START + (long) latitude * 1000, track.getTime(i));
+            if (i > 0) {
+                assertTrue(track.getTime(i) > track.getTime(i - 1));
+            }
+        }
+        assertEquals(3, track.count(START + 32000));
+        assertEquals(10, track.count(START + 59000));
+
+        // Empty tracks are dropped
+        timeline.remove("other", 0, 1);
+        assertNull(timeline.getTrack("other"));
+        timeline.remove("user", 0, track.size());
+        assertTrue(timeline.isEmpty());
+        assertEquals(Long.MAX_VALUE, timeline.getStartTime());
+        assertEquals(Long.MIN_VALUE, timeline.getEndTime());
+    }
+
+    @Test
+    public void seekShowsTheFixesUpToTheInstant() {
+        for (int i = 0; i < 10; i++) {
+            timeline.add("a", i, 0, START + i * 1000);
+            timeline.add("b", 100 + i, 0, START + 500 + i * 2000);
+        }
+        RecordingHeatmap heatmap = new RecordingHeatmap();
+        RecordingMarkers markers = new RecordingMarkers();
+        SessionReplay replay = new SessionReplay(timeline, heatmap, markers);
+
+        replay.seek(START + 4000);
+        assertEquals(5 + 2, heatmap.points.size());
+        assertEquals(4, markers.latitudes.get("a"), 0);
+        assertEquals(101, markers.latitudes.get("b"), 0);
+
+        // Forwards
+        replay.seek(START + 9000);
+        assertEquals(10 + 5, heatmap.points.size());
+        assertEquals(9, markers.latitudes.get("a"), 0);
+        assertEquals(104, markers.latitudes.get("b"), 0);
+
+        // Backwards, before the first fix of one participant
+        replay.seek(START + 200);
+        assertEquals(1, heatmap.points.size());
+        assertEquals(1, heatmap.count(0));
+        assertEquals(0, markers.latitudes.get("a"), 0);
+        assertFalse(markers.latitudes.containsKey("b"));
+
+        replay.seek(START - 1);
+        assertTrue(heatmap.points.isEmpty());
+        assertTrue(markers.latitudes.isEmpty());
+
+        replay.seek(START + 20000);
+        assertEquals(20, heatmap.points.size());
+        replay.clear();
+        assertTrue(heatmap.points.isEmpty());
+        assertTrue(markers.latitudes.isEmpty());
+    }
+
+    @Test
+    public void replayFollowsChangesOfTheTimeline() {
+        for (int i = 0; i < 10; i++) {
+            timeline.add("a", i, 0, START + i * 1000);
+        }
+        RecordingHeatmap heatmap = new RecordingHeatmap();
+        RecordingMarkers markers = new RecordingMarkers();
+        SessionReplay replay = new SessionReplay(timeline, heatmap, markers);
+        replay.seek(START + 5000);
+
+        // A late fix before the instant is shown, one after it is not
+        replay.onAdded("a", timeline.add("a", 2.5, 0, START + 2500));
+        replay.onAdded("a", timeline.add("a", 7.5, 0, START + 7500));
+        assertEquals(7, heatmap.points.size());
+        assertEquals(1, heatmap.count(2.5));
+        assertEquals(5, markers.latitudes.get("a"), 0);
+
+        // Removing the newest shown fixes moves the marker back
+        timeline.remove("a", 4, 3);
+        replay.onRemoved("a", 4, 3);
+        assertEquals(4, heatmap.points.size());
+        assertEquals(2.5, markers.latitudes.get("a"), 0);
+
+        timeline.remove("a", 0, 2);
+        replay.onRemoved("a", 0, 2);
+        assertEquals(2, heatmap.points.size());
+        assertEquals(0, heatmap.count(0));
+
+        replay.seek(START + 10000);
+        assertEquals(timeline.getTrack("a").size(), heatmap.points.size());
+        assertEquals(9, markers.latitudes.get("a"), 0);
+    }
+}
@@ -0,0 +1,76 @@
+package com.kitty.geotracker;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifies which fixes {@link TrajectorySimplifier} keeps within its error bound and heartbeat
+ */
+public class TrajectorySimplifierTest {
+
+    private static final double LATITUDE = 41, LONGITUDE = -73;
+    private static final double METRES_PER_DEGREE = Math.toRadians(1) * 6371008.8;
+    private static final double ERROR_BOUND = 10;
+    private static final long HEARTBEAT = 30000;
+
+    private TrajectorySimplifier simplifier;
+    private long time;
+
+    @Before
+    public void setUp() {
+        simplifier = new TrajectorySimplifier(ERROR_BOUND, HEARTBEAT, 3, 30);
+        time = 1500000000000L;
+    }
+
+    @Test
+    public void straightLineStaysWithinErrorBound() {
+        // Heading east at 5 m/s
+        assertTrue(simplifier.accept(fix(0, 0, 5, 90)));
+        for (int i = 1; i < HEARTBEAT / 1000; i++) {
+            assertFalse("Fix " + i + " accepted", simplifier.accept(fix(i * 5, 0, 5, 90)));
+        }
+    }
+
+    @Test
+    public void deviationBeyondErrorBoundIsAccepted() {
+        assertTrue(simplifier.accept(fix(0, 0, 5, 90)));
+        assertFalse(simplifier.accept(fix(5, ERROR_BOUND - 1, 5, 90)));
+        assertTrue(simplifier.accept(fix(10, ERROR_BOUND + 1, 5, 90)));
+    }
+
+    @Test
+    public void heartbeatAcceptsStationaryFix() {
+        assertTrue(simplifier.accept(fix(0, 0, 0, 0)));
+        for (int i = 1; i < HEARTBEAT / 1000; i++) {
+            assertFalse("Fix " + i + " accepted", simplifier.accept(fix(0, 0, 0, 0)));
+        }
+        assertTrue(simplifier.accept(fix(0, 0, 0, 0)));
+    }
+
+    @Test
+    public void missingBearingIsNotExtrapolatedNorth() {
+        // Standing still while the provider reports some speed but no bearing
+        assertTrue(simplifier.accept(fix(0, 0, 4, 0).setMotion(true, false)));
+        for (int i = 1; i < HEARTBEAT / 1000; i++) {
+            assertFalse("Fix " + i + " accepted", simplifier.accept(fix(0, 0, 4, 0).setMotion(true, false)));
+        }
+
+        // Moving away from the last position is still noticed
+        simplifier.reset();
+        assertTrue(simplifier.accept(fix(0, 0, 4, 0).setMotion(true, false)));
+        assertFalse(simplifier.accept(fix(ERROR_BOUND - 1, 0, 4, 0).setMotion(true, false)));
+        assertTrue(simplifier.accept(fix(ERROR_BOUND + 1, 0, 4, 0).setMotion(true, false)));
+    }
+
+    /**
+     * Create a fix at an offset from the reference point, one second after the previous fix
+     */
+    private Fix fix(double east, double north, float speed, float bearing) {
+        time += 1000;
+        return new Fix().set("gps", time, LATITUDE + north / METRES_PER_DEGREE,
+                LONGITUDE + east / (METRES_PER_DEGREE * Math.cos(Math.toRadians(LATITUDE))), 0, 5, bearing, speed);
+    }
+}
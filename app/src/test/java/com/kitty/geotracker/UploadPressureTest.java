@@ -0,0 +1,84 @@
+package com.kitty.geotracker;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class UploadPressureTest {
+
+    private static final int DEPTH_THRESHOLD = 100;
+    private static final long RTT_THRESHOLD = 2000;
+    private static final double MAX_SCALE = 10;
+    private static final double DELTA = 1e-9;
+
+    private UploadPressure pressure;
+
+    @Before
+    public void setUp() {
+        pressure = new UploadPressure(DEPTH_THRESHOLD, RTT_THRESHOLD, MAX_SCALE);
+    }
+
+    @Test
+    public void noSamplingWhileUploadKeepsUp() {
+        assertEquals(1, pressure.getScale(0), DELTA);
+        pressure.setQueueDepth(DEPTH_THRESHOLD / 2);
+        pressure.onSent(0);
+        pressure.onAcknowledged(RTT_THRESHOLD / 2);
+        assertEquals(1, pressure.getScale(RTT_THRESHOLD), DELTA);
+    }
+
+    @Test
+    public void scaleFollowsQueueDepth() {
+        pressure.setQueueDepth(DEPTH_THRESHOLD * 3);
+        assertEquals(3, pressure.getScale(0), DELTA);
+
+        pressure.setQueueDepth(DEPTH_THRESHOLD * 100);
+        assertEquals(MAX_SCALE, pressure.getScale(0), DELTA);
+
+        pressure.setQueueDepth(0);
+        assertEquals(1, pressure.getScale(0), DELTA);
+    }
+
+    @Test
+    public void stalledUploadRaisesScale() {
+        pressure.onSent(1000);
+        assertEquals(1, pressure.getScale(2000), DELTA);
+        assertEquals(RTT_THRESHOLD * 2, pressure.getRoundTripTime(1000 + RTT_THRESHOLD * 2));
+        assertEquals(2, pressure.getScale(1000 + RTT_THRESHOLD * 2), DELTA);
+
+        // An aborted upload no longer counts
+        pressure.onAborted();
+        assertEquals(1, pressure.getScale(1000 + RTT_THRESHOLD * 4), DELTA);
+    }
+
+    @Test
+    public void roundTripTimeIsSmoothed() {
+        long now = 0;
+        pressure.onSent(now);
+        now += RTT_THRESHOLD * 4;
+        pressure.onAcknowledged(now);
+        assertEquals(4, pressure.getScale(now), DELTA);
+
+        // One fast upload only lowers the scale a bit, a series of them restores the full rate
+        pressure.onSent(now);
+        now += 100;
+        pressure.onAcknowledged(now);
+        double scale = pressure.getScale(now);
+        assertTrue("Scale " + scale, scale > 3 && scale < 4);
+
+        for (int i = 0; i < 20; i++) {
+            pressure.onSent(now);
+            now += 100;
+            pressure.onAcknowledged(now);
+        }
+        assertEquals(1, pressure.getScale(now), DELTA);
+    }
+
+    @Test
+    public void acknowledgementWithoutUploadIsIgnored() {
+        pressure.onAcknowledged(RTT_THRESHOLD * 10);
+        assertEquals(0, pressure.getRoundTripTime(RTT_THRESHOLD * 10));
+    }
+}
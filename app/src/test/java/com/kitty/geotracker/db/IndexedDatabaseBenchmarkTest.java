@@ -0,0 +1,191 @@
+package com.kitty.geotracker.db;
+
+import com.kitty.geotracker.MeteorController;
+
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import im.delight.android.ddp.Fields;
+import im.delight.android.ddp.db.DataStore;
+import im.delight.android.ddp.db.Database;
+import im.delight.android.ddp.db.Document;
+import im.delight.android.ddp.db.memory.InMemoryDatabase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Compares the {@link IndexedDatabase} to the {@link InMemoryDatabase} of the DDP client on the
+ * queries the app runs. The benchmark uses a session's worth of documents and is only run by hand,
+ * since its timings depend on the machine.
+ */
+public class IndexedDatabaseBenchmarkTest {
+
+    private static final int USERS = 500;
+    private static final int SESSIONS = 200;
+    private static final int ACTIVE_SESSIONS = 20;
+    private static final int GPS_DATA = 2000;
+    private static final int BENCHMARK_GPS_DATA = 100000;
+    private static final int ROUNDS = 50;
+
+    private IndexedDatabase indexed;
+    private InMemoryDatabase inMemory;
+
+    @Before
+    public void setUp() {
+        indexed = createIndexedDatabase();
+        inMemory = new InMemoryDatabase();
+        populate(indexed, GPS_DATA);
+        populate(inMemory, GPS_DATA);
+    }
+
+    @Test
+    public void queriesMatchInMemoryDatabase() {
+        for (int round = 0; round < 10; round++) {
+            assertEquals(ids(runQueries(inMemory, round)), ids(runQueries(indexed, round)));
+        }
+    }
+
+    @Test
+    public void indexesFollowChangesAndRemovals() {
+        Fields updated = new Fields();
+        updated.put(MeteorController.COLLECTION_SESSIONS_COLUMN_ACTIVE, false);
+        indexed.onDataChanged(MeteorController.COLLECTION_SESSIONS, "session0", updated, null);
+        assertNull(findSession(indexed, "Session 0"));
+        assertEquals(ACTIVE_SESSIONS - 1, sessions(indexed).length);
+
+        Fields removed = new Fields();
+        removed.put(MeteorController.COLLECTION_USERS_COLUMN_USER, null);
+        indexed.onDataChanged(MeteorController.COLLECTION_USERS, "user1", null, removed);
+        assertNull(findUser(indexed, "device1"));
+
+        indexed.onDataRemoved(MeteorController.COLLECTION_USERS, "user2");
+        assertNull(findUser(indexed, "device2"));
+        assertEquals("user3", findUser(indexed, "device3").getId());
+    }
+
+    @Ignore("Benchmark, run by hand")
+    @Test
+    public void benchmarkQueries() {
+        indexed = createIndexedDatabase();
+        inMemory = new InMemoryDatabase();
+        populate(indexed, BENCHMARK_GPS_DATA);
+        populate(inMemory, BENCHMARK_GPS_DATA);
+
+        // Warm up both implementations
+        runRounds(inMemory, 5);
+        runRounds(indexed, 5);
+
+        long start = System.nanoTime();
+        int inMemoryResults = runRounds(inMemory, ROUNDS);
+        long inMemoryTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        int indexedResults = runRounds(indexed, ROUNDS);
+        long indexedTime = System.nanoTime() - start;
+
+        System.out.println(String.format(Locale.US, "%d rounds: in-memory %.1f ms, indexed %.1f ms (%.0fx)",
+                ROUNDS, inMemoryTime / 1e6, indexedTime / 1e6, (double) inMemoryTime / indexedTime));
+        assertEquals(inMemoryResults, indexedResults);
+    }
+
+    private static IndexedDatabase createIndexedDatabase() {
+        return new IndexedDatabase()
+                .addIndex(MeteorController.COLLECTION_USERS, MeteorController.COLLECTION_USERS_COLUMN_USER)
+                .addIndex(MeteorController.COLLECTION_SESSIONS, MeteorController.COLLECTION_SESSIONS_COLUMN_TITLE)
+                .addIndex(MeteorController.COLLECTION_SESSIONS, MeteorController.COLLECTION_SESSIONS_COLUMN_ACTIVE)
+                .addIndex(MeteorController.COLLECTION_GPS_DATA,
+                        MeteorController.COLLECTION_GPS_DATA_COLUMN_SESSION_ID)
+                .addIndex(MeteorController.COLLECTION_GPS_DATA, MeteorController.COLLECTION_GPS_DATA_COLUMN_USER_ID);
+    }
+
+    private static void populate(DataStore store, int gpsData) {
+        for (int i = 0; i < USERS; i++) {
+            Fields fields = new Fields();
+            fields.put(MeteorController.COLLECTION_USERS_COLUMN_USER, "device" + i);
+            fields.put(MeteorController.COLLECTION_USERS_COLUMN_NAME, "User " + i);
+            store.onDataAdded(MeteorController.COLLECTION_USERS, "user" + i, fields);
+        }
+        for (int i = 0; i < SESSIONS; i++) {
+            Fields fields = new Fields();
+            fields.put(MeteorController.COLLECTION_SESSIONS_COLUMN_TITLE, "Session " + i);
+            fields.put(MeteorController.COLLECTION_SESSIONS_COLUMN_MANAGER, "device" + (i % USERS));
+            fields.put(MeteorController.COLLECTION_SESSIONS_COLUMN_ACTIVE, i < ACTIVE_SESSIONS);
+            store.onDataAdded(MeteorController.COLLECTION_SESSIONS, "session" + i, fields);
+        }
+        for (int i = 0; i < gpsData; i++) {
+            Fields fields = new Fields();
+            fields.put(MeteorController.COLLECTION_GPS_DATA_COLUMN_SESSION_ID, "Session " + (i % ACTIVE_SESSIONS));
+            fields.put(MeteorController.COLLECTION_GPS_DATA_COLUMN_USER_ID, "device" + (i % USERS));
+            fields.put(MeteorController.COLLECTION_GPS_DATA_COLUMN_LATITUDE, 41 + i * 1e-6);
+            fields.put(MeteorController.COLLECTION_GPS_DATA_COLUMN_LONGITUDE, -73 - i * 1e-6);
+            fields.put(MeteorController.COLLECTION_GPS_DATA_COLUMN_TIME, 1500000000000L + i * 1000L);
+            store.onDataAdded(MeteorController.COLLECTION_GPS_DATA, "gps" + i, fields);
+        }
+    }
+
+    private static int runRounds(Database database, int rounds) {
+        int results = 0;
+        for (int round = 0; round < rounds; round++) {
+            results += runQueries(database, round).length;
+        }
+        return results;
+    }
+
+    /**
+     * Run the lookups of initializeUser, changeDisplayName, joinSession and getSessions and fetch the
+     * locations of a session and a participant
+     */
+    private static Document[] runQueries(Database database, int round) {
+        Document user = findUser(database, "device" + (round * 7 % USERS));
+        Document session = findSession(database, "Session " + (round % ACTIVE_SESSIONS));
+        Document[] sessions = sessions(database);
+        Document[] sessionData = database.getCollection(MeteorController.COLLECTION_GPS_DATA)
+                .whereEqual(MeteorController.COLLECTION_GPS_DATA_COLUMN_SESSION_ID,
+                        "Session " + (round % ACTIVE_SESSIONS))
+                .find();
+        Document[] userData = database.getCollection(MeteorController.COLLECTION_GPS_DATA)
+                .whereEqual(MeteorController.COLLECTION_GPS_DATA_COLUMN_USER_ID, "device" + (round % USERS))
+                .find();
+
+        Document[] all = new Document[2 + sessions.length + sessionData.length + userData.length];
+        all[0] = user;
+        all[1] = session;
+        System.arraycopy(sessions, 0, all, 2, sessions.length);
+        System.arraycopy(sessionData, 0, all, 2 + sessions.length, sessionData.length);
+        System.arraycopy(userData, 0, all, 2 + sessions.length + sessionData.length, userData.length);
+        return all;
+    }
+
+    private static Document findUser(Database database, String userId) {
+        return database.getCollection(MeteorController.COLLECTION_USERS)
+                .whereEqual(MeteorController.COLLECTION_USERS_COLUMN_USER, userId)
+                .findOne();
+    }
+
+    private static Document findSession(Database database, String title) {
+        return database.getCollection(MeteorController.COLLECTION_SESSIONS)
+                .whereEqual(MeteorController.COLLECTION_SESSIONS_COLUMN_TITLE, title)
+                .whereEqual(MeteorController.COLLECTION_SESSIONS_COLUMN_ACTIVE, true)
+                .findOne();
+    }
+
+    private static Document[] sessions(Database database) {
+        return database.getCollection(MeteorController.COLLECTION_SESSIONS)
+                .whereEqual(MeteorController.COLLECTION_SESSIONS_COLUMN_ACTIVE, true)
+                .find();
+    }
+
+    private static Set<String> ids(Document[] documents) {
+        Set<String> ids = new HashSet<>();
+        for (Document document : documents) {
+            ids.add(document == null ? null : document.getId());
+        }
+        return ids;
+    }
+}